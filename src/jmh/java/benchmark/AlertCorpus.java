@@ -0,0 +1,121 @@
+package benchmark;
+
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartBody;
+import com.google.api.services.gmail.model.MessagePartHeader;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates LinkedIn job alert emails, in the same layout as the real ones, for the benchmarks to run over.
+ * A fixed seed is used so that every run sees the same corpus.
+ */
+public final class AlertCorpus {
+    private static final long FIRST_EMAIL_DATE = 1720812522000L;
+    private static final String[] TITLES = {"Senior Java Engineer (Hybrid - Flexible Options)", "Java Software Engineer, Payments",
+            "Lead Backend Developer", "Principal Engineer - Distributed Systems", "Software Engineer II"};
+    private static final String[] COMPANIES = {"Broadridge", "Hunter Bond", "Acme Trading", "Example Bank"};
+    private static final String[] LOCATIONS = {"London", "Greater London", "Slough, England, United Kingdom", "Reading (Hybrid)"};
+    private static final String[] ADDITIONAL = {"This company is actively hiring", "Fast growing", "Apply with resume & profile",
+            "Actively recruiting"};
+
+    private AlertCorpus() {
+    }
+
+    public static List<String> alertEmails(int count) {
+        Random random = new Random(count);
+        List<String> emails = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            emails.add(alertEmail(5 + random.nextInt(20), random));
+        }
+        return emails;
+    }
+
+    /**
+     * An alert email with the given number of jobs, a mix of five line jobs and seven line jobs whose title has wrapped.
+     */
+    public static String alertEmail(int jobs, Random random) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Your job alert for senior software engineer in Slough\n\n");
+        sb.append(jobs).append(" new jobs match your preferences.\n\n");
+        for (int job = 0; job < jobs; job++) {
+            if (random.nextInt(4) == 0) {
+                sb.append("Java Software Engineer - Hybrid Working - Up to £130\n");
+                sb.append("000 + Bonus\n");
+            } else {
+                sb.append(pick(TITLES, random)).append('\n');
+            }
+            sb.append(pick(COMPANIES, random)).append('\n');
+            sb.append(pick(LOCATIONS, random)).append('\n');
+            sb.append(pick(ADDITIONAL, random)).append('\n');
+            if (random.nextBoolean()) {
+                sb.append(pick(ADDITIONAL, random)).append('\n');
+            }
+            sb.append("View job: https://www.linkedin.com/comm/jobs/view/").append(3_900_000_000L + random.nextInt(100_000_000))
+                    .append("/?trackingId=d%2BPEc1q2BTPoD1mpPBBsRQ%3D%3D&refId=ByteString%28length%3D16%29&trk=eml-email_job_alert_digest_01-job_card-0-view_job\n");
+            sb.append("\n---------------------------------------------------------\n\n");
+        }
+        sb.append("See all jobs on LinkedIn: https://www.linkedin.com/comm/jobs/search?keywords=senior%20software%20engineer\n");
+        return sb.toString();
+    }
+
+    public static String base64UrlEncode(String text) {
+        return Base64.getUrlEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A full format message with plain text and html parts, as Gmail returns the alert emails.
+     */
+    public static Message alertMessage(int index, String text) {
+        String html = "<html><body><pre>" + text + "</pre></body></html>";
+        return new Message()
+                .setId(String.format("%016x", index))
+                .setInternalDate(FIRST_EMAIL_DATE + index * 60_000L)
+                .setPayload(new MessagePart()
+                        .setMimeType("multipart/alternative")
+                        .setHeaders(headers(index))
+                        .setBody(new MessagePartBody().setSize(0))
+                        .setParts(List.of(
+                                bodyPart("text/plain", "text-body", text),
+                                bodyPart("text/html", "html-body", html))));
+    }
+
+    /**
+     * A metadata format message, headers only.
+     */
+    public static Message headerMessage(int index) {
+        return new Message()
+                .setId(String.format("%016x", index))
+                .setInternalDate(FIRST_EMAIL_DATE + index * 60_000L)
+                .setPayload(new MessagePart().setHeaders(headers(index)));
+    }
+
+    private static List<MessagePartHeader> headers(int index) {
+        return List.of(
+                header("Date", "Fri, 12 Jul 2024 19:28:42 +0000 (UTC)"),
+                header("From", "LinkedIn Job Alerts <jobalerts-noreply@linkedin.com>"),
+                header("To", "Someone <someone@example.com>"),
+                header("Subject", "\"senior software engineer\": " + (index % 30) + " opportunities"),
+                header("Content-Type", "multipart/alternative; boundary=\"----=_Part_" + index + "\""));
+    }
+
+    private static MessagePart bodyPart(String mimeType, String contentId, String content) {
+        return new MessagePart()
+                .setMimeType(mimeType)
+                .setHeaders(List.of(header("Content-Type", mimeType + "; charset=UTF-8"), header("Content-ID", contentId)))
+                .setBody(new MessagePartBody().setData(base64UrlEncode(content)).setSize(content.length()));
+    }
+
+    private static MessagePartHeader header(String name, String value) {
+        return new MessagePartHeader().setName(name).setValue(value);
+    }
+
+    private static <T> T pick(T[] values, Random random) {
+        return values[random.nextInt(values.length)];
+    }
+}
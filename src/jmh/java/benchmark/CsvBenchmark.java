@@ -0,0 +1,48 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import parser.linkedin.LinkedInAlert;
+import parser.linkedin.LinkedInJobAlertEmailParser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serialises the alerts parsed from a corpus of {@code messages} emails per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class CsvBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int messages;
+
+    private List<LinkedInAlert> alerts;
+
+    @Setup
+    public void setup() {
+        LinkedInJobAlertEmailParser parser = new LinkedInJobAlertEmailParser();
+        alerts = new ArrayList<>();
+        List<String> alertTexts = AlertCorpus.alertEmails(messages);
+        for (int i = 0; i < alertTexts.size(); i++) {
+            // A day apart, so the dates formatted vary as they would across an export
+            alerts.addAll(parser.parse(1720812522000L + i * 86_400_000L, alertTexts.get(i)));
+        }
+        parser.cleanup();
+    }
+
+    @Benchmark
+    public void toCsv(Blackhole blackhole) {
+        for (LinkedInAlert alert : alerts) {
+            blackhole.consume(alert.toCsv());
+        }
+    }
+
+    @Benchmark
+    public void formatDate(Blackhole blackhole) {
+        for (LinkedInAlert alert : alerts) {
+            blackhole.consume(alert.formatDate());
+        }
+    }
+}
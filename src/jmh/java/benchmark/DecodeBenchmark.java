@@ -0,0 +1,61 @@
+package benchmark;
+
+import com.google.api.services.gmail.model.Message;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import utils.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes the bodies of a corpus of {@code messages} alert emails per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class DecodeBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int messages;
+
+    private List<String> encodedBodies;
+    private List<Message> alertMessages;
+
+    @Setup
+    public void setup() {
+        List<String> alertTexts = AlertCorpus.alertEmails(messages);
+        encodedBodies = alertTexts.stream().map(AlertCorpus::base64UrlEncode).toList();
+        alertMessages = new ArrayList<>(messages);
+        for (int i = 0; i < alertTexts.size(); i++) {
+            alertMessages.add(AlertCorpus.alertMessage(i, alertTexts.get(i)));
+        }
+    }
+
+    @Benchmark
+    public void base64UrlDecode(Blackhole blackhole) {
+        for (String encodedBody : encodedBodies) {
+            blackhole.consume(Util.base64UrlDecode(encodedBody));
+        }
+    }
+
+    @Benchmark
+    public void base64UrlDecodeToChars(Blackhole blackhole) {
+        for (String encodedBody : encodedBodies) {
+            blackhole.consume(Util.base64UrlDecodeToChars(encodedBody));
+        }
+    }
+
+    @Benchmark
+    public void decodeMessageContent(Blackhole blackhole) {
+        for (Message message : alertMessages) {
+            blackhole.consume(Util.decodeMessageContent(message, Util.EMAIL_MIME_TYPE.TEXT));
+        }
+    }
+
+    @Benchmark
+    public void decodeMessageContentToChars(Blackhole blackhole) {
+        for (Message message : alertMessages) {
+            blackhole.consume(Util.decodeMessageContentToChars(message, Util.EMAIL_MIME_TYPE.TEXT));
+        }
+    }
+}
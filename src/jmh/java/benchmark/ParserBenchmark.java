@@ -0,0 +1,54 @@
+package benchmark;
+
+import com.google.api.services.gmail.model.Message;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import parser.basic.BasicEmailParser;
+import parser.linkedin.LinkedInJobAlertEmailParser;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Parses a corpus of {@code messages} emails per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class ParserBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int messages;
+
+    private List<String> alertTexts;
+    private List<Message> headerMessages;
+    private LinkedInJobAlertEmailParser linkedInParser;
+    private BasicEmailParser basicParser;
+
+    @Setup
+    public void setup() {
+        alertTexts = AlertCorpus.alertEmails(messages);
+        headerMessages = IntStream.range(0, messages).mapToObj(AlertCorpus::headerMessage).toList();
+        linkedInParser = new LinkedInJobAlertEmailParser();
+        basicParser = new BasicEmailParser();
+    }
+
+    @TearDown
+    public void tearDown() {
+        linkedInParser.cleanup();
+    }
+
+    @Benchmark
+    public void linkedInAlertParse(Blackhole blackhole) {
+        long internalDate = 1720812522000L;
+        for (String alertText : alertTexts) {
+            blackhole.consume(linkedInParser.parse(internalDate, alertText));
+        }
+    }
+
+    @Benchmark
+    public void basicEmailParse(Blackhole blackhole) {
+        for (Message message : headerMessages) {
+            blackhole.consume(basicParser.parse(message));
+        }
+    }
+}
@@ -3,11 +3,7 @@ import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInsta
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.batch.BatchRequest;
-import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.googleapis.json.GoogleJsonError;
-import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
@@ -16,19 +12,47 @@ import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.GmailScopes;
 import com.google.api.services.gmail.model.*;
 import com.google.common.collect.Lists;
+import gmail.BatchFetcher;
+import gmail.ExportPipeline;
+import gmail.GmailAttachmentLoader;
+import gmail.HistorySync;
+import gmail.HttpPushReceiver;
+import gmail.MailboxWatch;
+import gmail.MessageCache;
+import gmail.MessagePager;
+import gmail.MultiJobExport;
+import gmail.ParserRouter;
+import gmail.ProcessedMessageLabeler;
+import gmail.ProgressJournal;
+import gmail.PushReceiver;
+import gmail.QuotaRateLimiter;
+import gmail.SearchQueryBuilder;
+import gmail.ShardedLister;
+import gmail.SyncCheckpoint;
+import gmail.WatchLoop;
+import metrics.ExportMetrics;
+import metrics.MetricsReport;
+import metrics.Stage;
 import parser.linkedin.LinkedInAlert;
 import utils.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import parser.CSVRecord;
 import parser.MessageParser;
-import parser.basic.BasicEmailParser;
+import parser.ParserRegistry;
+import parser.RecordFilter;
 import parser.linkedin.LinkedInJobAlertEmailParser;
+import parser.linkedin.SeenJobFilter;
 
 import java.io.*;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 import static utils.Util.addFileSuffix;
 import static utils.Util.outputListToFile;
@@ -65,8 +89,39 @@ public class GmailMessageExporter {
   private static final List<String> SCOPES = Collections.singletonList(GmailScopes.GMAIL_MODIFY);
   private static final String CREDENTIALS_FILE_PATH = "/credentials.json";
 
+  /**
+   * How long a stopped watch is given to finish its running cycle.
+   */
+  private static final Duration SHUTDOWN_GRACE = Duration.ofSeconds(30);
+
+  /**
+   * How far before the previous sync an incremental sync looks for messages matching the search query, as a message's
+   * date can be a little earlier than its arrival.
+   */
+  private static final Duration SYNC_QUERY_MARGIN = Duration.ofDays(1);
+
+  /**
+   * Local store of fetched messages, null when no cache directory is configured.
+   */
+  private static MessageCache messageCache;
+
+  /**
+   * Quota limiter shared by every Gmail api call made by this process.
+   */
+  private static QuotaRateLimiter rateLimiter;
+
+  /**
+   * Leaves out LinkedIn jobs exported before, null when no seen jobs index is configured.
+   */
+  private static SeenJobFilter seenJobFilter;
+
+  /**
+   * Whether the process is running the watch command, repeating the export every cycle.
+   */
+  private static boolean watching = false;
+
   // TODO remove delete option later
-  private enum COMMANDS {LABELS, SEARCH, LIST, DELETE}
+  private enum COMMANDS {LABELS, SEARCH, LIST, SYNC, JOBS, ROUTE, WATCH, PUSH, OFFLINE, DELETE}
 
   private static final String USAGE = """
           GmailMessageExporter command
@@ -77,14 +132,60 @@ public class GmailMessageExporter {
             Lists the labels from the Gmail account
           - list
             Lists the emails from the Gmail account as found in the inbox
+          - sync
+            Incremental search, only messages added since the previous sync are exported
+          - jobs
+            Runs every job listed in exportJobs at once, messages matching several jobs are fetched once
+          - route
+            Lists and fetches once for the routeParsers, each message goes to every parser that handles it
+          - watch [sync|search|list|jobs|route]
+            Keeps running, repeating the command (watchCommand, sync by default) every watchIntervalSeconds
+          - push
+            Keeps running, syncing whenever Gmail publishes a mailbox change to pushTopic
+          - offline [search|list]
+            Runs the search or list parser over the messages held in the message cache, without connecting to Gmail
             
           Parser configuration parameters can be found in configuration.properties which should be on the classpath. This
           file has the following options:
           - writeMessagesToFile - boolean flag if the email message should be outputted to a text file
-          - fromEmailFilter - filters the emails by sender this given string value
-          - subjectEmailFilter - filters the emails by subject this given string value 
+          - fromEmailFilter - filters the emails by sender this given string value, added to the query as from:
+          - subjectEmailFilter - filters the emails by subject this given string value, added to the query as subject:
           - messageSearchQuery - gmail search query string
           - messageSearchQueryLimit - max search query results to return.
+          - deleteProcessedEmailMessages - label the exported messages once written, see processedMessageLabel.
+          - processedMessageLabel - label applied to exported messages, TRASH moves them to the trash.
+          - batchFetchConcurrency - max number of message fetch batches to keep in flight at once.
+          - quotaUnitsPerSecond - Gmail quota units to use per second, the per user limit is 250.
+          - fetchMaxRetries - number of times a rate limited or failed message fetch is retried.
+          - streamMessages - process each page of listed messages as it arrives instead of all at the end.
+          - streamBatchSize - number of messages fetched, parsed and written together when streaming.
+          - parseThreads - number of threads messages are parsed on, 0 to use every core.
+          - gzipCsvOutput - gzip compress the csv output file.
+          - csvTimeZone - time zone of the dates in the csv output, such as Europe/London.
+          - seenJobsIndexFile - index of the LinkedIn jobs already exported, each job is only exported once, leave empty to disable.
+          - metricsReportFile - json report of each export stage's latency, batch sizes and retries, leave empty to disable.
+          - metricsPrometheusFile - the same metrics in the Prometheus text format, leave empty to disable.
+          - listShards - number of date windows a listing is cut into and listed at once, 1 to list page by page.
+          - listShardsSince - date of the oldest messages a sharded listing covers, such as 2004-04-01.
+          - watchCommand - command repeated by the watch command when none is given, sync by default.
+          - watchIntervalSeconds - seconds from the start of one watch cycle to the start of the next.
+          - pushTopic - Pub/Sub topic Gmail publishes mailbox changes to for the push command.
+          - pushLabelIds - comma separated labels whose changes are published, INBOX by default, empty for every change.
+          - pushPort - port the push command receives the Pub/Sub push requests on, 8080 by default.
+          - pushPath - path the push requests are sent to, /gmail/push by default.
+          - pushVerificationToken - token push requests must carry as their token query parameter, leave empty to disable.
+          - pushFallbackMinutes - minutes after which the push command syncs though no notification has arrived.
+          - syncCheckpointFile - file recording the history id reached by the sync command.
+          - progressJournalFile - journal an interrupted search, list or sync is resumed from, leave empty to disable.
+          - messageCacheDirectory - directory of the local message cache, leave empty to disable the cache.
+          - messageCacheMaxAgeDays - age after which cached messages are fetched again.
+          - messageCacheMaxMegabytes - size the message cache is kept under, trimmed back on start up and whenever it is outgrown.
+          - exportJobs - comma separated names of the jobs run by the jobs command, each configured with
+            job.<name>.query, job.<name>.parser (a registered parser such as linkedin or basic), job.<name>.output and job.<name>.limit.
+          - searchParser - parser used by the search, sync and offline search commands, linkedin by default.
+          - listParser - parser used by the list and offline list commands, basic by default.
+          - routeParsers - comma separated parsers run by the route command, empty for every registered parser.
+          - routeSearchQuery - gmail search terms restricting the messages listed by the route command.
           """;
 
   /**
@@ -131,180 +232,557 @@ public class GmailMessageExporter {
   }
 
   /**
-   * The main method that fetches a list of message from gmail. Only the msg id is returned. This method is wrapped by other methods.
+   * Lists the message ids matching the query, handing each page to the consumer as soon as it is returned. Exactly
+   * requestedMax ids are listed when that many match, see {@link MessagePager}. With listShards configured the query
+   * is listed as date windows at the same time, see {@link ShardedLister}.
    * @param service - Gmail service
    * @param query - gmail style query
    * @param requestedMax - a value of 100 should be considered the default
-   * @return List of parsed messages
+   * @param pageConsumer - receives each page of bare messages
    * @throws IOException should any retrieval issues occur
    */
-  private static List<Message> performFetchGmailMessages(Gmail service, String query, long requestedMax) throws IOException {
-    String user = "me";
-    List<Message> accumulatMessages = new ArrayList<>();
-
-    String nextPageToken = null;
-    boolean done = false;
-    int itertionCount = 0;
-    int previousMsgCount = 0;
-    while(!done) {
-      Gmail.Users.Messages.List listRequest = service.users().messages().list(user);
-      if (nextPageToken != null) {
-        listRequest.setPageToken(nextPageToken);
-      }
-      if (query != null) {
-        listRequest.setQ(query);
-      }
-      listRequest.setMaxResults(requestedMax);
-      ListMessagesResponse listResponse = listRequest.execute();
-      List<Message> messages = listResponse.getMessages();
-      nextPageToken = listResponse.getNextPageToken();
-      if (messages.isEmpty()) {
-        done = true;
-      }
-      accumulatMessages.addAll(messages);
-      int currentMessageCount = accumulatMessages.size();
-      // End the loop once we have the max requested number of msgs or we are nolonger getting new msgs.
-      if (currentMessageCount >= requestedMax || previousMsgCount == currentMessageCount) {
-        done = true;
-      }
-      previousMsgCount = currentMessageCount;
-      itertionCount++;
+  private static void performFetchGmailMessages(Gmail service, String query, long requestedMax, Consumer<List<Message>> pageConsumer) throws IOException {
+    Configuration parserConfiguration = Configuration.getInstance();
+    if (parserConfiguration.listShards() > 1) {
+      new ShardedLister((shardQuery, pageToken, maxResults) -> listMessagesPage(service, shardQuery, pageToken, maxResults),
+              parserConfiguration.listShards(), parserConfiguration.listShardsSince())
+              .list(query, requestedMax, pageConsumer);
+      return;
     }
-    logger.info("Retrieved {} messages in {} requests", accumulatMessages.size(), itertionCount);
-    return accumulatMessages;
+
+    MessagePager pager = new MessagePager((pageQuery, pageToken, maxResults) -> listMessagesPage(service, pageQuery, pageToken, maxResults),
+            query, requestedMax);
+    pager.forEachPage(pageConsumer);
+    logger.info("Retrieved {} messages in {} requests", pager.listed(), pager.requests());
   }
 
-  private static List<Message> listMessages(Gmail service, long requestedMax) throws IOException {
-    return performFetchGmailMessages(service, null, requestedMax);
+  /**
+   * Lists one page of the message ids matching the query.
+   * @param pageToken - token of the page to list, null for the first
+   */
+  private static ListMessagesResponse listMessagesPage(Gmail service, String query, String pageToken, long maxResults) throws IOException {
+    Gmail.Users.Messages.List listRequest = service.users().messages().list("me");
+    if (pageToken != null) {
+      listRequest.setPageToken(pageToken);
+    }
+    if (query != null) {
+      listRequest.setQ(query);
+    }
+    listRequest.setMaxResults(maxResults);
+    acquireQuota(QuotaRateLimiter.LIST_COST);
+    long startNanos = System.nanoTime();
+    ListMessagesResponse listResponse = listRequest.execute();
+    List<Message> messages = listResponse.getMessages();
+    ExportMetrics.getInstance().record(Stage.LIST, startNanos, messages != null ? messages.size() : 0);
+    return listResponse;
   }
 
-  // from:jobalerts-noreply@linkedin.com
-  // newer_than:1d
-  private static List<Message> searchMessages(Gmail service, String query, long requestedMax) throws IOException {
-    return performFetchGmailMessages(service, query, requestedMax);
+  /**
+   * Lists the message ids to export, handing each page to the consumer. When the journal already holds the complete
+   * listing of an interrupted run that listing is used instead of asking Gmail again, otherwise each page is
+   * journaled before it is handed on.
+   * @param service - Gmail service
+   * @param query - gmail style query, null to list every message
+   * @param requestedMax - a value of 100 should be considered the default
+   * @param journal - progress journal of the export, null when there is none
+   * @param pageConsumer - receives each page of bare messages
+   * @throws IOException should any retrieval issues occur
+   */
+  private static void listMessagesToExport(Gmail service, String query, long requestedMax, ProgressJournal journal,
+                                           Consumer<List<Message>> pageConsumer) throws IOException {
+    if (journal != null && journal.isListingComplete()) {
+      List<Message> listedMessages = journal.listedMessages();
+      logger.info("Reusing the {} messages listed before the export was interrupted", listedMessages.size());
+      Lists.partition(listedMessages, Configuration.getInstance().streamBatchSize()).forEach(pageConsumer);
+      return;
+    }
+    try {
+      performFetchGmailMessages(service, query, requestedMax, page -> {
+        if (journal != null) {
+          try {
+            journal.listed(page);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+        pageConsumer.accept(page);
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    if (journal != null) {
+      journal.listingCompleted();
+    }
+  }
+
+  /**
+   * Opens the progress journal of a run, null when no journal file is configured. An unfinished journal left by
+   * the same command, query and filters is resumed.
+   */
+  private static ProgressJournal openProgressJournal(COMMANDS command, String query) throws IOException {
+    Configuration parserConfiguration = Configuration.getInstance();
+    if (!parserConfiguration.hasProgressJournal()) {
+      return null;
+    }
+    String runKey = command.name().toLowerCase() + " " + Objects.toString(filteredSearchQuery(query), "");
+    return ProgressJournal.open(Path.of(parserConfiguration.progressJournalFile()), runKey);
   }
 
-  private static void outputObjectsAsCSVToFile(List<? extends CSVRecord> messages, String filename) {
-    try (PrintWriter out = new PrintWriter(filename)) {
-      messages.forEach(it -> out.println(it.toCsv()));
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
+  private static void completeProgressJournal(ProgressJournal journal) throws IOException {
+    if (journal != null) {
+      journal.complete();
     }
   }
 
   /**
-   * Given a list of bare messages (just the msg ids), this method fully fetches the message details from Gmail.
-   * The operation is performed in batches of 50msg id requests.
-   * Visit <a href="https://developers.google.com/gmail/api/reference/quota">gmail quotas</a> for daily limits
+   * Creates the fetcher that resolves bare messages (just the msg ids) into the full message details from Gmail.
+   * The operation is performed in batches of 50msg id requests, several of which are kept in flight at once.
    * @param service Gmail service
-   * @param partialMessages - list of message ids to resolve
-   * @return List of parsed messages
-   * @throws IOException should any retrieval issues occur
+   * @return the fetcher used by the export pipelines
    */
-  private static List<Message> batchFetch(Gmail service, List<Message> partialMessages) throws IOException {
-    final int BATCH_CHUCK_SIZE = 50; // Api recommended
-    final List<Message> fullyQualifiedMessageList = new ArrayList<>();
+  private static BatchFetcher createBatchFetcher(Gmail service) {
+    Configuration parserConfiguration = Configuration.getInstance();
+    return new BatchFetcher(service, rateLimiter, parserConfiguration.fetchMaxRetries(), messageCache);
+  }
 
-    final JsonBatchCallback<Message> callback = new JsonBatchCallback<Message>() {
-      public void onSuccess(Message message, HttpHeaders responseHeaders) {
-        fullyQualifiedMessageList.add(message);
-      }
+  private static QuotaRateLimiter createRateLimiter() {
+    Configuration parserConfiguration = Configuration.getInstance();
+    return new QuotaRateLimiter(parserConfiguration.quotaUnitsPerSecond(),
+            parserConfiguration.maxBatchesInFlight(),
+            Duration.ofMillis(500));
+  }
 
-      public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
-        logger.error("Failed to execute batch message fetch request, " + e.getMessage());
-      }
-    };
+  private static MessageCache openMessageCache() throws IOException {
+    Configuration parserConfiguration = Configuration.getInstance();
+    if (!parserConfiguration.hasMessageCache()) {
+      return null;
+    }
+    return MessageCache.open(Path.of(parserConfiguration.messageCacheDirectory()),
+            Duration.ofDays(parserConfiguration.messageCacheMaxAgeDays()),
+            parserConfiguration.messageCacheMaxBytes());
+  }
 
-    BatchRequest batch = service.batch();
-    List<List<Message>> partitionedLists = Lists.partition(partialMessages, BATCH_CHUCK_SIZE);
-    for (List<Message> subList : partitionedLists) {
-      for (Message message : subList) {
-        service.users().messages().get("me", message.getId()).setFormat("full").queue(batch, callback);
-      }
-      batch.execute();
+  private static SeenJobFilter openSeenJobFilter() throws IOException {
+    Configuration parserConfiguration = Configuration.getInstance();
+    if (!parserConfiguration.hasSeenJobsIndex()) {
+      return null;
     }
-    return fullyQualifiedMessageList;
+    return SeenJobFilter.open(Path.of(parserConfiguration.seenJobsIndexFile()), parserConfiguration.csvZoneId());
+  }
+
+  private static ExportPipeline createExportPipeline(Gmail service, MessageParser<?> parser, ProgressJournal journal) throws IOException {
+    return new ExportPipeline(createBatchFetcher(service), new GmailAttachmentLoader(service, rateLimiter), parser,
+            exportPipelineOptions(seenJobFilter), journal);
+  }
+
+  /**
+   * @param recordFilter - decides which records are written, null to write them all
+   */
+  private static ExportPipeline.Options exportPipelineOptions(RecordFilter recordFilter) {
+    Configuration parserConfiguration = Configuration.getInstance();
+    return exportPipelineOptions(parserConfiguration.senderMailFilter(), parserConfiguration.subjectMailFilter(), recordFilter);
+  }
+
+  /**
+   * Whilst watching, every cycle adds to the end of the csv output rather than starting it afresh.
+   * @param senderFilter - sender filter checked against the fetched messages, null for none
+   * @param subjectFilter - subject filter checked against the fetched messages, null for none
+   * @param recordFilter - decides which records are written, null to write them all
+   */
+  private static ExportPipeline.Options exportPipelineOptions(String senderFilter, String subjectFilter, RecordFilter recordFilter) {
+    Configuration parserConfiguration = Configuration.getInstance();
+    return new ExportPipeline.Options(senderFilter,
+            subjectFilter,
+            parserConfiguration.streamBatchSize(),
+            parserConfiguration.parseThreads(),
+            parserConfiguration.gzipCsvOutput(),
+            recordFilter,
+            watching);
+  }
+
+  /**
+   * Adds the configured sender and subject filters to the query as Gmail search operators, so that messages which
+   * would be filtered out are never listed or fetched.
+   * @param query - gmail style query, null to list every message
+   * @return the query including the filters, null if there is no query and no filters
+   */
+  private static String filteredSearchQuery(String query) {
+    Configuration parserConfiguration = Configuration.getInstance();
+    String filteredQuery = new SearchQueryBuilder()
+            .query(query)
+            .from(parserConfiguration.senderMailFilter())
+            .subject(parserConfiguration.subjectMailFilter())
+            .build();
+    logger.debug("Gmail search query: {}", filteredQuery);
+    return filteredQuery;
   }
 
-  private static void genericExportEmails(Gmail service, MessageParser parser, List<Message> partialMessages) throws IOException {
+  private static Set<String> genericExportEmails(Gmail service, MessageParser<?> parser, List<Message> partialMessages,
+                                                 ProgressJournal journal) throws IOException {
     logger.debug("genericExportEmails begin");
     logger.debug(">>> Number of emails listed is: " + partialMessages.size());
 
-    Configuration parserConfiguration = Configuration.getInstance();
-    String configuredEmailSenderFilter = parserConfiguration.subjectMailFilter();
-
-    // batch fetch message
-    List<Message> fullMessages = batchFetch(service, partialMessages);
-
-    // TODO capture post filter msg ids for deletion purposes
-    // Get the base list with filtered email messages
-    List<Message> filteredMessagesList = fullMessages.stream().filter(it -> filterMessageBySender(it, configuredEmailSenderFilter)).toList();
-    // Perform the first operation to get the email message ids from the base list
-    Set<String> messageIds = filteredMessagesList.stream().map(it -> it.getId()).collect(Collectors.toSet());
-    // Performs the second operation to parse the emails from the base list
-    List<? extends CSVRecord> records = filteredMessagesList.stream()
-            .map(parser::parse)
-            .flatMap(Collection::stream)
-            .toList();
-    parser.cleanup();
-
-    outputObjectsAsCSVToFile(records, parser.getCSVOutputFilename());
+    List<? extends CSVRecord> records;
+    Set<String> messageIds;
+    try (ExportPipeline pipeline = createExportPipeline(service, parser, journal)) {
+      records = pipeline.process(partialMessages);
+      messageIds = pipeline.processedMessageIds();
+    }
+
     logger.info("Number of output records found is: {}", records.size());
-    if (parser instanceof LinkedInJobAlertEmailParser) {
-      outputUniqueLinkedinUrlsToFile((List<LinkedInAlert>) records, addFileSuffix(parser.getCSVOutputFilename(), "urls", "txt"));
+    Set<String> urls = new LinkedHashSet<>();
+    collectLinkedinUrls(records, urls);
+    outputUniqueLinkedinUrlsToFile(parser, urls);
+    deleteProcessedEmailMessages(service, messageIds, journal);
+    return messageIds;
+  }
+
+  /**
+   * Streaming version of the export, each page of message ids is fetched, parsed and written out as soon as it has been
+   * listed rather than holding every message in memory at once.
+   */
+  private static Set<String> streamExportEmails(Gmail service, MessageParser<?> parser, String query, long requestedMax,
+                                                ProgressJournal journal) throws IOException {
+    logger.debug("streamExportEmails begin");
+
+    Set<String> urls = new LinkedHashSet<>();
+    Set<String> messageIds;
+    long recordCount;
+    try (ExportPipeline pipeline = createExportPipeline(service, parser, journal)) {
+      pipeline.stream(pageConsumer -> listMessagesToExport(service, query, requestedMax, journal, pageConsumer),
+              records -> collectLinkedinUrls(records, urls));
+      messageIds = pipeline.processedMessageIds();
+      recordCount = pipeline.recordCount();
     }
-    deleteProcessedEmailMessages(service, messageIds);
+
+    logger.info("Number of output records found is: {}", recordCount);
+    outputUniqueLinkedinUrlsToFile(parser, urls);
+    deleteProcessedEmailMessages(service, messageIds, journal);
+    return messageIds;
   }
 
-  private static void outputUniqueLinkedinUrlsToFile(List<LinkedInAlert> records, String outputFilename) {
-    List<String> urls = records.stream().map(LinkedInAlert::link).distinct().toList();
-    outputListToFile(urls, outputFilename);
+  /**
+   * Runs the full search query export, streamed or not depending on the configuration.
+   * @return the ids of the exported messages
+   */
+  private static Set<String> exportEmails(Gmail service, MessageParser<?> parser, String unfilteredQuery, long requestedMax,
+                                         ProgressJournal journal) throws IOException {
+    Configuration parserConfiguration = Configuration.getInstance();
+    String query = filteredSearchQuery(unfilteredQuery);
+    if (parserConfiguration.streamMessages()) {
+      return streamExportEmails(service, parser, query, requestedMax, journal);
+    }
+    List<Message> partialMessages = new ArrayList<>();
+    listMessagesToExport(service, query, requestedMax, journal, partialMessages::addAll);
+    return genericExportEmails(service, parser, partialMessages, journal);
   }
 
-  private static void deleteProcessedEmailMessages(Gmail service, Set<String> messageIds) {
+  /**
+   * Incremental export, only the messages added since the last run are fetched. The first run, or one whose
+   * checkpoint has expired, falls back to the full search query. The mailbox history id is read before the export
+   * starts so that mail arriving mid export is picked up by the next run, a resumed full sync keeps the history id
+   * read by the run it resumes. The messages the history api reports as added are only exported when they match the
+   * search query, see {@link #matchingSearchQuery}.
+   */
+  private static void syncExportEmails(Gmail service, MessageParser<?> parser, ProgressJournal journal) throws IOException {
     Configuration parserConfiguration = Configuration.getInstance();
-    int msgLength = messageIds != null ? messageIds.size() : 0;
-    if (!parserConfiguration.deleteEmailMessages() || msgLength < 1){
+    SyncCheckpoint checkpoint = SyncCheckpoint.load(Path.of(parserConfiguration.syncCheckpointFile()));
+    HistorySync historySync = new HistorySync(service, rateLimiter, parserConfiguration.fetchMaxRetries());
+    Instant startedAt = Instant.now();
+
+    Optional<HistorySync.Changes> changes = checkpoint.isEmpty()
+            ? Optional.empty()
+            : historySync.changesSince(checkpoint.historyId());
+    Set<String> messageIds;
+    BigInteger syncedHistoryId;
+    if (changes.isPresent()) {
+      List<Message> newMessages = changes.get().addedMessages().stream()
+              .filter(it -> !checkpoint.wasExported(it.getId()))
+              .toList();
+      if (!newMessages.isEmpty()) {
+        newMessages = matchingSearchQuery(service, newMessages, checkpoint.syncedAt());
+      }
+      logger.info("Incremental sync found {} messages to export", newMessages.size());
+      syncedHistoryId = changes.get().historyId();
+      messageIds = newMessages.isEmpty() ? Set.of() : genericExportEmails(service, parser, newMessages, journal);
+    } else {
+      logger.info("Performing full sync using the search query");
+      BigInteger journaledHistoryId = journal != null ? journal.historyId() : null;
+      syncedHistoryId = journaledHistoryId != null ? journaledHistoryId : historySync.currentHistoryId();
+      if (journal != null) {
+        journal.historyId(syncedHistoryId);
+      }
+      messageIds = exportEmails(service, parser, parserConfiguration.searchQuery(),
+              parserConfiguration.getMailSearchQueryResultsLength(), journal);
+    }
+
+    checkpoint.update(syncedHistoryId, messageIds, startedAt);
+    checkpoint.save();
+    logger.info("Sync checkpoint saved at history id {}", checkpoint.historyId());
+  }
+
+  /**
+   * Keeps the messages that match the search query, along with the sender and subject filters, so that an incremental
+   * sync exports the same messages a full sync would rather than every message added to the mailbox. The messages
+   * matching the query since shortly before the previous sync are listed and the added messages not among them are
+   * left out.
+   * @param addedMessages - bare messages (just the msg ids) reported as added by the history api
+   * @param syncedAt - when the previous sync started, null to list every matching message
+   */
+  private static List<Message> matchingSearchQuery(Gmail service, List<Message> addedMessages, Instant syncedAt) throws IOException {
+    String query = filteredSearchQuery(Configuration.getInstance().searchQuery());
+    if (query == null) {
+      return addedMessages;
+    }
+    if (syncedAt != null) {
+      query = (query.contains(" ") ? "(" + query + ")" : query) + " after:" + syncedAt.minus(SYNC_QUERY_MARGIN).getEpochSecond();
+    }
+    Set<String> matchingIds = new HashSet<>();
+    performFetchGmailMessages(service, query, Long.MAX_VALUE, page -> page.forEach(it -> matchingIds.add(it.getId())));
+    List<Message> matchingMessages = addedMessages.stream().filter(it -> matchingIds.contains(it.getId())).toList();
+    logger.info("{} of the {} added messages match the search query", matchingMessages.size(), addedMessages.size());
+    return matchingMessages;
+  }
+
+  /**
+   * Runs every configured export job at once against the one Gmail client, each job with its own query, parser and
+   * csv output. The sender and subject filters are not applied, each job's query says which messages it wants.
+   * The progress journal is not used, an interrupted run is started again.
+   */
+  private static void jobsExportEmails(Gmail service) throws IOException {
+    Configuration parserConfiguration = Configuration.getInstance();
+    List<MultiJobExport.Job> jobs = new ArrayList<>();
+    for (Configuration.JobSpec spec : parserConfiguration.jobSpecs()) {
+      jobs.add(new MultiJobExport.Job(spec.name(), spec.query(), spec.limit(),
+              ParserRegistry.getInstance().create(spec.parser(), spec.outputFile())));
+    }
+    if (jobs.isEmpty()) {
+      logger.error("The jobs command requires exportJobs to be configured");
       return;
     }
+    ExportPipeline.Options options = exportPipelineOptions(null, null, seenJobFilter);
+    MultiJobExport export = new MultiJobExport(createBatchFetcher(service), new GmailAttachmentLoader(service, rateLimiter),
+            options, jobs);
+
+    Map<String, Set<String>> urlsByJob = new HashMap<>();
+    jobs.forEach(it -> urlsByJob.put(it.name(), new LinkedHashSet<>()));
+    Map<String, MultiJobExport.JobResult> results = export.run(
+            (query, requestedMax, pageConsumer) -> performFetchGmailMessages(service, query, requestedMax, pageConsumer),
+            (job, records) -> collectLinkedinUrls(records, urlsByJob.get(job.name())));
+
+    Set<String> messageIds = new LinkedHashSet<>();
+    for (MultiJobExport.Job job : jobs) {
+      MultiJobExport.JobResult result = results.get(job.name());
+      logger.info("Job {} wrote {} records to {}", job.name(), result.recordCount(), job.parser().getCSVOutputFilename());
+      outputUniqueLinkedinUrlsToFile(job.parser(), urlsByJob.get(job.name()));
+      messageIds.addAll(result.processedMessageIds());
+    }
+    deleteProcessedEmailMessages(service, messageIds, null);
+  }
 
-    logger.info("Message ids to delete are: " + String.join(", ", messageIds));
+  /**
+   * Runs several parsers over one listing and one fetch, each message going to every parser that handles it. The
+   * sender and subject filters are not applied, each parser picks its own messages. Only messages exported by a parser
+   * with a search query of its own are deleted, those that only a catch-all parser such as basic took are kept.
+   */
+  private static void routeExportEmails(Gmail service) throws IOException {
+    Configuration parserConfiguration = Configuration.getInstance();
+    ParserRegistry registry = ParserRegistry.getInstance();
+    List<String> parserNames = parserConfiguration.routeParsers().isEmpty()
+            ? List.copyOf(registry.names())
+            : parserConfiguration.routeParsers();
+    List<MessageParser<?>> parsers = new ArrayList<>();
+    parserNames.forEach(it -> parsers.add(registry.create(it)));
+    ExportPipeline.Options options = exportPipelineOptions(null, null, seenJobFilter);
+
+    Map<MessageParser<?>, Set<String>> urlsByParser = new HashMap<>();
+    Set<String> messageIds;
+    try (ParserRouter router = new ParserRouter(createBatchFetcher(service), new GmailAttachmentLoader(service, rateLimiter),
+            parsers, options)) {
+      String query = router.searchQuery(parserConfiguration.routeSearchQuery());
+      logger.info("Routing messages matching [{}] to the parsers {}", query, parserNames);
+      List<Message> partialMessages = new ArrayList<>();
+      performFetchGmailMessages(service, query, parserConfiguration.getMailSearchQueryResultsLength(), partialMessages::addAll);
+      router.route(partialMessages,
+              (parser, records) -> collectLinkedinUrls(records, urlsByParser.computeIfAbsent(parser, it -> new LinkedHashSet<>())));
+      // Messages only a catch-all parser exported are kept
+      messageIds = router.deletableMessageIds();
+    }
+    urlsByParser.forEach(GmailMessageExporter::outputUniqueLinkedinUrlsToFile);
+    deleteProcessedEmailMessages(service, messageIds, null);
+  }
 
-    final JsonBatchCallback<Message> callback = new JsonBatchCallback<Message>() {
-      public void onSuccess(Message message, HttpHeaders responseHeaders) {
-        logger.info("Processed gmail messages have been deleted");
+  /**
+   * Keeps running, repeating an export command every watchIntervalSeconds with the one Gmail client, quota limiter,
+   * message cache and seen jobs index, so that a new message reaches the csv output within a cycle rather than
+   * waiting on the next cold start. Each cycle adds to the csv and urls output, and the metrics are written after
+   * each cycle. Runs until the process is stopped, the running cycle is allowed to finish first.
+   * @param commandName - command each cycle runs, one of sync, search, list, jobs or route
+   */
+  private static void watchExportEmails(Gmail service, String commandName) throws IOException {
+    Configuration parserConfiguration = Configuration.getInstance();
+    COMMANDS cycleCommand = COMMANDS.valueOf(commandName.trim().toUpperCase());
+    if (!EnumSet.of(COMMANDS.SYNC, COMMANDS.SEARCH, COMMANDS.LIST, COMMANDS.JOBS, COMMANDS.ROUTE).contains(cycleCommand)) {
+      throw new IllegalArgumentException("The watch command cannot repeat the " + commandName + " command");
+    }
+    Duration interval = Duration.ofSeconds(parserConfiguration.watchIntervalSeconds());
+    watching = true;
+
+    WatchLoop loop = new WatchLoop(interval, () -> {
+      ExportMetrics.getInstance().reset();
+      try {
+        runCommand(service, cycleCommand);
+      } finally {
+        writeMetrics();
       }
+    });
+    logger.info("Watching, running {} every {}s", cycleCommand.name().toLowerCase(), interval.toSeconds());
+    runUntilShutdown(loop);
+  }
+
+  /**
+   * Keeps running, syncing whenever Gmail publishes a change to the mailbox rather than polling for new mail. Gmail
+   * is asked to watch the mailbox and send its changes to the pushTopic, and a Pub/Sub push subscription delivers
+   * them to the receiver listening on pushPort. Each notification wakes a sync, which lists just the new messages with
+   * the history api, and notifications arriving during a sync are covered by one more sync. A sync is also run every
+   * pushFallbackMinutes should a notification have been lost, and the watch is renewed daily.
+   */
+  private static void pushExportEmails(Gmail service) throws IOException {
+    Configuration parserConfiguration = Configuration.getInstance();
+    if (!parserConfiguration.hasPushTopic()) {
+      logger.error("The push command requires the pushTopic to be configured");
+      return;
+    }
+    Duration fallbackInterval = Duration.ofMinutes(parserConfiguration.pushFallbackMinutes());
+    watching = true;
+
+    try (MailboxWatch mailboxWatch = new MailboxWatch(service, rateLimiter, parserConfiguration.pushTopic(),
+            parserConfiguration.pushLabelIds());
+         PushReceiver receiver = new HttpPushReceiver(new InetSocketAddress(parserConfiguration.pushPort()),
+                 parserConfiguration.pushPath(), parserConfiguration.pushVerificationToken())) {
+      WatchLoop loop = new WatchLoop(fallbackInterval, () -> {
+        ExportMetrics.getInstance().reset();
+        try {
+          mailboxWatch.renewIfDue(Instant.now());
+          runCommand(service, COMMANDS.SYNC);
+        } finally {
+          writeMetrics();
+        }
+      });
+      receiver.start(notification -> {
+        logger.debug("Mailbox {} changed, now at history id {}", notification.emailAddress(), notification.historyId());
+        loop.wake();
+      });
+      logger.info("Syncing on each push notification from {}, or every {} minutes", parserConfiguration.pushTopic(),
+              fallbackInterval.toMinutes());
+      runUntilShutdown(loop);
+    }
+  }
 
-      public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
-        logger.error("Failed to delete processed gmail message: " + e.getMessage());
+  /**
+   * Runs the loop until the process is stopped, the running cycle is given a grace period to finish.
+   */
+  private static void runUntilShutdown(WatchLoop loop) throws IOException {
+    java.lang.Thread watchThread = java.lang.Thread.currentThread();
+    java.lang.Thread shutdownHook = new java.lang.Thread(() -> {
+      loop.stop();
+      try {
+        watchThread.join(SHUTDOWN_GRACE.toMillis());
+      } catch (InterruptedException e) {
+        java.lang.Thread.currentThread().interrupt();
       }
-    };
+    }, "watch-shutdown");
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+    loop.run();
+  }
 
+  /**
+   * Re-runs a parser over every message held in the message cache without contacting Gmail, for instance after a
+   * parser has been changed or fixed. Processed messages are not deleted, and jobs exported before are written again.
+   */
+  private static void offlineExportEmails(MessageParser<?> parser) throws IOException {
+    if (messageCache == null) {
+      logger.error("The offline command requires the messageCacheDirectory to be configured");
+      return;
+    }
+    Configuration parserConfiguration = Configuration.getInstance();
+    List<Message> cachedMessages = messageCache.cachedMessages();
+    logger.info("Parsing {} cached messages offline", cachedMessages.size());
+
+    Set<String> urls = new LinkedHashSet<>();
+    long recordCount;
+    try (ExportPipeline pipeline = new ExportPipeline(messageCache, parser, exportPipelineOptions(null))) {
+      pipeline.stream(pageConsumer -> Lists.partition(cachedMessages, parserConfiguration.streamBatchSize()).forEach(pageConsumer),
+              records -> collectLinkedinUrls(records, urls));
+      recordCount = pipeline.recordCount();
+    }
+    logger.info("Number of output records found is: {}", recordCount);
+    outputUniqueLinkedinUrlsToFile(parser, urls);
+  }
+
+  private static void acquireQuota(int units) throws IOException {
     try {
-      BatchRequest batch = service.batch();
-      for (String messageId : messageIds) {
-        service.users().messages().trash("me", messageId).queue(batch, callback);
+      rateLimiter.acquire(units);
+    } catch (InterruptedException e) {
+      java.lang.Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted whilst waiting for Gmail quota");
+    }
+  }
+
+  private static void outputUniqueLinkedinUrlsToFile(MessageParser<?> parser, Set<String> urls) {
+    if (parser instanceof LinkedInJobAlertEmailParser) {
+      String urlsFilename = addFileSuffix(parser.getCSVOutputFilename(), "urls", "txt");
+      if (watching) {
+        // Each cycle adds its urls to those of the cycles before it
+        if (!urls.isEmpty()) {
+          outputListToFile(new ArrayList<>(urls), urlsFilename, true);
+        }
+      } else {
+        outputListToFile(new ArrayList<>(urls), urlsFilename);
       }
-      batch.execute();
-    } catch (IOException io) {
-      logger.error("Failed to successfully delete processed gmail msgs, " + io.getMessage(), io);
     }
   }
 
-  private static boolean filterMessageBySubject(Message message, String subject) {
-    if (subject == null || subject.isEmpty())
-      return true;
-    List<MessagePartHeader> headers = message.getPayload().getHeaders();
-    String messageSubject = headers.stream().filter(s -> s.getName().equalsIgnoreCase("SUBJECT")).map(MessagePartHeader::getValue).findFirst().orElse("Not Found");
-    return messageSubject.contains(subject);
+  private static void collectLinkedinUrls(List<? extends CSVRecord> records, Set<String> urls) {
+    for (CSVRecord record : records) {
+      if (record instanceof LinkedInAlert alert) {
+        urls.add(alert.link());
+      }
+    }
   }
 
-  private static boolean filterMessageBySender(Message message, String sender) {
-    if (sender == null || sender.isEmpty())
-      return true;
-    List<MessagePartHeader> headers = message.getPayload().getHeaders();
-    String messageSender = headers.stream().filter(s -> s.getName().equalsIgnoreCase("FROM")).map(MessagePartHeader::getValue).findFirst().orElse("Not Found");
-    return messageSender.contains(sender);
+  /**
+   * Applies the configured processed label to the processed messages, by default moving them to the trash. Messages
+   * the journal records as already labelled are skipped.
+   * @param journal - progress journal of the export, null when there is none
+   * @return outcome for each message, null when deletion is disabled or there is nothing to delete
+   */
+  private static ProcessedMessageLabeler.Report deleteProcessedEmailMessages(Gmail service, Set<String> processedMessageIds,
+                                                                           ProgressJournal journal) {
+    Configuration parserConfiguration = Configuration.getInstance();
+    Set<String> messageIds = processedMessageIds;
+    if (journal != null && messageIds != null) {
+      messageIds = new LinkedHashSet<>(messageIds);
+      messageIds.removeIf(journal::wasTrashed);
+    }
+    int msgLength = messageIds != null ? messageIds.size() : 0;
+    if (!parserConfiguration.deleteEmailMessages() || msgLength < 1){
+      return null;
+    }
+
+    logger.info("Message ids to delete are: " + String.join(", ", messageIds));
+    try {
+      String labelId = ProcessedMessageLabeler.resolveLabelId(service, rateLimiter, parserConfiguration.processedMessageLabel());
+      ProcessedMessageLabeler labeler = new ProcessedMessageLabeler(service, rateLimiter, parserConfiguration.fetchMaxRetries(), labelId);
+      ProcessedMessageLabeler.Report report = labeler.label(messageIds);
+      if (journal != null) {
+        journal.trashed(report.labelledIds());
+      }
+      return report;
+    } catch (IOException io) {
+      logger.error("Failed to successfully delete processed gmail msgs, " + io.getMessage(), io);
+      return null;
+    }
   }
 
   /**
@@ -312,41 +790,127 @@ public class GmailMessageExporter {
    * <li>Search</li> Search for messages and run the configured msg parser
    * <li>List</li> Simple list of email messages
    * <li>Labels</li> List the gmail labels
+   * <li>Sync</li> Incremental search, exporting only newly arrived messages
+   * <li>Jobs</li> Run every configured export job at once
+   * <li>Route</li> Run several parsers over one fetch of the messages
+   * <li>Watch</li> Keep running, repeating one of the other commands on an interval
+   * <li>Push</li> Keep running, syncing whenever Gmail publishes a mailbox change
+   * <li>Offline</li> Run a parser over the cached messages
    * @param args - command line arguments
    * @throws IOException
    * @throws GeneralSecurityException
    */
   public static void main(String... args) throws IOException, GeneralSecurityException {
-    // Build a new authorized API client service.
-    final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
-    Gmail service = new Gmail.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredentials(HTTP_TRANSPORT))
-        .setApplicationName(APPLICATION_NAME)
-        .build();
-
-    // Obtain instance of utils properties
-    Configuration parserConfiguration = Configuration.getInstance();
-
     // Determine the command to run based on passed arguments, search is the default.
     COMMANDS requestCommand = COMMANDS.SEARCH;
     if (args.length > 0) {
       requestCommand = COMMANDS.valueOf(args[0].toUpperCase());
     }
     logger.debug("Processing command: {}", requestCommand);
+
+    messageCache = openMessageCache();
+    try {
+      if (requestCommand == COMMANDS.OFFLINE) {
+        boolean listParser = args.length > 1 && COMMANDS.LIST.name().equalsIgnoreCase(args[1]);
+        offlineExportEmails(ParserRegistry.getInstance().create(listParser
+                ? Configuration.getInstance().listParser()
+                : Configuration.getInstance().searchParser()));
+        return;
+      }
+
+      // Build a new authorized API client service.
+      final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+      Gmail service = new Gmail.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredentials(HTTP_TRANSPORT))
+          .setApplicationName(APPLICATION_NAME)
+          .build();
+      rateLimiter = createRateLimiter();
+      seenJobFilter = openSeenJobFilter();
+      runCommand(service, requestCommand, args);
+    } finally {
+      try {
+        if (seenJobFilter != null) {
+          seenJobFilter.close();
+        }
+      } finally {
+        if (messageCache != null) {
+          messageCache.close();
+        }
+        writeMetrics();
+      }
+    }
+  }
+
+  /**
+   * Writes the export metrics to the configured report files, logging rather than failing the run should they not be
+   * written.
+   */
+  private static void writeMetrics() {
+    Configuration parserConfiguration = Configuration.getInstance();
+    ExportMetrics metrics = ExportMetrics.getInstance();
+    logger.info("Wrote {} records in {}s, {} records per second, using {} quota units", metrics.recordsWritten(),
+            metrics.elapsed().toSeconds(), Math.round(metrics.recordsPerSecond()), metrics.quotaUnits());
+    try {
+      if (parserConfiguration.hasMetricsReport()) {
+        MetricsReport.write(Path.of(parserConfiguration.metricsReportFile()), MetricsReport.json(metrics));
+      }
+      if (parserConfiguration.hasMetricsPrometheusFile()) {
+        MetricsReport.write(Path.of(parserConfiguration.metricsPrometheusFile()), MetricsReport.prometheus(metrics));
+      }
+    } catch (IOException e) {
+      logger.error("Failed to write the export metrics, " + e.getMessage(), e);
+    }
+  }
+
+  private static void runCommand(Gmail service, COMMANDS requestCommand, String... args) throws IOException, GeneralSecurityException {
+    // Obtain instance of utils properties
+    Configuration parserConfiguration = Configuration.getInstance();
+
     switch (requestCommand) {
       case SEARCH:
-        LinkedInJobAlertEmailParser parser = new LinkedInJobAlertEmailParser();
-        genericExportEmails(service,
-                parser,
-                searchMessages(service, parserConfiguration.searchQuery(),
-                        parserConfiguration.getMailSearchQueryResultsLength()));
+        MessageParser<?> parser = ParserRegistry.getInstance().create(parserConfiguration.searchParser());
+        try (ProgressJournal journal = openProgressJournal(requestCommand, parserConfiguration.searchQuery())) {
+          exportEmails(service,
+                  parser,
+                  parserConfiguration.searchQuery(),
+                  parserConfiguration.getMailSearchQueryResultsLength(),
+                  journal);
+          completeProgressJournal(journal);
+        }
         break;
 
       case LIST:
-        BasicEmailParser basicParser = new BasicEmailParser();
-        genericExportEmails(service,
-                basicParser,
-                listMessages(service,
-                        parserConfiguration.getMailSearchQueryResultsLength()));
+        MessageParser<?> basicParser = ParserRegistry.getInstance().create(parserConfiguration.listParser());
+        try (ProgressJournal journal = openProgressJournal(requestCommand, null)) {
+          exportEmails(service,
+                  basicParser,
+                  null,
+                  parserConfiguration.getMailSearchQueryResultsLength(),
+                  journal);
+          completeProgressJournal(journal);
+        }
+        break;
+
+      case JOBS:
+        jobsExportEmails(service);
+        break;
+
+      case ROUTE:
+        routeExportEmails(service);
+        break;
+
+      case WATCH:
+        watchExportEmails(service, args.length > 1 ? args[1] : parserConfiguration.watchCommand());
+        break;
+
+      case PUSH:
+        pushExportEmails(service);
+        break;
+
+      case SYNC:
+        try (ProgressJournal journal = openProgressJournal(requestCommand, parserConfiguration.searchQuery())) {
+          syncExportEmails(service, ParserRegistry.getInstance().create(parserConfiguration.searchParser()), journal);
+          completeProgressJournal(journal);
+        }
         break;
 
       case LABELS:
@@ -357,7 +921,7 @@ public class GmailMessageExporter {
         String[] messages = new String[] {"1930180cb567165f", "19301be07bb71986", "19301edeeec03d46", "193030179957b913", "193036f3403162c9", "19303a637d968bdf"};
         Set<String> msgsIdsToDelete = new HashSet<>();
         Collections.addAll(msgsIdsToDelete, messages);
-        deleteProcessedEmailMessages(service, msgsIdsToDelete);
+        deleteProcessedEmailMessages(service, msgsIdsToDelete, null);
         break;
 
       default:
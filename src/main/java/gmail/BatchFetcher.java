@@ -0,0 +1,233 @@
+package gmail;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import com.google.common.collect.Lists;
+import metrics.ExportMetrics;
+import metrics.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parser.FetchFormat;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Resolves bare messages (just the msg ids) into fully populated Gmail messages.
+ * The ids are split into batch requests of {@link #BATCH_CHUNK_SIZE} which are sent concurrently on virtual threads.
+ * How many batches are in flight, and how quickly quota is used, is governed by the {@link QuotaRateLimiter}, which
+ * should be shared with every other caller of the api.
+ * Messages that fail with a rate limit or server error are retried in a new batch after a jittered exponential
+ * backoff, up to {@code maxRetries} times, as are whole batches that fail to execute.
+ * Only the parts of each message asked for by the {@link FetchFormat} are requested.
+ * When given a {@link MessageCache} the cache is read first, only the misses are requested from Gmail and the
+ * fetched messages are then added to the cache.
+ * Visit <a href="https://developers.google.com/gmail/api/reference/quota">gmail quotas</a> for daily limits
+ */
+public class BatchFetcher implements MessageFetcher {
+    private static final Logger logger = LoggerFactory.getLogger(BatchFetcher.class.getName());
+
+    public static final int BATCH_CHUNK_SIZE = 50; // Api recommended
+    private static final int DEFAULT_MAX_RETRIES = 5;
+
+    /**
+     * The messages of a batch attempt that should be tried again, and whether Gmail reported it as over quota.
+     */
+    private record BatchAttempt(List<Message> retryableMessages, boolean rateLimited) {}
+
+    private final Gmail service;
+    private final QuotaRateLimiter rateLimiter;
+    private final int maxRetries;
+    private final MessageCache cache;
+
+    /**
+     * A fetcher keeping up to maxBatchesInFlight batches in flight, without limiting the quota units used per second.
+     */
+    public BatchFetcher(Gmail service, int maxBatchesInFlight) {
+        this(service, new QuotaRateLimiter(QuotaRateLimiter.UNLIMITED, maxBatchesInFlight, Duration.ofMillis(500)),
+                DEFAULT_MAX_RETRIES, null);
+    }
+
+    public BatchFetcher(Gmail service, QuotaRateLimiter rateLimiter, int maxRetries, MessageCache cache) {
+        this.service = service;
+        this.rateLimiter = rateLimiter;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.cache = cache;
+    }
+
+    /**
+     * Fetches the given messages in the requested format. Messages are returned in completion order, not request order.
+     * Messages that still fail once their retries are used up are logged and left out.
+     * @param partialMessages - list of message ids to resolve
+     * @param format - how much of each message to fetch
+     * @return List of fetched messages
+     * @throws IOException should any batch fail to execute after retrying
+     */
+    @Override
+    public List<Message> fetch(List<Message> partialMessages, FetchFormat format) throws IOException {
+        final Queue<Message> fullyQualifiedMessages = new ConcurrentLinkedQueue<>();
+        List<Message> uncachedMessages = partialMessages;
+        if (cache != null && MessageCache.canServe(format)) {
+            uncachedMessages = new ArrayList<>();
+            for (Message partialMessage : partialMessages) {
+                Message cachedMessage = cache.get(partialMessage.getId());
+                if (cachedMessage != null) {
+                    fullyQualifiedMessages.add(cachedMessage);
+                } else {
+                    uncachedMessages.add(partialMessage);
+                }
+            }
+            logger.debug("Message cache hits {} of {}", fullyQualifiedMessages.size(), partialMessages.size());
+        }
+        List<List<Message>> partitionedLists = Lists.partition(uncachedMessages, BATCH_CHUNK_SIZE);
+
+        List<Future<Void>> pendingBatches = new ArrayList<>(partitionedLists.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (List<Message> subList : partitionedLists) {
+                pendingBatches.add(executor.submit(() -> {
+                    executeBatch(subList, format, fullyQualifiedMessages);
+                    return null;
+                }));
+            }
+            awaitBatches(pendingBatches);
+        }
+        logger.debug("Fetched {} of {} messages in {} batches", fullyQualifiedMessages.size(), partialMessages.size(), partitionedLists.size());
+        return new ArrayList<>(fullyQualifiedMessages);
+    }
+
+    private void executeBatch(List<Message> subList, FetchFormat format, Queue<Message> sink) throws IOException, InterruptedException {
+        // Callbacks run on this thread as the batch response is parsed
+        final Set<String> delivered = new HashSet<>();
+        List<Message> pending = subList;
+        IOException batchFailure = null;
+        for (int attempt = 0; attempt <= maxRetries && !pending.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                long delay = rateLimiter.backoffDelayMillis(attempt);
+                logger.warn("Retrying {} messages in {}ms, attempt {} of {}", pending.size(), delay, attempt, maxRetries);
+                ExportMetrics.getInstance().retried(Stage.FETCH);
+                Thread.sleep(delay);
+            }
+
+            boolean rateLimited = false;
+            // Wait for quota before taking a slot, so that a slot is never held whilst waiting
+            rateLimiter.acquire(QuotaRateLimiter.GET_COST * pending.size());
+            rateLimiter.acquireSlot();
+            try {
+                BatchAttempt batchAttempt = executeBatchAttempt(pending, format, sink, delivered);
+                pending = batchAttempt.retryableMessages();
+                rateLimited = batchAttempt.rateLimited();
+                batchFailure = null;
+            } catch (GoogleJsonResponseException e) {
+                if (!QuotaRateLimiter.isRetryable(e)) {
+                    throw e;
+                }
+                rateLimited = QuotaRateLimiter.isRateLimited(e);
+                batchFailure = e;
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                batchFailure = e;
+            } finally {
+                rateLimiter.releaseSlot(rateLimited);
+            }
+            if (batchFailure != null) {
+                // The batch may have failed part way through its responses
+                pending = pending.stream().filter(it -> !delivered.contains(it.getId())).toList();
+            }
+        }
+
+        if (batchFailure != null && !pending.isEmpty()) {
+            throw batchFailure;
+        }
+        if (!pending.isEmpty()) {
+            logger.error("Failed to fetch {} messages after {} retries, they will be missing from the export: {}",
+                    pending.size(), maxRetries, pending.stream().map(Message::getId).toList());
+        }
+    }
+
+    private BatchAttempt executeBatchAttempt(List<Message> messages, FetchFormat format, Queue<Message> sink, Set<String> delivered) throws IOException, InterruptedException {
+        final List<Message> retryableMessages = new ArrayList<>();
+        final AtomicBoolean rateLimited = new AtomicBoolean(false);
+        final boolean cacheable = cache != null && MessageCache.isCacheable(format);
+
+        // A BatchRequest is not thread safe, so each chunk gets its own
+        BatchRequest batch = service.batch();
+        for (Message message : messages) {
+            final JsonBatchCallback<Message> callback = new JsonBatchCallback<Message>() {
+                public void onSuccess(Message fullMessage, HttpHeaders responseHeaders) {
+                    delivered.add(message.getId());
+                    sink.add(fullMessage);
+                    if (cacheable) {
+                        try {
+                            cache.put(fullMessage);
+                        } catch (IOException e) {
+                            logger.warn("Failed to cache message {}, {}", fullMessage.getId(), e.getMessage());
+                        }
+                    }
+                }
+
+                public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                    if (QuotaRateLimiter.isRetryable(e)) {
+                        retryableMessages.add(message);
+                        rateLimited.compareAndSet(false, QuotaRateLimiter.isRateLimited(e));
+                    } else {
+                        delivered.add(message.getId());
+                        logger.error("Failed to execute batch message fetch request for {}, {}", message.getId(), e.getMessage());
+                    }
+                }
+            };
+            Gmail.Users.Messages.Get request = service.users().messages().get("me", message.getId()).setFormat(format.format());
+            if (!format.metadataHeaders().isEmpty()) {
+                request.setMetadataHeaders(format.metadataHeaders());
+            }
+            if (format.fields() != null) {
+                request.setFields(format.fields());
+            }
+            request.queue(batch, callback);
+        }
+        long startNanos = System.nanoTime();
+        batch.execute();
+        ExportMetrics.getInstance().record(Stage.FETCH, startNanos, messages.size());
+        return new BatchAttempt(retryableMessages, rateLimited.get());
+    }
+
+    private static void awaitBatches(List<Future<Void>> pendingBatches) throws IOException {
+        IOException failure = null;
+        for (Future<Void> pendingBatch : pendingBatches) {
+            try {
+                pendingBatch.get();
+            } catch (ExecutionException e) {
+                IOException cause = e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pendingBatches.forEach(it -> it.cancel(true));
+                throw new InterruptedIOException("Interrupted whilst waiting for batch fetch to complete");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
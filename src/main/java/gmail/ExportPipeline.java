@@ -0,0 +1,400 @@
+package gmail;
+
+import com.google.api.services.gmail.model.Message;
+import com.google.common.collect.Lists;
+import metrics.ExportMetrics;
+import metrics.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parser.CSVRecord;
+import parser.FetchFormat;
+import parser.MessageParser;
+import parser.RecordFilter;
+import utils.AttachmentLoader;
+import utils.CsvWriter;
+import utils.MessageView;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * The fetch, filter, parse and write stages of an export. A pipeline writes all of its records to the parser's csv
+ * output file through a {@link CsvWriter}, which is opened on construction and closed along with the parser when the
+ * pipeline is closed.
+ * <p>
+ * Messages can either be pushed through as one list with {@link #process(List)}, or streamed page by page from a
+ * {@link MessagePageSource} with {@link #stream(MessagePageSource, Consumer)}. When streaming, listing runs ahead of
+ * the other stages by at most {@link #MAX_PAGES_QUEUED} pages, and each page is fetched, parsed and written in
+ * chunks of {@code streamBatchSize} messages, so memory use does not grow with the number of matching messages.
+ * <p>
+ * Messages are parsed on a fork join pool of {@code parseThreads} workers, so the parser must follow the
+ * concurrency contract of {@link MessageParser}. Each list of messages processed is written out in message order.
+ * <p>
+ * Given a {@link ProgressJournal}, messages it already has written are skipped, the csv output is carried on from the
+ * journaled length when resuming, and each processed list is committed to the csv output and then journaled. A
+ * resumed export writes to the csv file the journal names, and starts the output afresh should that file be missing
+ * or shorter than the journaled length.
+ * <p>
+ * Given a {@link RecordFilter}, only the records it accepts are written, and it is told of them once they have been
+ * committed to the csv output.
+ */
+public class ExportPipeline implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ExportPipeline.class.getName());
+
+    private static final int MAX_PAGES_QUEUED = 2;
+    private static final List<Message> END_OF_PAGES = List.of();
+
+    /**
+     * Records are written oldest message first, messages received at the same time are ordered by id.
+     */
+    static final Comparator<Message> MESSAGE_ORDER = Comparator
+            .comparing(Message::getInternalDate, Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(Message::getId, Comparator.nullsLast(Comparator.naturalOrder()));
+    private static final Comparator<MessageView> VIEW_ORDER = Comparator.comparing(MessageView::message, MESSAGE_ORDER);
+
+    /**
+     * How a pipeline filters, batches, parses and writes its messages.
+     * @param senderFilter - only export messages whose From header contains this, null for all
+     * @param subjectFilter - only export messages whose Subject header contains this, null for all
+     * @param streamBatchSize - messages fetched, parsed and written together when streaming
+     * @param parseThreads - number of threads parsing messages
+     * @param gzipOutput - gzip the csv output, a .gz suffix is added to the parser's file name
+     * @param recordFilter - decides which parsed records are written, null to write them all
+     * @param appendOutput - add to the end of an existing csv output rather than starting it afresh
+     */
+    public record Options(String senderFilter, String subjectFilter, int streamBatchSize, int parseThreads, boolean gzipOutput,
+                          RecordFilter recordFilter, boolean appendOutput) {
+
+        public Options(String senderFilter, String subjectFilter, int streamBatchSize, int parseThreads, boolean gzipOutput) {
+            this(senderFilter, subjectFilter, streamBatchSize, parseThreads, gzipOutput, null, false);
+        }
+    }
+
+    /**
+     * Source of bare messages (just the msg ids) that hands over each page as soon as it has been listed.
+     */
+    @FunctionalInterface
+    public interface MessagePageSource {
+        void forEachPage(Consumer<List<Message>> pageConsumer) throws IOException;
+    }
+
+    private final MessageFetcher fetcher;
+    private final AttachmentLoader attachmentLoader;
+    private final MessageParser<?> parser;
+    private final String senderFilter;
+    private final String subjectFilter;
+    private final int streamBatchSize;
+    private final FetchFormat fetchFormat;
+    private final ForkJoinPool parsePool;
+    private final ProgressJournal journal;
+    private final RecordFilter recordFilter;
+    private final CsvWriter csvOutput;
+    private final Set<String> processedMessageIds = new HashSet<>();
+    private long recordCount = 0;
+
+    /**
+     * The sender and subject filters are expected to already be part of the Gmail search query, see
+     * {@link SearchQueryBuilder}, here they are only checked against the fetched headers.
+     */
+    public ExportPipeline(MessageFetcher fetcher, MessageParser<?> parser, Options options) throws IOException {
+        this(fetcher, null, parser, options);
+    }
+
+    /**
+     * @param attachmentLoader - fetches attachment bodies parsers ask for, null when they cannot be fetched
+     */
+    public ExportPipeline(MessageFetcher fetcher, AttachmentLoader attachmentLoader, MessageParser<?> parser, Options options) throws IOException {
+        this(fetcher, attachmentLoader, parser, options, null);
+    }
+
+    /**
+     * @param journal - records the export's progress, null when the export cannot be resumed
+     */
+    public ExportPipeline(MessageFetcher fetcher, AttachmentLoader attachmentLoader, MessageParser<?> parser, Options options,
+                          ProgressJournal journal) throws IOException {
+        this.fetcher = fetcher;
+        this.attachmentLoader = attachmentLoader;
+        this.parser = parser;
+        this.senderFilter = options.senderFilter();
+        this.subjectFilter = options.subjectFilter();
+        this.streamBatchSize = Math.max(1, options.streamBatchSize());
+        List<String> filterHeaders = new ArrayList<>();
+        if (senderFilter != null && !senderFilter.isEmpty()) {
+            filterHeaders.add("From");
+        }
+        if (subjectFilter != null && !subjectFilter.isEmpty()) {
+            filterHeaders.add("Subject");
+        }
+        this.fetchFormat = parser.fetchFormat().requiringHeaders(filterHeaders.toArray(String[]::new));
+        this.parsePool = options.parseThreads() > 1 ? new ForkJoinPool(options.parseThreads()) : null;
+        this.journal = journal;
+        this.recordFilter = options.recordFilter();
+        Path csvPath = Path.of(options.gzipOutput() ? parser.getCSVOutputFilename() + ".gz" : parser.getCSVOutputFilename());
+        boolean resumingOutput = journal != null && journal.isResuming() && journal.csvLength() >= 0;
+        if (resumingOutput) {
+            // The csv file name may hold the date, so carry on with the file the interrupted run was writing
+            Path journaledCsvPath = journal.csvPath() != null ? journal.csvPath() : csvPath;
+            if (Files.exists(journaledCsvPath) && Files.size(journaledCsvPath) >= journal.csvLength()) {
+                csvPath = journaledCsvPath;
+            } else {
+                logger.warn("The csv output {} of the interrupted export is missing or shorter than the {} bytes written to it, exporting afresh",
+                        journaledCsvPath, journal.csvLength());
+                journal.discardWritten();
+                resumingOutput = false;
+            }
+        }
+        if (resumingOutput) {
+            this.csvOutput = CsvWriter.resume(csvPath, options.gzipOutput(), journal.csvLength());
+            // Messages exported before the restart still need to be deleted
+            processedMessageIds.addAll(journal.exportedIds());
+        } else if (options.appendOutput()) {
+            this.csvOutput = CsvWriter.append(csvPath, options.gzipOutput());
+        } else {
+            this.csvOutput = CsvWriter.open(csvPath, options.gzipOutput());
+        }
+        if (journal != null) {
+            try {
+                journal.csvPath(csvPath);
+            } catch (IOException e) {
+                csvOutput.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Fetches, filters, parses and writes out the given messages.
+     * @param partialMessages - list of message ids to export
+     * @return the records written for these messages
+     * @throws IOException should any retrieval issues occur
+     */
+    public List<? extends CSVRecord> process(List<Message> partialMessages) throws IOException {
+        List<Message> unwrittenMessages = partialMessages;
+        if (journal != null) {
+            unwrittenMessages = partialMessages.stream().filter(it -> !journal.wasWritten(it.getId())).toList();
+            if (unwrittenMessages.isEmpty()) {
+                return List.of();
+            }
+        }
+        // batch fetch message, only as much of each message as the parser and filter need
+        List<Message> fullMessages = fetcher.fetch(unwrittenMessages, fetchFormat);
+        // Each message's headers are indexed once and shared by the filters and the parser
+        return processFetched(fullMessages.stream().map(it -> new MessageView(it, attachmentLoader)).toList());
+    }
+
+    /**
+     * Filters, parses and writes out messages that have already been fetched in at least the pipeline's
+     * {@link #fetchFormat()}, for instance by a {@link ParserRouter} fetching once for many pipelines.
+     * @param fetchedMessages - the fetched messages, each as a view that may be shared with other pipelines
+     * @return the records written for these messages
+     * @throws IOException should the records fail to be written
+     */
+    public List<? extends CSVRecord> processFetched(List<MessageView> fetchedMessages) throws IOException {
+        ExportMetrics metrics = ExportMetrics.getInstance();
+        // Get the base list with filtered email messages, Gmail should already have applied the filters.
+        long filterStart = System.nanoTime();
+        List<MessageView> filteredMessagesList = fetchedMessages.stream()
+                .filter(it -> filterMessageBySender(it, senderFilter))
+                .filter(it -> filterMessageBySubject(it, subjectFilter))
+                .toList();
+        metrics.record(Stage.FILTER, filterStart, fetchedMessages.size());
+        if (filteredMessagesList.size() < fetchedMessages.size()) {
+            logger.warn("{} fetched messages did not match the sender or subject filter", fetchedMessages.size() - filteredMessagesList.size());
+        }
+        filteredMessagesList.forEach(it -> processedMessageIds.add(it.message().getId()));
+        // Parse the emails from the base list
+        long parseStart = System.nanoTime();
+        List<? extends CSVRecord> records = parse(filteredMessagesList);
+        metrics.record(Stage.PARSE, parseStart, filteredMessagesList.size());
+        if (recordFilter != null) {
+            // Sequential, so the filter sees the records in the order they are written
+            records = records.stream().filter(recordFilter::accept).toList();
+        }
+
+        long writeStart = System.nanoTime();
+        for (CSVRecord record : records) {
+            csvOutput.write(record);
+        }
+        recordCount += records.size();
+        if (journal != null || recordFilter != null) {
+            long csvLength = csvOutput.commit();
+            if (journal != null) {
+                // Messages that failed to fetch are left unjournaled so a resumed export tries them again
+                Set<String> fetchedIds = new HashSet<>();
+                fetchedMessages.forEach(it -> fetchedIds.add(it.message().getId()));
+                journal.written(csvLength, fetchedIds,
+                        filteredMessagesList.stream().map(it -> it.message().getId()).toList());
+            }
+            if (recordFilter != null) {
+                recordFilter.written(records);
+            }
+        }
+        metrics.record(Stage.WRITE, writeStart, records.size());
+        metrics.recordsWritten(records.size());
+        return records;
+    }
+
+    /**
+     * Parses the messages across the parse pool. The records come back in {@link #MESSAGE_ORDER}, whatever order
+     * the messages were fetched or parsed in.
+     */
+    private List<? extends CSVRecord> parse(List<MessageView> messages) throws IOException {
+        List<MessageView> orderedMessages = messages.stream().sorted(VIEW_ORDER).toList();
+        if (parsePool == null || orderedMessages.size() < 2) {
+            return parseAll(orderedMessages.stream());
+        }
+        // A parallel stream started from within the pool runs on the pool, toList keeps the encounter order
+        ForkJoinTask<List<CSVRecord>> parsing = parsePool.submit(() -> parseAll(orderedMessages.parallelStream()));
+        try {
+            return parsing.get();
+        } catch (InterruptedException e) {
+            parsing.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst parsing messages");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private List<CSVRecord> parseAll(Stream<MessageView> messages) {
+        return messages
+                .map(parser::parse)
+                .flatMap(Collection::stream)
+                .map(CSVRecord.class::cast)
+                .toList();
+    }
+
+    /**
+     * Streams pages of bare messages from the source through the pipeline. The source is listed on its own thread
+     * and blocks once {@link #MAX_PAGES_QUEUED} pages are waiting to be processed.
+     * @param source - lister publishing pages of message ids
+     * @param writtenRecords - notified with the records written for each chunk of messages
+     * @throws IOException should any listing or retrieval issues occur
+     */
+    public void stream(MessagePageSource source, Consumer<List<? extends CSVRecord>> writtenRecords) throws IOException {
+        final BlockingQueue<List<Message>> pages = new LinkedBlockingQueue<>();
+        final Semaphore pageSlots = new Semaphore(MAX_PAGES_QUEUED);
+        final AtomicReference<IOException> listingFailure = new AtomicReference<>();
+
+        Thread lister = Thread.ofVirtual().name("message-lister").start(() -> {
+            try {
+                source.forEachPage(page -> putPage(pages, pageSlots, page));
+            } catch (PageQueueInterruptedException e) {
+                logger.debug("Message listing stopped early");
+            } catch (IOException | RuntimeException e) {
+                listingFailure.set(e instanceof IOException io ? io : new IOException(e));
+            } finally {
+                // The end marker does not take a slot, so this never blocks
+                pages.add(END_OF_PAGES);
+            }
+        });
+
+        try {
+            List<Message> page;
+            while ((page = pages.take()) != END_OF_PAGES) {
+                pageSlots.release();
+                for (List<Message> chunk : Lists.partition(page, streamBatchSize)) {
+                    writtenRecords.accept(process(chunk));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst streaming messages");
+        } finally {
+            lister.interrupt();
+        }
+
+        if (listingFailure.get() != null) {
+            throw listingFailure.get();
+        }
+    }
+
+    private static void putPage(BlockingQueue<List<Message>> pages, Semaphore pageSlots, List<Message> page) {
+        if (page == null || page.isEmpty()) {
+            return;
+        }
+        try {
+            pageSlots.acquire();
+        } catch (InterruptedException e) {
+            throw new PageQueueInterruptedException();
+        }
+        pages.add(page);
+    }
+
+    /**
+     * Raised on the lister thread when the consuming side has stopped and no more pages are wanted.
+     */
+    private static class PageQueueInterruptedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * @return how much of each message the pipeline fetches, its parser's format plus any headers filtered on
+     */
+    public FetchFormat fetchFormat() {
+        return fetchFormat;
+    }
+
+    public Set<String> processedMessageIds() {
+        return processedMessageIds;
+    }
+
+    public long recordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (parsePool != null) {
+            parsePool.shutdown();
+        }
+        try {
+            parser.cleanup();
+        } finally {
+            csvOutput.close();
+        }
+    }
+
+    public static boolean filterMessageBySubject(Message message, String subject) {
+        return filterMessageBySubject(MessageView.of(message), subject);
+    }
+
+    public static boolean filterMessageBySubject(MessageView message, String subject) {
+        if (subject == null || subject.isEmpty())
+            return true;
+        String messageSubject = message.headers().value("Subject", "Not Found");
+        return messageSubject.contains(subject);
+    }
+
+    public static boolean filterMessageBySender(Message message, String sender) {
+        return filterMessageBySender(MessageView.of(message), sender);
+    }
+
+    public static boolean filterMessageBySender(MessageView message, String sender) {
+        if (sender == null || sender.isEmpty())
+            return true;
+        String messageSender = message.headers().value("From", "Not Found");
+        return messageSender.contains(sender);
+    }
+}
@@ -0,0 +1,32 @@
+package gmail;
+
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.MessagePartBody;
+import utils.AttachmentLoader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Fetches held back message part bodies with the Gmail attachments api, within the shared quota.
+ */
+public class GmailAttachmentLoader implements AttachmentLoader {
+    private final Gmail service;
+    private final QuotaRateLimiter rateLimiter;
+
+    public GmailAttachmentLoader(Gmail service, QuotaRateLimiter rateLimiter) {
+        this.service = service;
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public MessagePartBody load(String messageId, String attachmentId) throws IOException {
+        try {
+            rateLimiter.acquire(QuotaRateLimiter.ATTACHMENT_GET_COST);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting for Gmail quota");
+        }
+        return service.users().messages().attachments().get("me", messageId, attachmentId).execute();
+    }
+}
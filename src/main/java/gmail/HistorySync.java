@@ -0,0 +1,169 @@
+package gmail;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.History;
+import com.google.api.services.gmail.model.HistoryMessageAdded;
+import com.google.api.services.gmail.model.ListHistoryResponse;
+import com.google.api.services.gmail.model.Message;
+import metrics.ExportMetrics;
+import metrics.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Uses the Gmail history api to find the messages added to the mailbox since a given historyId, so that an
+ * export only has to fetch new mail rather than re-running the full search query. Every call takes its quota from
+ * the shared {@link QuotaRateLimiter}, and one that is rate limited or hits a server error is retried with a growing
+ * delay.
+ * See <a href="https://developers.google.com/gmail/api/guides/sync">Synchronizing Clients with Gmail</a>
+ */
+public class HistorySync {
+    private static final Logger logger = LoggerFactory.getLogger(HistorySync.class.getName());
+
+    private static final int HISTORY_EXPIRED_STATUS = 404;
+    // Messages we have sent or not yet sent are never export candidates
+    private static final Set<String> EXCLUDED_LABELS = Set.of("DRAFT", "SENT", "SPAM", "TRASH");
+
+    /**
+     * The messages added since the requested history id, and the history id of the mailbox when they were listed.
+     */
+    public record Changes(List<Message> addedMessages, BigInteger historyId) {}
+
+    /**
+     * A Gmail api call.
+     */
+    @FunctionalInterface
+    private interface Call<T> {
+        T execute() throws IOException;
+    }
+
+    private final Gmail service;
+    private final QuotaRateLimiter rateLimiter;
+    private final int maxRetries;
+
+    /**
+     * @param maxRetries - number of times a rate limited or failed call is retried
+     */
+    public HistorySync(Gmail service, QuotaRateLimiter rateLimiter, int maxRetries) {
+        this.service = service;
+        this.rateLimiter = rateLimiter;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * The current history id of the mailbox, to be recorded before a full export starts.
+     */
+    public BigInteger currentHistoryId() throws IOException {
+        return execute(service.users().getProfile("me")::execute, QuotaRateLimiter.PROFILE_COST).getHistoryId();
+    }
+
+    /**
+     * Lists the messages added to the mailbox after the given history id.
+     * @param startHistoryId - history id recorded by the previous export
+     * @return the added messages (just the msg ids), or empty if the history id is too old and a full sync is needed
+     * @throws IOException should any retrieval issues occur
+     */
+    public Optional<Changes> changesSince(BigInteger startHistoryId) throws IOException {
+        Map<String, Message> addedMessages = new LinkedHashMap<>();
+        BigInteger latestHistoryId = startHistoryId;
+        String pageToken = null;
+        int requestCount = 0;
+        do {
+            Gmail.Users.History.List request = service.users().history().list("me")
+                    .setStartHistoryId(startHistoryId)
+                    .setHistoryTypes(List.of("messageAdded"));
+            if (pageToken != null) {
+                request.setPageToken(pageToken);
+            }
+            ListHistoryResponse response;
+            try {
+                response = execute(request::execute, QuotaRateLimiter.HISTORY_LIST_COST);
+            } catch (GoogleJsonResponseException e) {
+                if (e.getStatusCode() == HISTORY_EXPIRED_STATUS) {
+                    logger.info("History id {} is no longer available, a full sync is required", startHistoryId);
+                    return Optional.empty();
+                }
+                throw e;
+            }
+            requestCount++;
+            for (History history : orEmpty(response.getHistory())) {
+                for (HistoryMessageAdded added : orEmpty(history.getMessagesAdded())) {
+                    Message message = added.getMessage();
+                    if (message != null && isIncoming(message)) {
+                        addedMessages.putIfAbsent(message.getId(), message);
+                    }
+                }
+            }
+            if (response.getHistoryId() != null && response.getHistoryId().compareTo(latestHistoryId) > 0) {
+                latestHistoryId = response.getHistoryId();
+            }
+            pageToken = response.getNextPageToken();
+        } while (pageToken != null);
+
+        logger.info("Found {} new messages since history id {} in {} requests", addedMessages.size(), startHistoryId, requestCount);
+        return Optional.of(new Changes(new ArrayList<>(addedMessages.values()), latestHistoryId));
+    }
+
+    /**
+     * Makes the call, retrying it when it is rate limited or fails with a server or network error.
+     */
+    private <T> T execute(Call<T> call, int cost) throws IOException {
+        IOException lastFailure = null;
+        try {
+            for (int attempt = 0; attempt <= maxRetries; attempt++) {
+                if (attempt > 0) {
+                    long delay = rateLimiter.backoffDelayMillis(attempt);
+                    logger.warn("Retrying a history call in {}ms, attempt {} of {}", delay, attempt, maxRetries);
+                    ExportMetrics.getInstance().retried(Stage.LIST);
+                    Thread.sleep(delay);
+                }
+
+                boolean rateLimited = false;
+                rateLimiter.acquireSlot();
+                try {
+                    rateLimiter.acquire(cost);
+                    long startNanos = System.nanoTime();
+                    T result = call.execute();
+                    ExportMetrics.getInstance().record(Stage.LIST, startNanos, 1);
+                    return result;
+                } catch (GoogleJsonResponseException e) {
+                    if (!QuotaRateLimiter.isRetryable(e)) {
+                        throw e;
+                    }
+                    rateLimited = QuotaRateLimiter.isRateLimited(e);
+                    lastFailure = e;
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    lastFailure = e;
+                } finally {
+                    rateLimiter.releaseSlot(rateLimited);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst calling the Gmail history api");
+        }
+        throw lastFailure;
+    }
+
+    private static boolean isIncoming(Message message) {
+        List<String> labelIds = message.getLabelIds();
+        return labelIds == null || labelIds.stream().noneMatch(EXCLUDED_LABELS::contains);
+    }
+
+    private static <T> List<T> orEmpty(List<T> list) {
+        return list != null ? list : List.of();
+    }
+}
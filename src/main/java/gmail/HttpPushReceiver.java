@@ -0,0 +1,183 @@
+package gmail;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.Key;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Receives Gmail's mailbox change notifications as the push requests of a Pub/Sub subscription, using the http server
+ * built into the JDK.
+ * <p>
+ * Each request is a Pub/Sub envelope whose base64 data holds the mailbox address and history id. A request is
+ * answered 204 once the listener has taken it, or 500 should the listener fail so that Pub/Sub sends it again. A
+ * notification that cannot be read will never be readable, so it is logged and answered 204 too rather than being
+ * sent again for days. When a verification token is configured, requests without it as their {@code token} query
+ * parameter are refused with 403.
+ * See <a href="https://developers.google.com/gmail/api/guides/push">Push Notifications</a>
+ */
+public class HttpPushReceiver implements PushReceiver {
+    private static final Logger logger = LoggerFactory.getLogger(HttpPushReceiver.class.getName());
+
+    private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+    private static final int MAX_BODY_BYTES = 64 * 1024; // notifications are a few hundred bytes
+    private static final int STOP_DELAY_SECONDS = 1;
+
+    /**
+     * The body of a Pub/Sub push request.
+     */
+    public static class PushEnvelope {
+        @Key
+        public PubsubMessage message;
+        @Key
+        public String subscription;
+    }
+
+    public static class PubsubMessage {
+        @Key
+        public String data;
+        @Key
+        public String messageId;
+    }
+
+    /**
+     * The data Gmail publishes for a mailbox change.
+     */
+    public static class MailboxChange {
+        @Key
+        public String emailAddress;
+        @Key
+        public BigInteger historyId;
+    }
+
+    private final InetSocketAddress address;
+    private final String path;
+    private final byte[] verificationToken;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param address - address to listen on, port 0 picks a free port
+     * @param path - path push requests are sent to, such as /gmail/push
+     * @param verificationToken - token push requests must carry, empty or null to accept any request
+     */
+    public HttpPushReceiver(InetSocketAddress address, String path, String verificationToken) {
+        this.address = address;
+        this.path = path;
+        this.verificationToken = verificationToken == null || verificationToken.isEmpty()
+                ? null
+                : verificationToken.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void start(Consumer<Notification> listener) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("The push receiver has already been started");
+        }
+        server = HttpServer.create(address, 0);
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext(path, exchange -> {
+            try (exchange) {
+                exchange.sendResponseHeaders(handle(exchange, listener), -1);
+            }
+        });
+        server.start();
+        logger.info("Receiving push notifications on port {} at {}", port(), path);
+    }
+
+    private int handle(HttpExchange exchange, Consumer<Notification> listener) throws IOException {
+        if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            return 405;
+        }
+        if (verificationToken != null && !MessageDigest.isEqual(verificationToken, requestToken(exchange))) {
+            logger.warn("Refused a push request from {} without the verification token", exchange.getRemoteAddress());
+            return 403;
+        }
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readNBytes(MAX_BODY_BYTES + 1);
+        }
+        if (body.length > MAX_BODY_BYTES) {
+            return 413;
+        }
+        Notification notification;
+        try {
+            notification = parse(new String(body, StandardCharsets.UTF_8));
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Dropping a push notification that cannot be read: " + e.getMessage());
+            return 204;
+        }
+        try {
+            listener.accept(notification);
+        } catch (RuntimeException e) {
+            logger.error("Failed to take push notification for history id " + notification.historyId() + ", " + e.getMessage(), e);
+            return 500;
+        }
+        return 204;
+    }
+
+    /**
+     * Reads the mailbox change out of a Pub/Sub push request body.
+     * @throws IOException or IllegalArgumentException should the body not be a Gmail notification
+     */
+    static Notification parse(String body) throws IOException {
+        PushEnvelope envelope = JSON_FACTORY.fromString(body, PushEnvelope.class);
+        if (envelope == null || envelope.message == null || envelope.message.data == null) {
+            throw new IllegalArgumentException("the request has no message data");
+        }
+        String data = new String(Base64.getDecoder().decode(envelope.message.data), StandardCharsets.UTF_8);
+        MailboxChange change = JSON_FACTORY.fromString(data, MailboxChange.class);
+        if (change == null || change.historyId == null) {
+            throw new IllegalArgumentException("message " + envelope.message.messageId + " has no history id");
+        }
+        return new Notification(change.emailAddress, change.historyId);
+    }
+
+    private static byte[] requestToken(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("token=")) {
+                    return URLDecoder.decode(parameter.substring("token=".length()), StandardCharsets.UTF_8)
+                            .getBytes(StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return new byte[0];
+    }
+
+    /**
+     * @return the port listened on
+     */
+    public synchronized int port() {
+        return server != null ? server.getAddress().getPort() : address.getPort();
+    }
+
+    /**
+     * Stops listening, giving requests being answered a moment to finish.
+     */
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(STOP_DELAY_SECONDS);
+            executor.close();
+            server = null;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package gmail;
+
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.WatchRequest;
+import com.google.api.services.gmail.model.WatchResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Asks Gmail to publish the changes to the mailbox to a Pub/Sub topic, for a {@link PushReceiver} to pick up.
+ * <p>
+ * A watch lapses after seven days, so it is renewed once a day, as Gmail recommends, or sooner should it be about to
+ * expire. Closing stops the notifications.
+ * See <a href="https://developers.google.com/gmail/api/guides/push">Push Notifications</a>
+ */
+public class MailboxWatch implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MailboxWatch.class.getName());
+
+    private static final Duration RENEW_INTERVAL = Duration.ofDays(1);
+
+    private final Gmail service;
+    private final QuotaRateLimiter rateLimiter;
+    private final String topicName;
+    private final List<String> labelIds;
+    private Instant renewedAt;
+    private Instant expiration;
+
+    /**
+     * @param topicName - Pub/Sub topic Gmail has been granted publish rights on, such as projects/my-project/topics/gmail
+     * @param labelIds - only changes to messages with these labels are published, empty for every change
+     */
+    public MailboxWatch(Gmail service, QuotaRateLimiter rateLimiter, String topicName, List<String> labelIds) {
+        this.service = service;
+        this.rateLimiter = rateLimiter;
+        this.topicName = topicName;
+        this.labelIds = List.copyOf(labelIds);
+    }
+
+    /**
+     * Starts the watch, or renews it when it is a day old or about to expire.
+     * @return true when the watch was started or renewed
+     */
+    public synchronized boolean renewIfDue(Instant now) throws IOException {
+        if (renewedAt != null && now.isBefore(renewedAt.plus(RENEW_INTERVAL))
+                && (expiration == null || now.isBefore(expiration.minus(RENEW_INTERVAL)))) {
+            return false;
+        }
+        WatchRequest request = new WatchRequest().setTopicName(topicName);
+        if (!labelIds.isEmpty()) {
+            request.setLabelIds(labelIds).setLabelFilterAction("include");
+        }
+        acquire(QuotaRateLimiter.WATCH_COST);
+        WatchResponse response = service.users().watch("me", request).execute();
+        renewedAt = now;
+        expiration = response.getExpiration() != null ? Instant.ofEpochMilli(response.getExpiration()) : null;
+        logger.info("Watching the mailbox on {} from history id {} until {}", topicName, response.getHistoryId(), expiration);
+        return true;
+    }
+
+    /**
+     * Stops Gmail publishing changes to the mailbox.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (renewedAt != null) {
+            acquire(QuotaRateLimiter.STOP_COST);
+            service.users().stop("me").execute();
+            renewedAt = null;
+            expiration = null;
+            logger.info("Stopped watching the mailbox");
+        }
+    }
+
+    private void acquire(int units) throws IOException {
+        try {
+            rateLimiter.acquire(units);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting for Gmail quota");
+        }
+    }
+}
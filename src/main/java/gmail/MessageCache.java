@@ -0,0 +1,298 @@
+package gmail;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.gmail.model.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parser.FetchFormat;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Local on-disk store of fetched Gmail messages keyed by message id, so that re-running an export, for instance with a
+ * different or fixed parser, does not have to fetch the same messages from Gmail again.
+ * <p>
+ * Messages are appended as json to a single segment file, each record laid out as
+ * {@code [int id length][long stored at millis][int payload length][id][payload]}. The id to offset index is held in
+ * memory and rebuilt by scanning the segment on open, an incomplete record left at the end by a crash is truncated.
+ * On open, records older than the maximum age are dropped and the newest records are kept up to the maximum size,
+ * with the segment rewritten if anything was dropped or superseded. Should a put take the segment over the maximum
+ * size, it is trimmed the same way down to three quarters of the maximum, so that a long running watch keeps the
+ * cache bounded without rewriting it on every put.
+ * <p>
+ * Only messages fetched in full are stored, a cached message is then used for any request other than raw.
+ * Reads and writes may come from several fetch threads at once, reads waiting only while the segment is rewritten.
+ */
+public class MessageCache implements MessageFetcher, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MessageCache.class.getName());
+
+    private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+    private static final String SEGMENT_FILE = "messages.seg";
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private static final double EVICT_ON_PUT_FRACTION = 0.75;
+
+    private record Entry(long recordOffset, int idLength, int payloadLength, long storedAt) {
+        long payloadOffset() {
+            return recordOffset + RECORD_HEADER_BYTES + idLength;
+        }
+
+        long recordLength() {
+            return RECORD_HEADER_BYTES + idLength + payloadLength;
+        }
+    }
+
+    private final Path segmentPath;
+    private final long maxAgeMillis;
+    private final long maxBytes;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private FileChannel segment;
+    private long segmentSize;
+
+    private MessageCache(Path segmentPath, long maxAgeMillis, long maxBytes) {
+        this.segmentPath = segmentPath;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Opens, or creates, the cache held in the given directory.
+     * @param directory - directory holding the cache segment
+     * @param maxAge - age after which cached messages are no longer used
+     * @param maxBytes - size the segment is trimmed back to on open, and kept under as messages are put
+     * @return the opened cache
+     * @throws IOException should the segment not be readable
+     */
+    public static MessageCache open(Path directory, Duration maxAge, long maxBytes) throws IOException {
+        Files.createDirectories(directory);
+        MessageCache cache = new MessageCache(directory.resolve(SEGMENT_FILE), maxAge.toMillis(), maxBytes);
+        cache.load();
+        cache.evict(maxBytes);
+        logger.info("Opened message cache with {} messages, {} bytes", cache.index.size(), cache.segmentSize);
+        return cache;
+    }
+
+    private void load() throws IOException {
+        index.clear();
+        segment = FileChannel.open(segmentPath, CREATE, READ, WRITE);
+        long size = segment.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        while (position + RECORD_HEADER_BYTES <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int idLength = header.getInt();
+            long storedAt = header.getLong();
+            int payloadLength = header.getInt();
+            Entry entry = new Entry(position, idLength, payloadLength, storedAt);
+            if (idLength <= 0 || payloadLength < 0 || position + entry.recordLength() > size) {
+                break;
+            }
+            ByteBuffer id = ByteBuffer.allocate(idLength);
+            readFully(id, position + RECORD_HEADER_BYTES);
+            // Later records for the same id supersede earlier ones
+            index.put(new String(id.array(), StandardCharsets.UTF_8), entry);
+            position += entry.recordLength();
+        }
+        if (position < size) {
+            logger.warn("Discarding {} bytes of incomplete message cache record", size - position);
+            segment.truncate(position);
+        }
+        segmentSize = position;
+    }
+
+    /**
+     * Drops expired records and the oldest records beyond the given size, rewriting the segment when needed.
+     */
+    private void evict(long targetBytes) throws IOException {
+        segmentLock.writeLock().lock();
+        try {
+            evictLocked(targetBytes);
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    private void evictLocked(long targetBytes) throws IOException {
+        long now = System.currentTimeMillis();
+        List<Entry> newestFirst = new ArrayList<>(index.values());
+        newestFirst.sort(Comparator.comparingLong(Entry::storedAt).thenComparingLong(Entry::recordOffset).reversed());
+
+        List<Entry> kept = new ArrayList<>();
+        long keptBytes = 0;
+        for (Entry entry : newestFirst) {
+            if (isExpired(entry, now) || keptBytes + entry.recordLength() > targetBytes) {
+                continue;
+            }
+            kept.add(entry);
+            keptBytes += entry.recordLength();
+        }
+        if (keptBytes == segmentSize) {
+            return;
+        }
+
+        // Rewrite the kept records in their original order
+        kept.sort(Comparator.comparingLong(Entry::recordOffset));
+        Path compacted = segmentPath.resolveSibling(SEGMENT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(compacted, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            for (Entry entry : kept) {
+                long transferred = 0;
+                while (transferred < entry.recordLength()) {
+                    transferred += segment.transferTo(entry.recordOffset() + transferred, entry.recordLength() - transferred, out);
+                }
+            }
+            out.force(true);
+        }
+        segment.close();
+        Files.move(compacted, segmentPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Evicted {} bytes from the message cache", segmentSize - keptBytes);
+        load();
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.storedAt() > maxAgeMillis;
+    }
+
+    /**
+     * @return the cached message, or null if it is not cached or has expired
+     */
+    public Message get(String messageId) throws IOException {
+        ByteBuffer payload;
+        segmentLock.readLock().lock();
+        try {
+            Entry entry = index.get(messageId);
+            if (entry == null || isExpired(entry, System.currentTimeMillis())) {
+                return null;
+            }
+            payload = ByteBuffer.allocate(entry.payloadLength());
+            readFully(payload, entry.payloadOffset());
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+        return JSON_FACTORY.fromString(new String(payload.array(), StandardCharsets.UTF_8), Message.class);
+    }
+
+    public void put(Message message) throws IOException {
+        byte[] id = message.getId().getBytes(StandardCharsets.UTF_8);
+        byte[] payload = JSON_FACTORY.toByteArray(message);
+        segmentLock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            Entry entry = new Entry(segmentSize, id.length, payload.length, now);
+
+            ByteBuffer record = ByteBuffer.allocate((int) entry.recordLength());
+            record.putInt(id.length).putLong(now).putInt(payload.length).put(id).put(payload).flip();
+            long position = segmentSize;
+            while (record.hasRemaining()) {
+                position += segment.write(record, position);
+            }
+            segmentSize = position;
+            index.put(message.getId(), entry);
+            if (segmentSize > maxBytes) {
+                evictLocked((long) (maxBytes * EVICT_ON_PUT_FRACTION));
+            }
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes held in the segment, including superseded records not yet evicted
+     */
+    public long sizeBytes() {
+        segmentLock.readLock().lock();
+        try {
+            return segmentSize;
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String messageId) {
+        Entry entry = index.get(messageId);
+        return entry != null && !isExpired(entry, System.currentTimeMillis());
+    }
+
+    /**
+     * @return bare messages for every message held in the cache, for parsing offline
+     */
+    public List<Message> cachedMessages() {
+        return index.keySet().stream().filter(this::contains).map(it -> new Message().setId(it)).toList();
+    }
+
+    /**
+     * Only complete messages are cached, these can stand in for any format apart from raw.
+     */
+    public static boolean isCacheable(FetchFormat format) {
+        return format.isFull() && format.fields() == null;
+    }
+
+    public static boolean canServe(FetchFormat format) {
+        return !FetchFormat.RAW.format().equals(format.format());
+    }
+
+    /**
+     * Resolves the messages from the cache alone, any that are not cached are left out.
+     */
+    @Override
+    public List<Message> fetch(List<Message> partialMessages, FetchFormat format) throws IOException {
+        if (!canServe(format)) {
+            logger.warn("The message cache cannot provide messages in {} format", format.format());
+            return List.of();
+        }
+        List<Message> fullMessages = new ArrayList<>(partialMessages.size());
+        for (Message partialMessage : partialMessages) {
+            Message message = get(partialMessage.getId());
+            if (message != null) {
+                fullMessages.add(message);
+            } else {
+                logger.debug("Message {} is not in the cache", partialMessage.getId());
+            }
+        }
+        return fullMessages;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = segment.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of message cache segment");
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        segmentLock.writeLock().lock();
+        try {
+            segment.force(false);
+            segment.close();
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package gmail;
+
+import com.google.api.services.gmail.model.Message;
+import parser.FetchFormat;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Resolves bare messages (just the msg ids) into fully populated Gmail messages.
+ */
+@FunctionalInterface
+public interface MessageFetcher {
+    /**
+     * @param partialMessages - list of message ids to resolve
+     * @param format - how much of each message is needed
+     * @return the messages that could be resolved, in no particular order
+     * @throws IOException should any retrieval issues occur
+     */
+    List<Message> fetch(List<Message> partialMessages, FetchFormat format) throws IOException;
+}
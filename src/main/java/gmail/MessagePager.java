@@ -0,0 +1,143 @@
+package gmail;
+
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Pages through the messages matching a query, listing exactly {@code limit} messages, or every one when fewer match.
+ * <p>
+ * Each page asks for no more than the messages still wanted, up to the {@link #MAX_PAGE_SIZE} Gmail allows, and the
+ * last page is trimmed should Gmail return more. Paging carries on for as long as Gmail hands back a page token,
+ * even past an empty page, and stops should the same token come back twice.
+ * <p>
+ * Pages are only requested as they are needed, so a caller taking the first few ids from {@link #iterator()} or
+ * {@link #stream()} only pays for the pages holding them. A pager lists once, it is not thread safe.
+ */
+public class MessagePager implements Iterable<Message> {
+    public static final long MAX_PAGE_SIZE = 500; // the most Gmail returns in one page
+
+    private final PageRequester requester;
+    private final String query;
+    private final long limit;
+    private final Set<String> seenTokens = new HashSet<>();
+    private String nextPageToken;
+    private long listed = 0;
+    private int requests = 0;
+    private boolean exhausted = false;
+
+    /**
+     * @param query - gmail style query, null to list every message
+     * @param limit - the most messages to list
+     */
+    public MessagePager(PageRequester requester, String query, long limit) {
+        this.requester = requester;
+        this.query = query;
+        this.limit = Math.max(0, limit);
+        this.exhausted = this.limit == 0;
+    }
+
+    /**
+     * Lists the next page.
+     * @return the page, trimmed to the limit, or null once the listing is complete
+     */
+    public List<Message> nextPage() throws IOException {
+        if (exhausted) {
+            return null;
+        }
+        long pageSize = Math.min(MAX_PAGE_SIZE, limit - listed);
+        ListMessagesResponse response = requester.list(query, nextPageToken, pageSize);
+        requests++;
+        List<Message> messages = response.getMessages() != null ? response.getMessages() : List.of();
+        if (messages.size() > limit - listed) {
+            messages = messages.subList(0, (int) (limit - listed));
+        }
+        listed += messages.size();
+        nextPageToken = response.getNextPageToken();
+        exhausted = listed >= limit || nextPageToken == null || !seenTokens.add(nextPageToken);
+        return messages;
+    }
+
+    /**
+     * Lists every page, handing each non empty page to the consumer as soon as it is returned.
+     */
+    public void forEachPage(Consumer<List<Message>> pageConsumer) throws IOException {
+        List<Message> page;
+        while ((page = nextPage()) != null) {
+            if (!page.isEmpty()) {
+                pageConsumer.accept(page);
+            }
+        }
+    }
+
+    /**
+     * A lazy iterator over the listed messages, a page is requested when the previous one has been used up. A failure
+     * to list a page is thrown as an {@link UncheckedIOException}.
+     */
+    @Override
+    public Iterator<Message> iterator() {
+        return new Iterator<>() {
+            private final Queue<Message> page = new ArrayDeque<>();
+
+            @Override
+            public boolean hasNext() {
+                while (page.isEmpty()) {
+                    List<Message> next;
+                    try {
+                        next = nextPage();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    if (next == null) {
+                        return false;
+                    }
+                    page.addAll(next);
+                }
+                return true;
+            }
+
+            @Override
+            public Message next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.remove();
+            }
+        };
+    }
+
+    /**
+     * A lazy, sequential stream of the listed messages, see {@link #iterator()}.
+     */
+    public Stream<Message> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * @return messages listed so far
+     */
+    public long listed() {
+        return listed;
+    }
+
+    /**
+     * @return pages requested so far
+     */
+    public int requests() {
+        return requests;
+    }
+}
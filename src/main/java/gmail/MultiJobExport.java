@@ -0,0 +1,220 @@
+package gmail;
+
+import com.google.api.services.gmail.model.Message;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parser.CSVRecord;
+import parser.FetchFormat;
+import parser.MessageParser;
+import utils.AttachmentLoader;
+import utils.MessageView;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Runs several export jobs, each with its own search query and parser, against one Gmail client and fetcher.
+ * <p>
+ * Every job is listed first, concurrently. The listed messages are then fetched once, in chunks of
+ * {@code streamBatchSize}, in a {@link FetchFormat} that covers the format of every job, and each chunk is handed to
+ * the {@link ExportPipeline} of every job that listed messages in it. A message matching several jobs is therefore
+ * fetched only once. The pipelines process a chunk concurrently and each writes its own csv output.
+ */
+public class MultiJobExport {
+    private static final Logger logger = LoggerFactory.getLogger(MultiJobExport.class.getName());
+
+    /**
+     * @param name - job name, used in logging and to report the job's result
+     * @param query - gmail search query, null to list every message
+     * @param requestedMax - max messages to list
+     * @param parser - parser the job's messages are run through, with its own csv output
+     */
+    public record Job(String name, String query, long requestedMax, MessageParser<?> parser) {}
+
+    /**
+     * @param processedMessageIds - ids of the messages exported by the job
+     * @param recordCount - records written to the job's csv output
+     */
+    public record JobResult(Set<String> processedMessageIds, long recordCount) {}
+
+    /**
+     * Lists the bare messages (just the msg ids) matching a query, handing over each page as it is listed.
+     */
+    @FunctionalInterface
+    public interface MessageLister {
+        void list(String query, long requestedMax, Consumer<List<Message>> pageConsumer) throws IOException;
+    }
+
+    /**
+     * Notified with the records written for a chunk of a job's messages, called concurrently for different jobs.
+     */
+    @FunctionalInterface
+    public interface RecordListener {
+        void written(Job job, List<? extends CSVRecord> records);
+    }
+
+    private final MessageFetcher fetcher;
+    private final AttachmentLoader attachmentLoader;
+    private final ExportPipeline.Options options;
+    private final List<Job> jobs;
+
+    /**
+     * @param options - options of every job's pipeline, the streamBatchSize also sets how many messages are fetched together
+     */
+    public MultiJobExport(MessageFetcher fetcher, AttachmentLoader attachmentLoader, ExportPipeline.Options options, List<Job> jobs) {
+        this.fetcher = fetcher;
+        this.attachmentLoader = attachmentLoader;
+        this.options = options;
+        this.jobs = List.copyOf(jobs);
+    }
+
+    /**
+     * Lists, fetches, parses and writes out every job.
+     * @return result of each job by name
+     * @throws IOException should any listing, retrieval or output issues occur
+     */
+    public Map<String, JobResult> run(MessageLister lister, RecordListener listener) throws IOException {
+        Map<Job, List<Message>> listedMessages = listAll(lister);
+
+        // Each message once, in the order first listed, along with the jobs that listed it
+        Map<String, Message> uniqueMessages = new LinkedHashMap<>();
+        Map<String, List<Job>> jobsByMessageId = new LinkedHashMap<>();
+        listedMessages.forEach((job, messages) -> messages.forEach(message -> {
+            uniqueMessages.putIfAbsent(message.getId(), message);
+            jobsByMessageId.computeIfAbsent(message.getId(), it -> new ArrayList<>()).add(job);
+        }));
+        int totalListed = listedMessages.values().stream().mapToInt(List::size).sum();
+        logger.info("{} jobs listed {} messages, {} of them distinct", jobs.size(), totalListed, uniqueMessages.size());
+
+        Map<Job, ExportPipeline> pipelines = new LinkedHashMap<>();
+        try {
+            for (Job job : jobs) {
+                // The pipelines never fetch, they are handed the chunk fetched for all of them
+                pipelines.put(job, new ExportPipeline((partialMessages, format) -> List.of(), attachmentLoader, job.parser(), options));
+            }
+            FetchFormat sharedFormat = pipelines.values().stream()
+                    .map(ExportPipeline::fetchFormat)
+                    .reduce(FetchFormat::union)
+                    .orElse(FetchFormat.FULL);
+            logger.debug("Fetching job messages in the {} format", sharedFormat.format());
+
+            for (List<Message> chunk : Lists.partition(new ArrayList<>(uniqueMessages.values()), Math.max(1, options.streamBatchSize()))) {
+                Map<String, Message> fetched = new LinkedHashMap<>();
+                fetcher.fetch(chunk, sharedFormat).forEach(it -> fetched.put(it.getId(), it));
+                if (fetched.size() < chunk.size()) {
+                    logger.warn("{} of {} job messages could not be fetched and are left out", chunk.size() - fetched.size(), chunk.size());
+                }
+
+                Map<Job, List<MessageView>> chunkByJob = new LinkedHashMap<>();
+                for (Message message : chunk) {
+                    Message fullMessage = fetched.get(message.getId());
+                    if (fullMessage != null) {
+                        // The jobs are processed at once, so each has its own view of a message they share
+                        jobsByMessageId.get(message.getId()).forEach(job -> chunkByJob.computeIfAbsent(job, it -> new ArrayList<>())
+                                .add(new MessageView(fullMessage, attachmentLoader)));
+                    }
+                }
+                processChunk(pipelines, chunkByJob, listener);
+            }
+
+            Map<String, JobResult> results = new LinkedHashMap<>();
+            pipelines.forEach((job, pipeline) ->
+                    results.put(job.name(), new JobResult(pipeline.processedMessageIds(), pipeline.recordCount())));
+            return results;
+        } finally {
+            closeAll(pipelines.values());
+        }
+    }
+
+    private Map<Job, List<Message>> listAll(MessageLister lister) throws IOException {
+        Map<Job, Future<List<Message>>> listings = new LinkedHashMap<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Job job : jobs) {
+                listings.put(job, executor.submit(() -> {
+                    List<Message> messages = new ArrayList<>();
+                    lister.list(job.query(), job.requestedMax(), messages::addAll);
+                    logger.info("Job {} listed {} messages", job.name(), messages.size());
+                    return messages;
+                }));
+            }
+            Map<Job, List<Message>> listedMessages = new LinkedHashMap<>();
+            for (Map.Entry<Job, Future<List<Message>>> listing : listings.entrySet()) {
+                listedMessages.put(listing.getKey(), await(listing.getValue()));
+            }
+            return listedMessages;
+        }
+    }
+
+    private static void processChunk(Map<Job, ExportPipeline> pipelines, Map<Job, List<MessageView>> chunkByJob,
+                                     RecordListener listener) throws IOException {
+        Map<Job, Future<List<? extends CSVRecord>>> processing = new LinkedHashMap<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            chunkByJob.forEach((job, views) ->
+                    processing.put(job, executor.submit(() -> pipelines.get(job).processFetched(views))));
+            IOException failure = null;
+            for (Map.Entry<Job, Future<List<? extends CSVRecord>>> jobProcessing : processing.entrySet()) {
+                try {
+                    listener.written(jobProcessing.getKey(), await(jobProcessing.getValue()));
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new InterruptedIOException("Interrupted whilst running export jobs");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void closeAll(Iterable<ExportPipeline> pipelines) throws IOException {
+        IOException failure = null;
+        for (ExportPipeline pipeline : pipelines) {
+            try {
+                pipeline.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package gmail;
+
+import com.google.api.services.gmail.model.ListMessagesResponse;
+
+import java.io.IOException;
+
+/**
+ * Requests one page of the messages matching a query, a single {@code messages.list} call.
+ */
+@FunctionalInterface
+public interface PageRequester {
+    /**
+     * @param query - gmail style query, null to list every message
+     * @param pageToken - token of the page to list, null for the first
+     * @param maxResults - the most messages the page should hold
+     */
+    ListMessagesResponse list(String query, String pageToken, long maxResults) throws IOException;
+}
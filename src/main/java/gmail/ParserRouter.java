@@ -0,0 +1,181 @@
+package gmail;
+
+import com.google.api.services.gmail.model.Message;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parser.CSVRecord;
+import parser.FetchFormat;
+import parser.MessageParser;
+import utils.AttachmentLoader;
+import utils.MessageView;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Exports with several parsers from one listing and one fetch. The messages are listed with a search query covering
+ * every parser's {@link MessageParser#searchQuery()}, fetched once in a format that covers every parser's
+ * {@link MessageParser#fetchFormat()}, and each fetched message is then handed to every parser that
+ * {@link MessageParser#handles(MessageView) handles} it. Adding a parser adds no api calls.
+ * <p>
+ * Each parser has its own {@link ExportPipeline} and so its own csv output. A message's view, and with it the
+ * indexed headers and any decoded bodies, is shared by the parsers it is routed to.
+ */
+public class ParserRouter implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ParserRouter.class.getName());
+
+    /**
+     * Notified with the records written by a parser for a chunk of messages.
+     */
+    @FunctionalInterface
+    public interface RecordListener {
+        void written(MessageParser<?> parser, List<? extends CSVRecord> records);
+    }
+
+    private final MessageFetcher fetcher;
+    private final AttachmentLoader attachmentLoader;
+    private final int batchSize;
+    private final Map<MessageParser<?>, ExportPipeline> pipelines = new LinkedHashMap<>();
+    private final FetchFormat fetchFormat;
+
+    /**
+     * @param options - options of every parser's pipeline, the streamBatchSize also sets how many messages are fetched together
+     */
+    public ParserRouter(MessageFetcher fetcher, AttachmentLoader attachmentLoader, List<MessageParser<?>> parsers,
+                        ExportPipeline.Options options) throws IOException {
+        this.fetcher = fetcher;
+        this.attachmentLoader = attachmentLoader;
+        this.batchSize = Math.max(1, options.streamBatchSize());
+        try {
+            for (MessageParser<?> parser : parsers) {
+                // The pipelines never fetch, they are handed messages the router has fetched
+                pipelines.put(parser, new ExportPipeline((partialMessages, format) -> List.of(), attachmentLoader, parser, options));
+            }
+        } catch (IOException e) {
+            try {
+                closeAll(pipelines.values());
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
+        this.fetchFormat = pipelines.values().stream()
+                .map(ExportPipeline::fetchFormat)
+                .reduce(FetchFormat::union)
+                .orElse(FetchFormat.FULL);
+    }
+
+    /**
+     * The search query listing every message one of the parsers handles.
+     * @param baseQuery - further restricts the messages listed, such as {@code newer_than:1d}, null for none
+     * @return the query, null to list every message
+     */
+    public String searchQuery(String baseQuery) {
+        List<String> parserQueries = pipelines.keySet().stream().map(MessageParser::searchQuery).toList();
+        String routedQuery;
+        if (parserQueries.isEmpty() || parserQueries.contains(null)) {
+            // At least one parser wants every message
+            routedQuery = null;
+        } else if (parserQueries.size() == 1) {
+            routedQuery = parserQueries.get(0);
+        } else {
+            routedQuery = String.join(" OR ", parserQueries.stream().map(ParserRouter::group).distinct().toList());
+        }
+        boolean hasBaseQuery = baseQuery != null && !baseQuery.isBlank();
+        if (routedQuery == null) {
+            return hasBaseQuery ? baseQuery.trim() : null;
+        }
+        return hasBaseQuery ? group(baseQuery.trim()) + " " + group(routedQuery) : routedQuery;
+    }
+
+    private static String group(String query) {
+        return query.contains(" ") ? "(" + query + ")" : query;
+    }
+
+    /**
+     * @return the format messages are fetched in, covering every parser
+     */
+    public FetchFormat fetchFormat() {
+        return fetchFormat;
+    }
+
+    /**
+     * Fetches the messages, in chunks of streamBatchSize, and routes each to every parser that handles it.
+     * @param partialMessages - bare messages (just the msg ids) to export
+     * @param listener - notified with each parser's records for each chunk
+     * @throws IOException should any retrieval or output issues occur
+     */
+    public void route(List<Message> partialMessages, RecordListener listener) throws IOException {
+        for (List<Message> chunk : Lists.partition(partialMessages, batchSize)) {
+            List<MessageView> views = fetcher.fetch(chunk, fetchFormat).stream()
+                    .map(it -> new MessageView(it, attachmentLoader))
+                    .toList();
+            Set<MessageView> unrouted = new LinkedHashSet<>(views);
+            for (Map.Entry<MessageParser<?>, ExportPipeline> route : pipelines.entrySet()) {
+                MessageParser<?> parser = route.getKey();
+                List<MessageView> handled = views.stream().filter(parser::handles).toList();
+                if (!handled.isEmpty()) {
+                    handled.forEach(unrouted::remove);
+                    listener.written(parser, route.getValue().processFetched(handled));
+                }
+            }
+            if (!unrouted.isEmpty()) {
+                logger.debug("{} fetched messages were not handled by any parser", unrouted.size());
+            }
+        }
+    }
+
+    /**
+     * @return ids of the messages exported by any of the parsers
+     */
+    public Set<String> processedMessageIds() {
+        Set<String> processedMessageIds = new LinkedHashSet<>();
+        pipelines.values().forEach(it -> processedMessageIds.addAll(it.processedMessageIds()));
+        return processedMessageIds;
+    }
+
+    /**
+     * @return ids of the messages exported by a parser that picks its messages with a search query. A message only
+     * exported by a catch-all parser, one whose {@link MessageParser#searchQuery()} is null such as basic, is left out,
+     * as such a parser claims every message and they must not all be deleted.
+     */
+    public Set<String> deletableMessageIds() {
+        Set<String> deletableMessageIds = new LinkedHashSet<>();
+        pipelines.forEach((parser, pipeline) -> {
+            if (parser.searchQuery() != null) {
+                deletableMessageIds.addAll(pipeline.processedMessageIds());
+            }
+        });
+        return deletableMessageIds;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeAll(pipelines.values());
+    }
+
+    private static void closeAll(Collection<ExportPipeline> pipelines) throws IOException {
+        IOException failure = null;
+        for (ExportPipeline pipeline : pipelines) {
+            try {
+                pipeline.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
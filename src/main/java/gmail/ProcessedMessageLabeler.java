@@ -0,0 +1,212 @@
+package gmail;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.BatchModifyMessagesRequest;
+import com.google.api.services.gmail.model.Label;
+import com.google.api.services.gmail.model.ListLabelsResponse;
+import com.google.common.collect.Lists;
+import metrics.ExportMetrics;
+import metrics.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Applies a label to processed messages with {@code messages.batchModify}, which takes up to
+ * {@link #MAX_IDS_PER_CALL} ids at a fraction of the quota of trashing each message on its own. Applying the
+ * {@link #TRASH_LABEL} moves the messages to the trash.
+ * <p>
+ * The ids are split into chunks that are sent concurrently on virtual threads, governed by the shared
+ * {@link QuotaRateLimiter}. A chunk that is rate limited or hits a server error is retried after a jittered backoff,
+ * up to {@code maxRetries} times. A chunk Gmail rejects with a 400 invalid id error, because it holds an id that no
+ * longer exists, is split in half and each half sent again, so that only the offending ids fail. Any other rejection,
+ * such as a 403 for missing permission, fails the whole chunk straight away. The outcome for every id is returned in
+ * a {@link Report}.
+ */
+public class ProcessedMessageLabeler {
+    private static final Logger logger = LoggerFactory.getLogger(ProcessedMessageLabeler.class.getName());
+
+    public static final String TRASH_LABEL = "TRASH";
+    public static final int MAX_IDS_PER_CALL = 1000;
+
+    /**
+     * Outcome of labelling a set of messages.
+     * @param labelledIds - ids the label was applied to, in the order given
+     * @param failedIds - ids that could not be labelled, with the last error Gmail gave for each
+     */
+    public record Report(List<String> labelledIds, Map<String, String> failedIds) {
+        public boolean hasFailures() {
+            return !failedIds.isEmpty();
+        }
+    }
+
+    private final Gmail service;
+    private final QuotaRateLimiter rateLimiter;
+    private final int maxRetries;
+    private final String labelId;
+
+    /**
+     * @param labelId - id of the label to apply, {@link #TRASH_LABEL} to trash the messages
+     */
+    public ProcessedMessageLabeler(Gmail service, QuotaRateLimiter rateLimiter, int maxRetries, String labelId) {
+        this.service = service;
+        this.rateLimiter = rateLimiter;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.labelId = labelId;
+    }
+
+    /**
+     * Looks up the id of the user label with the given name, creating the label when there is none. System labels,
+     * such as TRASH, are their own id.
+     */
+    public static String resolveLabelId(Gmail service, QuotaRateLimiter rateLimiter, String labelName) throws IOException {
+        if (labelName == null || labelName.isBlank() || TRASH_LABEL.equalsIgnoreCase(labelName.trim())) {
+            return TRASH_LABEL;
+        }
+        String name = labelName.trim();
+        acquire(rateLimiter, QuotaRateLimiter.LABELS_LIST_COST);
+        ListLabelsResponse labels = service.users().labels().list("me").execute();
+        if (labels.getLabels() != null) {
+            for (Label label : labels.getLabels()) {
+                if (name.equalsIgnoreCase(label.getName())) {
+                    return label.getId();
+                }
+            }
+        }
+        logger.info("Creating the label {} for processed messages", name);
+        acquire(rateLimiter, QuotaRateLimiter.LABELS_CREATE_COST);
+        Label created = service.users().labels().create("me", new Label()
+                .setName(name)
+                .setLabelListVisibility("labelShow")
+                .setMessageListVisibility("show")).execute();
+        return created.getId();
+    }
+
+    /**
+     * Applies the label to the given messages.
+     * @param messageIds - ids of the messages to label
+     * @return which ids were labelled and which failed
+     * @throws IOException if interrupted whilst labelling, every other failure is reported per id
+     */
+    public Report label(Collection<String> messageIds) throws IOException {
+        List<String> ids = new ArrayList<>(new LinkedHashSet<>(messageIds));
+        Map<String, String> failures = new ConcurrentHashMap<>();
+        List<List<String>> chunks = Lists.partition(ids, MAX_IDS_PER_CALL);
+
+        List<Future<Void>> pendingChunks = new ArrayList<>(chunks.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (List<String> chunk : chunks) {
+                pendingChunks.add(executor.submit(() -> {
+                    labelChunk(chunk, failures);
+                    return null;
+                }));
+            }
+            for (Future<Void> pendingChunk : pendingChunks) {
+                pendingChunk.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst labelling messages");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause());
+        }
+
+        List<String> labelledIds = ids.stream().filter(it -> !failures.containsKey(it)).toList();
+        Map<String, String> failedIds = new LinkedHashMap<>();
+        ids.stream().filter(failures::containsKey).forEach(it -> failedIds.put(it, failures.get(it)));
+        logger.info("Applied the {} label to {} of {} messages in {} chunks", labelId, labelledIds.size(), ids.size(), chunks.size());
+        if (!failedIds.isEmpty()) {
+            logger.error("Failed to apply the {} label to {} messages: {}", labelId, failedIds.size(), failedIds);
+        }
+        return new Report(labelledIds, failedIds);
+    }
+
+    private void labelChunk(List<String> ids, Map<String, String> failures) throws IOException, InterruptedException {
+        IOException lastFailure = null;
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            if (attempt > 0) {
+                long delay = rateLimiter.backoffDelayMillis(attempt);
+                logger.warn("Retrying the labelling of {} messages in {}ms, attempt {} of {}", ids.size(), delay, attempt, maxRetries);
+                ExportMetrics.getInstance().retried(Stage.TRASH);
+                Thread.sleep(delay);
+            }
+
+            boolean rateLimited = false;
+            GoogleJsonResponseException rejection = null;
+            rateLimiter.acquire(QuotaRateLimiter.BATCH_MODIFY_COST);
+            rateLimiter.acquireSlot();
+            try {
+                long startNanos = System.nanoTime();
+                service.users().messages().batchModify("me", new BatchModifyMessagesRequest()
+                        .setIds(ids)
+                        .setAddLabelIds(List.of(labelId))).execute();
+                ExportMetrics.getInstance().record(Stage.TRASH, startNanos, ids.size());
+                return;
+            } catch (GoogleJsonResponseException e) {
+                if (QuotaRateLimiter.isRetryable(e)) {
+                    rateLimited = QuotaRateLimiter.isRateLimited(e);
+                    lastFailure = e;
+                } else {
+                    rejection = e;
+                }
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                lastFailure = e;
+            } finally {
+                rateLimiter.releaseSlot(rateLimited);
+            }
+
+            if (rejection != null) {
+                if (ids.size() == 1 || !isInvalidId(rejection)) {
+                    String reason = rejection.getStatusCode() + " " + rejection.getMessage();
+                    ids.forEach(it -> failures.put(it, reason));
+                } else {
+                    // Narrow down which ids Gmail objects to
+                    int half = ids.size() / 2;
+                    labelChunk(ids.subList(0, half), failures);
+                    labelChunk(ids.subList(half, ids.size()), failures);
+                }
+                return;
+            }
+        }
+        String reason = Objects.toString(lastFailure.getMessage(), lastFailure.getClass().getSimpleName());
+        ids.forEach(it -> failures.put(it, reason));
+    }
+
+    /**
+     * @return true when Gmail refused the call because one of the ids is not a message it knows
+     */
+    static boolean isInvalidId(GoogleJsonResponseException e) {
+        return e.getStatusCode() == 400 && e.getDetails() != null && e.getDetails().getMessage() != null
+                && e.getDetails().getMessage().toLowerCase(Locale.ROOT).contains("invalid id");
+    }
+
+    private static void acquire(QuotaRateLimiter rateLimiter, int units) throws IOException {
+        try {
+            rateLimiter.acquire(units);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting for Gmail quota");
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package gmail;
+
+import com.google.api.services.gmail.model.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Write ahead journal of how far an export has got, so that an export cut short by a crash or an expired token can
+ * be resumed without listing, writing or trashing the same messages again.
+ * <p>
+ * The journal is an append only text file with one line per step, each forced to disk before the step is relied on:
+ * <pre>
+ * RUN search from:jobalerts-noreply@linkedin.com
+ * HISTORY 1234567
+ * LISTED id1,id2,id3
+ * LISTED_ALL
+ * CSV /home/me/linkedInAlerts-170726.csv
+ * WRITTEN 20480 id1,id2 id1
+ * TRASHED id1
+ * COMPLETE
+ * </pre>
+ * A WRITTEN line holds the length of the csv output once the records of a chunk of messages had been written, the
+ * ids of the chunk and the ids of those that were exported. A resumed export truncates the csv output back to the
+ * last length, so that no record is written twice. The CSV line names the file those lengths refer to, as a file
+ * name may hold the date of the run. Should that file have gone missing or been cut short, a DISCARD_WRITTEN line
+ * marks the earlier WRITTEN lines as void and the csv output is written afresh. Fetched messages are reused through the {@link MessageCache},
+ * when one is configured.
+ * <p>
+ * A journal left by a different run, or by one that completed, is started afresh. A line cut short by a crash is
+ * dropped. Safe for use by the lister and pipeline threads at once.
+ */
+public class ProgressJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ProgressJournal.class.getName());
+
+    private static final String RUN = "RUN";
+    private static final String HISTORY = "HISTORY";
+    private static final String LISTED = "LISTED";
+    private static final String LISTED_ALL = "LISTED_ALL";
+    private static final String CSV = "CSV";
+    private static final String WRITTEN = "WRITTEN";
+    private static final String DISCARD_WRITTEN = "DISCARD_WRITTEN";
+    private static final String TRASHED = "TRASHED";
+    private static final String COMPLETE = "COMPLETE";
+    private static final String NO_IDS = "-";
+
+    private final FileChannel channel;
+    private final boolean resuming;
+    private BigInteger historyId;
+    private final LinkedHashSet<String> listedIds = new LinkedHashSet<>();
+    private boolean listingComplete = false;
+    private final Set<String> writtenIds = new HashSet<>();
+    private final LinkedHashSet<String> exportedIds = new LinkedHashSet<>();
+    private Path csvPath;
+    private long csvLength = -1;
+    private final Set<String> trashedIds = new HashSet<>();
+    private boolean complete = false;
+
+    private ProgressJournal(FileChannel channel, boolean resuming) {
+        this.channel = channel;
+        this.resuming = resuming;
+    }
+
+    /**
+     * Opens the journal, replaying it when it was left unfinished by a run with the same key.
+     * @param file - journal file, created if missing
+     * @param runKey - identifies the export, such as its command and search query
+     */
+    public static ProgressJournal open(Path file, String runKey) throws IOException {
+        String runLine = RUN + " " + runKey.replaceAll("[\\r\\n]+", " ");
+        String text = Files.exists(file) ? Files.readString(file, StandardCharsets.UTF_8) : "";
+        List<String> lines = Arrays.asList(text.split("\n", -1));
+        // The last entry is either empty or a line the writer never finished
+        lines = lines.subList(0, lines.size() - 1);
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean resuming = !lines.isEmpty() && lines.get(0).equals(runLine) && !lines.contains(COMPLETE);
+        ProgressJournal journal = new ProgressJournal(channel, resuming);
+        try {
+            if (resuming) {
+                long replayedLength = journal.replay(lines);
+                channel.truncate(replayedLength);
+                channel.position(replayedLength);
+                logger.info("Resuming export from {}, {} messages listed and {} written", file,
+                        journal.listedIds.size(), journal.writtenIds.size());
+            } else {
+                if (!lines.isEmpty() && !lines.contains(COMPLETE)) {
+                    logger.warn("Discarding the unfinished export journal {} left by a different run: {}", file, lines.get(0));
+                }
+                channel.truncate(0);
+                journal.append(runLine);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * Applies the journal's lines, stopping at the first one that cannot be read.
+     * @return length of the journal up to the end of the last line applied
+     */
+    private long replay(List<String> lines) {
+        long length = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (i > 0 && !apply(line)) {
+                logger.warn("Ignoring the export journal from the unreadable line: {}", line);
+                break;
+            }
+            length += line.getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        return length;
+    }
+
+    private boolean apply(String line) {
+        String[] fields = line.split(" ");
+        try {
+            switch (fields[0]) {
+                case CSV -> csvPath = Path.of(line.substring(CSV.length() + 1));
+                case HISTORY -> historyId = new BigInteger(fields[1]);
+                case LISTED -> listedIds.addAll(ids(fields[1]));
+                case LISTED_ALL -> listingComplete = true;
+                case WRITTEN -> {
+                    csvLength = Long.parseLong(fields[1]);
+                    writtenIds.addAll(ids(fields[2]));
+                    exportedIds.addAll(ids(fields[3]));
+                }
+                case DISCARD_WRITTEN -> clearWritten();
+                case TRASHED -> trashedIds.addAll(ids(fields[1]));
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static List<String> ids(String field) {
+        return field.equals(NO_IDS) ? List.of() : Arrays.asList(field.split(","));
+    }
+
+    private static String idField(Collection<String> ids) {
+        return ids.isEmpty() ? NO_IDS : String.join(",", ids);
+    }
+
+    private void append(String line) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * @return whether this run carries on from an unfinished one
+     */
+    public boolean isResuming() {
+        return resuming;
+    }
+
+    /**
+     * @return the mailbox history id recorded for this run, null when none was
+     */
+    public synchronized BigInteger historyId() {
+        return historyId;
+    }
+
+    public synchronized void historyId(BigInteger newHistoryId) throws IOException {
+        if (newHistoryId != null && !newHistoryId.equals(historyId)) {
+            append(HISTORY + " " + newHistoryId);
+            historyId = newHistoryId;
+        }
+    }
+
+    public synchronized boolean isListingComplete() {
+        return listingComplete;
+    }
+
+    /**
+     * @return bare messages (just the msg ids) in the order they were listed
+     */
+    public synchronized List<Message> listedMessages() {
+        return listedIds.stream().map(it -> new Message().setId(it)).toList();
+    }
+
+    /**
+     * Records a page of listed messages, ids listed before are left out.
+     */
+    public synchronized void listed(List<Message> page) throws IOException {
+        List<String> newIds = page.stream().map(Message::getId).filter(it -> !listedIds.contains(it)).toList();
+        if (!newIds.isEmpty()) {
+            append(LISTED + " " + idField(newIds));
+            listedIds.addAll(newIds);
+        }
+    }
+
+    public synchronized void listingCompleted() throws IOException {
+        if (!listingComplete) {
+            append(LISTED_ALL);
+            listingComplete = true;
+        }
+    }
+
+    public synchronized boolean wasWritten(String messageId) {
+        return writtenIds.contains(messageId);
+    }
+
+    /**
+     * @return the csv output the journaled lengths refer to, null when none has been recorded
+     */
+    public synchronized Path csvPath() {
+        return csvPath;
+    }
+
+    /**
+     * Records the csv output the run writes to, to be called before the first chunk is {@link #written}.
+     */
+    public synchronized void csvPath(Path newCsvPath) throws IOException {
+        Path absolutePath = newCsvPath.toAbsolutePath();
+        if (!absolutePath.equals(csvPath)) {
+            append(CSV + " " + absolutePath.toString().replaceAll("[\\r\\n]+", " "));
+            csvPath = absolutePath;
+        }
+    }
+
+    /**
+     * Forgets every chunk written so far, for when the csv output they were written to has been lost. The listing
+     * and the trashed messages are kept, the messages are written again.
+     */
+    public synchronized void discardWritten() throws IOException {
+        append(DISCARD_WRITTEN);
+        clearWritten();
+    }
+
+    private void clearWritten() {
+        csvPath = null;
+        csvLength = -1;
+        writtenIds.clear();
+        exportedIds.clear();
+    }
+
+    /**
+     * @return length the csv output had once the last journaled chunk was written, -1 when nothing has been written
+     */
+    public synchronized long csvLength() {
+        return csvLength;
+    }
+
+    /**
+     * @return ids of the messages exported by this run and the run it resumes
+     */
+    public synchronized Set<String> exportedIds() {
+        return new LinkedHashSet<>(exportedIds);
+    }
+
+    /**
+     * Records that the records of a chunk of messages are safely in the csv output.
+     * @param newCsvLength - length of the csv output after the chunk's records
+     * @param chunkIds - every message of the chunk, including any that produced no records
+     * @param newlyExportedIds - messages of the chunk that passed the filters
+     */
+    public synchronized void written(long newCsvLength, Collection<String> chunkIds, Collection<String> newlyExportedIds) throws IOException {
+        append(WRITTEN + " " + newCsvLength + " " + idField(chunkIds) + " " + idField(newlyExportedIds));
+        csvLength = newCsvLength;
+        writtenIds.addAll(chunkIds);
+        exportedIds.addAll(newlyExportedIds);
+    }
+
+    public synchronized boolean wasTrashed(String messageId) {
+        return trashedIds.contains(messageId);
+    }
+
+    public synchronized void trashed(Collection<String> messageIds) throws IOException {
+        if (!messageIds.isEmpty()) {
+            append(TRASHED + " " + idField(messageIds));
+            trashedIds.addAll(messageIds);
+        }
+    }
+
+    /**
+     * Marks the run as finished, the next run starts a fresh journal.
+     */
+    public synchronized void complete() throws IOException {
+        if (!complete) {
+            append(COMPLETE);
+            complete = true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
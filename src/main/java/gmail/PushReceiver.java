@@ -0,0 +1,30 @@
+package gmail;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.function.Consumer;
+
+/**
+ * Receives the mailbox change notifications Gmail publishes once {@link MailboxWatch} has asked it to watch the
+ * mailbox. A notification only says the mailbox has changed, and up to which history id, the new messages are then
+ * found with the history api.
+ * <p>
+ * {@link HttpPushReceiver} takes the notifications from a Pub/Sub push subscription, a test or another transport can
+ * hand them to the listener in its own way.
+ */
+public interface PushReceiver extends Closeable {
+
+    /**
+     * A change to a mailbox.
+     * @param emailAddress - the mailbox that changed
+     * @param historyId - history id of the mailbox once changed
+     */
+    record Notification(String emailAddress, BigInteger historyId) {}
+
+    /**
+     * Starts receiving, each notification is handed to the listener as it arrives. Should the listener throw, the
+     * notification is reported as not delivered so that it can be sent again.
+     */
+    void start(Consumer<Notification> listener) throws IOException;
+}
@@ -0,0 +1,184 @@
+package gmail;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import metrics.ExportMetrics;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps Gmail api usage within the per user quota, measured in quota units rather than requests.
+ * See <a href="https://developers.google.com/gmail/api/reference/quota">gmail quotas</a> for the unit cost of each method.
+ * <p>
+ * Two limits are applied. Quota units are handed out at a steady rate with up to one second of burst, a caller taking
+ * more units than are available is made to wait until the debt has been repaid. The number of requests in flight is
+ * adjusted automatically (additive increase, multiplicative decrease), every rate limited response halves it and
+ * each run of successful requests raises it by one, up to the configured maximum.
+ * <p>
+ * One limiter should be shared by everything calling the api for the same user.
+ */
+public class QuotaRateLimiter {
+    public static final int LIST_COST = 5;
+    public static final int GET_COST = 5;
+    public static final int BATCH_MODIFY_COST = 50;
+    public static final int LABELS_LIST_COST = 1;
+    public static final int LABELS_CREATE_COST = 5;
+    public static final int ATTACHMENT_GET_COST = 5;
+    public static final int PROFILE_COST = 1;
+    public static final int HISTORY_LIST_COST = 2;
+    public static final int WATCH_COST = 100;
+    public static final int STOP_COST = 50;
+
+    public static final double DEFAULT_UNITS_PER_SECOND = 250;
+    /** Units per second of a limiter that only limits concurrency */
+    public static final double UNLIMITED = Double.POSITIVE_INFINITY;
+
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(32);
+    private static final Set<String> RATE_LIMIT_REASONS = Set.of("rateLimitExceeded", "userRateLimitExceeded", "quotaExceeded");
+    private static final Set<Integer> RETRYABLE_STATUS_CODES = Set.of(429, 500, 502, 503, 504);
+
+    private final double unitsPerSecond;
+    private final int maxConcurrency;
+    private final long initialBackoffMillis;
+
+    // quota units, guarded by this
+    private double availableUnits;
+    private long lastRefillNanos;
+
+    // concurrency, guarded by concurrencyLock
+    private final ReentrantLock concurrencyLock = new ReentrantLock();
+    private final Condition slotReleased = concurrencyLock.newCondition();
+    private int concurrencyLimit;
+    private int inFlight = 0;
+    private int successesSinceIncrease = 0;
+
+    public QuotaRateLimiter(double unitsPerSecond, int maxConcurrency, Duration initialBackoff) {
+        this.unitsPerSecond = unitsPerSecond;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.initialBackoffMillis = Math.max(1, initialBackoff.toMillis());
+        this.availableUnits = unitsPerSecond;
+        this.lastRefillNanos = System.nanoTime();
+        this.concurrencyLimit = this.maxConcurrency;
+    }
+
+    /**
+     * Takes the given number of quota units, waiting if they are not yet available.
+     */
+    public void acquire(int units) throws InterruptedException {
+        if (unitsPerSecond == UNLIMITED) {
+            ExportMetrics.getInstance().quotaUnitsUsed(units);
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            availableUnits -= units;
+            ExportMetrics.getInstance().quotaUnitsUsed(units);
+            waitNanos = availableUnits >= 0 ? 0 : (long) (-availableUnits / unitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double earned = (now - lastRefillNanos) * unitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        availableUnits = Math.min(unitsPerSecond, availableUnits + earned);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Waits for a free request slot under the current concurrency limit.
+     */
+    public void acquireSlot() throws InterruptedException {
+        concurrencyLock.lock();
+        try {
+            while (inFlight >= concurrencyLimit) {
+                slotReleased.await();
+            }
+            inFlight++;
+        } finally {
+            concurrencyLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a request slot, adjusting the concurrency limit by the outcome of the request.
+     * @param rateLimited - whether Gmail reported the request, or part of it, as over quota
+     */
+    public void releaseSlot(boolean rateLimited) {
+        concurrencyLock.lock();
+        try {
+            inFlight--;
+            if (rateLimited) {
+                concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+                successesSinceIncrease = 0;
+                if (unitsPerSecond != UNLIMITED) {
+                    synchronized (this) {
+                        // Stop handing out units until the rate has had a chance to recover
+                        refill();
+                        availableUnits = Math.min(availableUnits, 0);
+                    }
+                }
+            } else if (++successesSinceIncrease >= concurrencyLimit && concurrencyLimit < maxConcurrency) {
+                concurrencyLimit++;
+                successesSinceIncrease = 0;
+            }
+            slotReleased.signalAll();
+        } finally {
+            concurrencyLock.unlock();
+        }
+    }
+
+    public int concurrencyLimit() {
+        concurrencyLock.lock();
+        try {
+            return concurrencyLimit;
+        } finally {
+            concurrencyLock.unlock();
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter, a random delay between half and all of a ceiling that doubles with each attempt.
+     * @param attempt - the retry number, starting at 1
+     */
+    public long backoffDelayMillis(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF.toMillis(), initialBackoffMillis << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    public static boolean isRateLimited(int statusCode, GoogleJsonError error) {
+        if (statusCode == 429) {
+            return true;
+        }
+        return statusCode == 403 && error != null && error.getErrors() != null &&
+                error.getErrors().stream().anyMatch(it -> RATE_LIMIT_REASONS.contains(it.getReason()));
+    }
+
+    public static boolean isRetryable(int statusCode, GoogleJsonError error) {
+        return RETRYABLE_STATUS_CODES.contains(statusCode) || isRateLimited(statusCode, error);
+    }
+
+    public static boolean isRateLimited(GoogleJsonError error) {
+        return isRateLimited(error.getCode(), error);
+    }
+
+    public static boolean isRetryable(GoogleJsonError error) {
+        return isRetryable(error.getCode(), error);
+    }
+
+    public static boolean isRateLimited(GoogleJsonResponseException e) {
+        return isRateLimited(e.getStatusCode(), e.getDetails());
+    }
+
+    public static boolean isRetryable(GoogleJsonResponseException e) {
+        return isRetryable(e.getStatusCode(), e.getDetails());
+    }
+}
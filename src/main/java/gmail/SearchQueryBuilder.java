@@ -0,0 +1,84 @@
+package gmail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds a Gmail search query from the configured search query and the sender and subject filters, so that
+ * Gmail only lists the messages that will be exported rather than them being fetched and thrown away.
+ * See <a href="https://support.google.com/mail/answer/7190">Search Terms</a>.
+ * <p>
+ * A sender given as a display name and address, {@code LinkedIn Job Alerts <jobalerts-noreply@linkedin.com>},
+ * is searched for by its address alone. Terms already present in the query are not added a second time.
+ */
+public class SearchQueryBuilder {
+    private static final Pattern ANGLE_ADDRESS = Pattern.compile("<([^<>\\s]+)>");
+    private static final Pattern NEEDS_QUOTING = Pattern.compile("^-|[\\s(){}:|]");
+
+    private String query;
+    private String sender;
+    private String subject;
+
+    public SearchQueryBuilder query(String query) {
+        this.query = query;
+        return this;
+    }
+
+    public SearchQueryBuilder from(String sender) {
+        this.sender = sender;
+        return this;
+    }
+
+    public SearchQueryBuilder subject(String subject) {
+        this.subject = subject;
+        return this;
+    }
+
+    /**
+     * @return the combined query, or null when there is neither a query nor any filter
+     */
+    public String build() {
+        String baseQuery = isBlank(query) ? null : query.trim();
+        List<String> terms = new ArrayList<>();
+        if (!isBlank(sender)) {
+            addTerm(terms, baseQuery, "from:" + quote(senderAddress(sender)));
+        }
+        if (!isBlank(subject)) {
+            addTerm(terms, baseQuery, "subject:" + quote(subject.trim()));
+        }
+
+        if (terms.isEmpty()) {
+            return baseQuery;
+        }
+        String filterTerms = String.join(" ", terms);
+        if (baseQuery == null) {
+            return filterTerms;
+        }
+        // Group the original query so an OR within it cannot swallow the added terms
+        return (baseQuery.contains(" ") ? "(" + baseQuery + ")" : baseQuery) + " " + filterTerms;
+    }
+
+    private static void addTerm(List<String> terms, String baseQuery, String term) {
+        if (baseQuery == null || !baseQuery.toLowerCase(Locale.ROOT).contains(term.toLowerCase(Locale.ROOT))) {
+            terms.add(term);
+        }
+    }
+
+    static String senderAddress(String sender) {
+        Matcher matcher = ANGLE_ADDRESS.matcher(sender);
+        return matcher.find() ? matcher.group(1) : sender.trim();
+    }
+
+    private static String quote(String value) {
+        // Gmail has no way of escaping a quote within a quoted phrase
+        String phrase = value.replace("\"", "");
+        return NEEDS_QUOTING.matcher(phrase).find() ? "\"" + phrase + "\"" : phrase;
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+}
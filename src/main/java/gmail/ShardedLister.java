@@ -0,0 +1,211 @@
+package gmail;
+
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Lists the messages matching a query as a set of date windows listed at the same time, rather than one page after
+ * another, so listing a large query takes about as long as its busiest window.
+ * <p>
+ * The time from {@code since} until a day from now is cut into {@code shards} equal windows, each listed with the
+ * query narrowed by {@code after:} and {@code before:} terms in epoch seconds. A window whose first page shows it
+ * holds more than a page of messages is split in half and each half listed in turn, down to windows of
+ * {@link #MIN_WINDOW}, which are paged through. Windows overlap by a second at their edges so that no message on a
+ * boundary is missed, and ids already listed are dropped as pages are merged.
+ * <p>
+ * Pages are handed to the consumer one at a time, from whichever window listed them, so the ids are not in Gmail's
+ * newest first order and a requested max cuts the listing short at whichever ids arrive first. The windows are
+ * listed on virtual threads, how fast is governed by the {@link QuotaRateLimiter} behind the page requester.
+ */
+public class ShardedLister {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedLister.class.getName());
+
+    static final Duration MIN_WINDOW = Duration.ofMinutes(10);
+    private static final Duration LOOK_AHEAD = Duration.ofDays(1);
+
+    /**
+     * A span of time in epoch seconds, from after up to before.
+     */
+    record Window(long after, long before) {
+
+        String query(String baseQuery) {
+            // Gmail reads the bounds as exclusive, widening by a second keeps messages on the edges
+            String dateTerms = "after:" + (after - 1) + " before:" + (before + 1);
+            if (baseQuery == null || baseQuery.isBlank()) {
+                return dateTerms;
+            }
+            String query = baseQuery.trim();
+            return (query.contains(" ") ? "(" + query + ")" : query) + " " + dateTerms;
+        }
+
+        boolean isSplittable() {
+            return before - after >= 2 * MIN_WINDOW.toSeconds();
+        }
+
+        List<Window> halves() {
+            long middle = after + (before - after) / 2;
+            return List.of(new Window(after, middle), new Window(middle, before));
+        }
+    }
+
+    private final PageRequester requester;
+    private final int shards;
+    private final Instant since;
+
+    /**
+     * @param shards - number of windows the time is first cut into
+     * @param since - start of the first window, no earlier than the oldest message wanted
+     */
+    public ShardedLister(PageRequester requester, int shards, Instant since) {
+        this.requester = requester;
+        this.shards = Math.max(1, shards);
+        this.since = since;
+    }
+
+    /**
+     * The windows the time from since until a day from now is first cut into.
+     */
+    List<Window> initialWindows(Instant now) {
+        long after = since.getEpochSecond();
+        long before = Math.max(after + shards, now.plus(LOOK_AHEAD).getEpochSecond());
+        List<Window> windows = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            windows.add(new Window(after + (before - after) * i / shards, after + (before - after) * (i + 1) / shards));
+        }
+        return windows;
+    }
+
+    /**
+     * Lists the messages matching the query, handing over each page of ids not listed before.
+     * @param query - gmail style query, null to list every message
+     * @param requestedMax - the most messages to list
+     * @param pageConsumer - receives each page of bare messages, one page at a time
+     * @throws IOException should any page fail to be listed
+     */
+    public void list(String query, long requestedMax, Consumer<List<Message>> pageConsumer) throws IOException {
+        new Listing(query, requestedMax, pageConsumer).run();
+    }
+
+    /**
+     * The state of one listing, shared by the threads listing its windows.
+     */
+    private class Listing {
+        private final String query;
+        private final long requestedMax;
+        private final Consumer<List<Message>> pageConsumer;
+        private final Set<String> listedIds = new HashSet<>();
+        private final AtomicInteger windowsListed = new AtomicInteger();
+        private final AtomicInteger windowsSplit = new AtomicInteger();
+        private volatile boolean done = false;
+        private ExecutorService executor;
+
+        Listing(String query, long requestedMax, Consumer<List<Message>> pageConsumer) {
+            this.query = query;
+            this.requestedMax = requestedMax;
+            this.pageConsumer = pageConsumer;
+        }
+
+        void run() throws IOException {
+            try (ExecutorService windowExecutor = Executors.newVirtualThreadPerTaskExecutor()) {
+                executor = windowExecutor;
+                listAll(initialWindows(Instant.now()));
+            }
+            logger.info("Listed {} messages from {} date windows, {} of them split", listedIds.size(), windowsListed.get(),
+                    windowsSplit.get());
+        }
+
+        private void listAll(List<Window> windows) throws IOException {
+            List<Future<Void>> listings = new ArrayList<>(windows.size());
+            for (Window window : windows) {
+                listings.add(executor.submit(() -> {
+                    listWindow(window);
+                    return null;
+                }));
+            }
+            IOException failure = null;
+            for (Future<Void> listing : listings) {
+                try {
+                    listing.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    listings.forEach(it -> it.cancel(true));
+                    throw new InterruptedIOException("Interrupted whilst listing messages");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException runtimeException) {
+                        throw runtimeException;
+                    }
+                    IOException cause = e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                    if (failure == null) {
+                        failure = cause;
+                    } else {
+                        failure.addSuppressed(cause);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void listWindow(Window window) throws IOException {
+            if (done) {
+                return;
+            }
+            windowsListed.incrementAndGet();
+            String windowQuery = window.query(query);
+            ListMessagesResponse page = requester.list(windowQuery, null, MessagePager.MAX_PAGE_SIZE);
+            if (page.getNextPageToken() != null && window.isSplittable()) {
+                // More than a page, the halves are listed instead and will list this page's ids again
+                windowsSplit.incrementAndGet();
+                listAll(window.halves());
+                return;
+            }
+            deliver(page.getMessages());
+            String pageToken = page.getNextPageToken();
+            while (pageToken != null && !done) {
+                page = requester.list(windowQuery, pageToken, MessagePager.MAX_PAGE_SIZE);
+                deliver(page.getMessages());
+                pageToken = page.getNextPageToken();
+            }
+        }
+
+        /**
+         * Hands on the ids not listed before, up to the requested max.
+         */
+        private synchronized void deliver(List<Message> messages) {
+            if (messages == null || done) {
+                return;
+            }
+            List<Message> newMessages = new ArrayList<>();
+            for (Message message : messages) {
+                if (listedIds.size() >= requestedMax) {
+                    break;
+                }
+                if (listedIds.add(message.getId())) {
+                    newMessages.add(message);
+                }
+            }
+            done = listedIds.size() >= requestedMax;
+            if (!newMessages.isEmpty()) {
+                pageConsumer.accept(newMessages);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package gmail;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Local record of how far an incremental export has got. It holds the Gmail historyId the mailbox was at when the
+ * last export started, and the time it started, along with the ids of the most recently exported messages so that messages reported twice
+ * by the history api are not exported again.
+ * <p>
+ * The checkpoint is a plain text file, a {@code historyId=} and a {@code syncedAt=} line, in epoch seconds, followed
+ * by one message id per line. It is
+ * replaced atomically on save so a crash mid write leaves the previous checkpoint in place.
+ */
+public class SyncCheckpoint {
+    private static final String HISTORY_ID_PREFIX = "historyId=";
+    private static final String SYNCED_AT_PREFIX = "syncedAt=";
+    private static final int MAX_REMEMBERED_IDS = 10_000;
+
+    private final Path file;
+    private BigInteger historyId;
+    private Instant syncedAt;
+    private final LinkedHashSet<String> exportedMessageIds = new LinkedHashSet<>();
+
+    private SyncCheckpoint(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the checkpoint from the given file, a missing file gives an empty checkpoint.
+     */
+    public static SyncCheckpoint load(Path file) throws IOException {
+        SyncCheckpoint checkpoint = new SyncCheckpoint(file);
+        if (!Files.exists(file)) {
+            return checkpoint;
+        }
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            if (line.startsWith(HISTORY_ID_PREFIX)) {
+                checkpoint.historyId = new BigInteger(line.substring(HISTORY_ID_PREFIX.length()).trim());
+            } else if (line.startsWith(SYNCED_AT_PREFIX)) {
+                checkpoint.syncedAt = Instant.ofEpochSecond(Long.parseLong(line.substring(SYNCED_AT_PREFIX.length()).trim()));
+            } else {
+                checkpoint.exportedMessageIds.add(line.trim());
+            }
+        }
+        return checkpoint;
+    }
+
+    public boolean isEmpty() {
+        return historyId == null;
+    }
+
+    public BigInteger historyId() {
+        return historyId;
+    }
+
+    /**
+     * @return when the last export started, null for a checkpoint saved before this was recorded
+     */
+    public Instant syncedAt() {
+        return syncedAt;
+    }
+
+    public boolean wasExported(String messageId) {
+        return exportedMessageIds.contains(messageId);
+    }
+
+    /**
+     * Moves the checkpoint on to the given history id, remembering the newly exported message ids.
+     * @param startedAt - when the export started
+     */
+    public void update(BigInteger newHistoryId, Collection<String> newlyExportedIds, Instant startedAt) {
+        if (newHistoryId != null && (historyId == null || newHistoryId.compareTo(historyId) > 0)) {
+            historyId = newHistoryId;
+        }
+        if (startedAt != null && (syncedAt == null || startedAt.isAfter(syncedAt))) {
+            syncedAt = startedAt;
+        }
+        exportedMessageIds.addAll(newlyExportedIds);
+        // Only the most recent ids are needed to guard against history overlaps
+        Iterator<String> oldest = exportedMessageIds.iterator();
+        while (exportedMessageIds.size() > MAX_REMEMBERED_IDS) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    public void save() throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            out.write("# gmail export sync checkpoint");
+            out.newLine();
+            out.write(HISTORY_ID_PREFIX + historyId);
+            out.newLine();
+            if (syncedAt != null) {
+                out.write(SYNCED_AT_PREFIX + syncedAt.getEpochSecond());
+                out.newLine();
+            }
+            for (String messageId : exportedMessageIds) {
+                out.write(messageId);
+                out.newLine();
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
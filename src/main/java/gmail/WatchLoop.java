@@ -0,0 +1,128 @@
+package gmail;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs an export cycle over and over in one long lived process, so that the Gmail client, its connections and the
+ * caches stay warm between cycles rather than being rebuilt by a fresh JVM each time.
+ * <p>
+ * A cycle starts every {@code interval}, measured from the start of the previous one, or at once should it be
+ * {@link #wake() woken}, for instance by a push notification. A cycle that fails is logged and the loop carries on
+ * with the next one. {@link #stop()} lets the running cycle finish and ends the loop, a cycle is never interrupted
+ * part way through by a stop.
+ */
+public class WatchLoop {
+    private static final Logger logger = LoggerFactory.getLogger(WatchLoop.class.getName());
+
+    /**
+     * One export cycle.
+     */
+    @FunctionalInterface
+    public interface Cycle {
+        void run() throws Exception;
+    }
+
+    private final Duration interval;
+    private final Cycle cycle;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition signalled = lock.newCondition();
+    private boolean woken = false;
+    private boolean stopped = false;
+    private volatile long cycles = 0;
+
+    public WatchLoop(Duration interval, Cycle cycle) {
+        this.interval = interval.isNegative() ? Duration.ZERO : interval;
+        this.cycle = cycle;
+    }
+
+    /**
+     * Runs cycles until stopped.
+     * @throws InterruptedIOException if the thread running the loop is interrupted
+     */
+    public void run() throws InterruptedIOException {
+        while (!isStopped()) {
+            long startNanos = System.nanoTime();
+            lock.lock();
+            try {
+                woken = false;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                cycle.run();
+            } catch (InterruptedIOException | InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted whilst running an export cycle");
+            } catch (Exception e) {
+                logger.error("Export cycle failed, trying again at the next interval: " + e.getMessage(), e);
+            }
+            cycles++;
+            awaitNextCycle(startNanos + interval.toNanos());
+        }
+        logger.info("Watch stopped after {} cycles", cycles);
+    }
+
+    private void awaitNextCycle(long dueNanos) throws InterruptedIOException {
+        lock.lock();
+        try {
+            long remainingNanos;
+            while (!woken && !stopped && (remainingNanos = dueNanos - System.nanoTime()) > 0) {
+                signalled.await(remainingNanos, TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting for the next export cycle");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the next cycle as soon as the running one, if any, has finished.
+     */
+    public void wake() {
+        lock.lock();
+        try {
+            woken = true;
+            signalled.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the loop once the running cycle, if any, has finished.
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            signalled.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isStopped() {
+        lock.lock();
+        try {
+            return stopped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return cycles run so far
+     */
+    public long cycles() {
+        return cycles;
+    }
+}
@@ -0,0 +1,159 @@
+package metrics;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide instrumentation of the export stages, cheap enough to be recorded on every call. For each
+ * {@link Stage} the latency and batch size of every call are kept in a {@link Histogram}, along with the items it
+ * handled and the calls retried. Quota units, bytes of message bodies decoded and records written are counted for
+ * the whole run.
+ * <p>
+ * The figures are written out by {@link MetricsReport} as a json run report or in the Prometheus text format.
+ * Safe for use from any thread.
+ */
+public class ExportMetrics {
+    private static final long[] LATENCY_BOUNDS_NANOS = {
+            TimeUnit.MICROSECONDS.toNanos(100), TimeUnit.MICROSECONDS.toNanos(250), TimeUnit.MICROSECONDS.toNanos(500),
+            TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(2), TimeUnit.MILLISECONDS.toNanos(5),
+            TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(25), TimeUnit.MILLISECONDS.toNanos(50),
+            TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(250), TimeUnit.MILLISECONDS.toNanos(500),
+            TimeUnit.SECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(2500), TimeUnit.SECONDS.toNanos(5),
+            TimeUnit.SECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(30), TimeUnit.SECONDS.toNanos(60)};
+    private static final long[] BATCH_SIZE_BOUNDS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500};
+
+    /**
+     * What is recorded for one stage.
+     */
+    public static class StageMetrics {
+        private final Histogram latencyNanos = new Histogram(LATENCY_BOUNDS_NANOS);
+        private final Histogram batchSize = new Histogram(BATCH_SIZE_BOUNDS);
+        private final LongAdder retries = new LongAdder();
+
+        public Histogram latencyNanos() {
+            return latencyNanos;
+        }
+
+        public Histogram batchSize() {
+            return batchSize;
+        }
+
+        /**
+         * @return items handled by the stage, the sum of its batch sizes
+         */
+        public long items() {
+            return batchSize.sum();
+        }
+
+        public long retries() {
+            return retries.sum();
+        }
+
+        private void reset() {
+            latencyNanos.reset();
+            batchSize.reset();
+            retries.reset();
+        }
+    }
+
+    private static final ExportMetrics instance = new ExportMetrics();
+
+    private final Map<Stage, StageMetrics> stages = new EnumMap<>(Stage.class);
+    private final LongAdder quotaUnits = new LongAdder();
+    private final LongAdder bytesDecoded = new LongAdder();
+    private final LongAdder recordsWritten = new LongAdder();
+    private volatile Instant startedAt;
+    private volatile long startedNanos;
+
+    ExportMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new StageMetrics());
+        }
+        reset();
+    }
+
+    public static ExportMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Records a call made by a stage.
+     * @param startNanos - {@link System#nanoTime()} when the call started
+     * @param batchSize - items handled by the call
+     */
+    public void record(Stage stage, long startNanos, int batchSize) {
+        StageMetrics stageMetrics = stages.get(stage);
+        stageMetrics.latencyNanos.record(System.nanoTime() - startNanos);
+        stageMetrics.batchSize.record(batchSize);
+    }
+
+    /**
+     * Records that a call made by a stage is being tried again.
+     */
+    public void retried(Stage stage) {
+        stages.get(stage).retries.increment();
+    }
+
+    public void quotaUnitsUsed(int units) {
+        quotaUnits.add(units);
+    }
+
+    public void bytesDecoded(long bytes) {
+        bytesDecoded.add(bytes);
+    }
+
+    public void recordsWritten(long records) {
+        recordsWritten.add(records);
+    }
+
+    public StageMetrics stage(Stage stage) {
+        return stages.get(stage);
+    }
+
+    public long quotaUnits() {
+        return quotaUnits.sum();
+    }
+
+    public long bytesDecoded() {
+        return bytesDecoded.sum();
+    }
+
+    public long recordsWritten() {
+        return recordsWritten.sum();
+    }
+
+    public Instant startedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return time since the metrics were started or last reset
+     */
+    public Duration elapsed() {
+        return Duration.ofNanos(System.nanoTime() - startedNanos);
+    }
+
+    /**
+     * @return records written per second since the metrics were started or last reset
+     */
+    public double recordsPerSecond() {
+        double seconds = elapsed().toNanos() / 1e9;
+        return seconds > 0 ? recordsWritten() / seconds : 0;
+    }
+
+    /**
+     * Clears every figure and starts the clock again, for instance before each run of a long lived process.
+     */
+    public void reset() {
+        stages.values().forEach(StageMetrics::reset);
+        quotaUnits.reset();
+        bytesDecoded.reset();
+        recordsWritten.reset();
+        startedAt = Instant.now();
+        startedNanos = System.nanoTime();
+    }
+}
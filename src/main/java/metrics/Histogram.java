@@ -0,0 +1,93 @@
+package metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of recorded values in fixed buckets, in the style of a Prometheus histogram. Recording is lock free and
+ * safe from any thread, a bucket holds the values up to and including its upper bound, with a last overflow bucket
+ * for anything larger.
+ */
+public class Histogram {
+    private final long[] upperBounds;
+    private final AtomicLongArray counts;
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param upperBounds - ascending upper bound of each bucket
+     */
+    public Histogram(long... upperBounds) {
+        this.upperBounds = upperBounds.clone();
+        this.counts = new AtomicLongArray(upperBounds.length + 1);
+    }
+
+    public void record(long value) {
+        int bucket = Arrays.binarySearch(upperBounds, value);
+        counts.incrementAndGet(bucket >= 0 ? bucket : -bucket - 1);
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return upper bound of each bucket, excluding the overflow bucket
+     */
+    public long[] upperBounds() {
+        return upperBounds.clone();
+    }
+
+    /**
+     * @return the number of values in each bucket, the last being the overflow bucket
+     */
+    public long[] bucketCounts() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    public long count() {
+        return Arrays.stream(bucketCounts()).sum();
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Estimates a quantile as the upper bound of the bucket it falls in, the largest value for the overflow bucket.
+     * @param quantile - between 0 and 1, such as 0.95
+     * @return the estimate, 0 when nothing has been recorded
+     */
+    public long quantile(double quantile) {
+        long[] snapshot = bucketCounts();
+        long total = Arrays.stream(snapshot).sum();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < upperBounds.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBounds[i], max());
+            }
+        }
+        return max();
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        sum.reset();
+        max.set(0);
+    }
+}
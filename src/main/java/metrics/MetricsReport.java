@@ -0,0 +1,141 @@
+package metrics;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Formats {@link ExportMetrics} as a json run report or in the Prometheus text exposition format. Latencies are
+ * reported in seconds.
+ */
+public final class MetricsReport {
+    private static final String PREFIX = "gmail_export_";
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final MathContext SIGNIFICANT_DIGITS = new MathContext(6);
+
+    private MetricsReport() {
+    }
+
+    /**
+     * The run report, with each stage's calls, items, retries and latency and batch size summaries.
+     */
+    public static String json(ExportMetrics metrics) {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"startedAt\": \"").append(metrics.startedAt()).append("\",\n");
+        json.append("  \"elapsedSeconds\": ").append(number(metrics.elapsed().toNanos() / NANOS_PER_SECOND)).append(",\n");
+        json.append("  \"recordsWritten\": ").append(metrics.recordsWritten()).append(",\n");
+        json.append("  \"recordsPerSecond\": ").append(number(metrics.recordsPerSecond())).append(",\n");
+        json.append("  \"quotaUnitsUsed\": ").append(metrics.quotaUnits()).append(",\n");
+        json.append("  \"bytesDecoded\": ").append(metrics.bytesDecoded()).append(",\n");
+        json.append("  \"stages\": {");
+        Stage[] stages = Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            ExportMetrics.StageMetrics stage = metrics.stage(stages[i]);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    \"").append(stages[i].label()).append("\": {\n");
+            json.append("      \"calls\": ").append(stage.latencyNanos().count()).append(",\n");
+            json.append("      \"items\": ").append(stage.items()).append(",\n");
+            json.append("      \"retries\": ").append(stage.retries()).append(",\n");
+            json.append("      \"latencySeconds\": ").append(summary(stage.latencyNanos(), NANOS_PER_SECOND)).append(",\n");
+            json.append("      \"batchSize\": ").append(summary(stage.batchSize(), 1)).append("\n");
+            json.append("    }");
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    private static String summary(Histogram histogram, double scale) {
+        long count = histogram.count();
+        return "{\"count\": " + count
+                + ", \"mean\": " + number(count > 0 ? histogram.sum() / scale / count : 0)
+                + ", \"p50\": " + number(histogram.quantile(0.5) / scale)
+                + ", \"p95\": " + number(histogram.quantile(0.95) / scale)
+                + ", \"p99\": " + number(histogram.quantile(0.99) / scale)
+                + ", \"max\": " + number(histogram.max() / scale) + "}";
+    }
+
+    /**
+     * The metrics in the Prometheus text format, as served on a metrics endpoint or read by a textfile collector.
+     */
+    public static String prometheus(ExportMetrics metrics) {
+        StringBuilder text = new StringBuilder();
+        header(text, "stage_latency_seconds", "histogram", "Latency of each call made by an export stage.");
+        for (Stage stage : Stage.values()) {
+            histogram(text, "stage_latency_seconds", stage, metrics.stage(stage).latencyNanos(), NANOS_PER_SECOND);
+        }
+        header(text, "stage_batch_size", "histogram", "Items handled by each call made by an export stage.");
+        for (Stage stage : Stage.values()) {
+            histogram(text, "stage_batch_size", stage, metrics.stage(stage).batchSize(), 1);
+        }
+        header(text, "stage_retries_total", "counter", "Calls made by an export stage that were tried again.");
+        for (Stage stage : Stage.values()) {
+            text.append(PREFIX).append("stage_retries_total{stage=\"").append(stage.label()).append("\"} ")
+                    .append(metrics.stage(stage).retries()).append('\n');
+        }
+        sample(text, "quota_units_total", "counter", "Gmail quota units used.", number(metrics.quotaUnits()));
+        sample(text, "bytes_decoded_total", "counter", "Bytes of message bodies decoded.", number(metrics.bytesDecoded()));
+        sample(text, "records_written_total", "counter", "Records written to the csv output.", number(metrics.recordsWritten()));
+        sample(text, "records_per_second", "gauge", "Records written per second over the run.", number(metrics.recordsPerSecond()));
+        sample(text, "run_seconds", "gauge", "Time since the run started.", number(metrics.elapsed().toNanos() / NANOS_PER_SECOND));
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String type, String help, String value) {
+        header(text, name, type, help);
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder text, String name, Stage stage, Histogram histogram, double scale) {
+        long[] bounds = histogram.upperBounds();
+        long[] counts = histogram.bucketCounts();
+        String labels = "stage=\"" + stage.label() + "\"";
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += counts[i];
+            text.append(PREFIX).append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(number(bounds[i] / scale)).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts[bounds.length];
+        text.append(PREFIX).append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+        text.append(PREFIX).append(name).append("_sum{").append(labels).append("} ").append(number(histogram.sum() / scale)).append('\n');
+        text.append(PREFIX).append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+
+    /**
+     * Formats the value to six significant digits, whole numbers in full.
+     */
+    static String number(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return BigDecimal.valueOf(value).round(SIGNIFICANT_DIGITS).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Writes the text to the file by way of a temporary file, so that a reader never sees it half written.
+     */
+    public static void write(Path file, String text) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(temporary, text, StandardCharsets.UTF_8);
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
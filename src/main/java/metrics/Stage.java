@@ -0,0 +1,26 @@
+package metrics;
+
+/**
+ * The stages of an export, in the order messages pass through them.
+ */
+public enum Stage {
+    /** Listing message ids, one call per page */
+    LIST,
+    /** Fetching messages, one call per batch request */
+    FETCH,
+    /** Checking fetched messages against the sender and subject filters */
+    FILTER,
+    /** Parsing messages into records */
+    PARSE,
+    /** Writing records to the csv output */
+    WRITE,
+    /** Labelling or trashing processed messages, one call per batchModify */
+    TRASH;
+
+    /**
+     * @return the stage name as used in reports, such as {@code fetch}
+     */
+    public String label() {
+        return name().toLowerCase();
+    }
+}
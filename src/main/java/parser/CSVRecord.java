@@ -1,21 +1,44 @@
 package parser;
 
-import java.time.Instant;
-import java.time.LocalDate;
-import java.time.ZoneId;
+import utils.Configuration;
+import utils.CsvRow;
+import utils.DayFormatCache;
+
 import java.time.format.DateTimeFormatter;
 
 public interface CSVRecord {
     static final DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("dd/MMM/yyyy");
+    /**
+     * Separator for records that build their own csv line in {@link #toCsv()}, rather than writing their fields.
+     */
     static final String DELIMITER = ", ";
 
+    /**
+     * The record's date in the configured csv time zone, formatted once per day and shared by every record.
+     */
     default String formatDate() {
-        ZoneId zoneId = ZoneId.of("Europe/London");
-        LocalDate localDate = Instant.ofEpochMilli(getLongDate()).atZone(zoneId).toLocalDate();
-        return localDate.format(dateTimeFormatter);
+        return DateFormats.DAYS.format(getLongDate());
     }
 
     String toCsv();
 
+    /**
+     * Writes the record's fields to the row in column order, the row quotes any value that needs it.
+     * Records that do not override this are written out as their {@link #toCsv()} line.
+     */
+    default void writeFields(CsvRow row) {
+        row.raw(toCsv());
+    }
+
     long getLongDate();
+
+    /**
+     * Holds the shared date cache, created when first used so that the configuration is only read then.
+     */
+    final class DateFormats {
+        private static final DayFormatCache DAYS = new DayFormatCache(dateTimeFormatter, Configuration.getInstance().csvZoneId());
+
+        private DateFormats() {
+        }
+    }
 }
@@ -0,0 +1,95 @@
+package parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The amount of each Gmail message a parser needs, used to request no more data than is required.
+ * See <a href="https://developers.google.com/gmail/api/reference/rest/v1/Format">message formats</a>.
+ * <li>minimal</li> ids and labels only
+ * <li>metadata</li> ids, labels and the named headers
+ * <li>full</li> the complete parsed payload including bodies
+ * <li>raw</li> the entire rfc 2822 message as a base64url string, with no parsed payload
+ * An optional fields mask, such as {@code id,internalDate,payload/headers}, trims the response further.
+ * @param format - the Gmail message format
+ * @param metadataHeaders - headers to include when the format is metadata, all headers when empty
+ * @param fields - partial response field mask, or null for every field
+ */
+public record FetchFormat(String format, List<String> metadataHeaders, String fields) {
+    public static final FetchFormat MINIMAL = new FetchFormat("minimal", List.of(), null);
+    public static final FetchFormat FULL = new FetchFormat("full", List.of(), null);
+    public static final FetchFormat RAW = new FetchFormat("raw", List.of(), null);
+
+    public static FetchFormat metadata(String... headers) {
+        return new FetchFormat("metadata", List.of(headers), null);
+    }
+
+    public FetchFormat withFields(String fieldMask) {
+        return new FetchFormat(format, metadataHeaders, fieldMask);
+    }
+
+    public boolean isFull() {
+        return FULL.format.equals(format);
+    }
+
+    public boolean isMetadata() {
+        return "metadata".equals(format);
+    }
+
+    public boolean isMinimal() {
+        return MINIMAL.format.equals(format);
+    }
+
+    /**
+     * A format that also includes the given headers, for instance so that messages can be filtered by sender.
+     * Minimal is raised to metadata, metadata gains any missing headers and the other formats are unchanged.
+     */
+    public FetchFormat requiringHeaders(String... headers) {
+        if (headers.length == 0 || !(isMinimal() || isMetadata())) {
+            return this;
+        }
+        if (isMetadata() && metadataHeaders.isEmpty()) {
+            // already includes every header
+            return this;
+        }
+        List<String> mergedHeaders = new ArrayList<>(metadataHeaders);
+        for (String header : headers) {
+            if (mergedHeaders.stream().noneMatch(header::equalsIgnoreCase)) {
+                mergedHeaders.add(header);
+            }
+        }
+        String mergedFields = fields;
+        if (isMinimal() && fields != null && !fields.contains("payload")) {
+            mergedFields = fields + ",payload/headers";
+        }
+        return new FetchFormat("metadata", Collections.unmodifiableList(mergedHeaders), mergedFields);
+    }
+
+    /**
+     * A format holding everything either format holds, so that one fetch can serve parsers asking for either.
+     * Minimal gives way to the other format, metadata formats merge their headers and anything else becomes full.
+     * Raw is only kept when both are raw, and a fields mask only when both have the same one.
+     */
+    public FetchFormat union(FetchFormat other) {
+        if (equals(other)) {
+            return this;
+        }
+        String mergedFields = Objects.equals(fields, other.fields) ? fields : null;
+        if (isMinimal()) {
+            return new FetchFormat(other.format, other.metadataHeaders, mergedFields);
+        }
+        if (other.isMinimal()) {
+            return new FetchFormat(format, metadataHeaders, mergedFields);
+        }
+        if (isMetadata() && other.isMetadata()) {
+            if (metadataHeaders.isEmpty() || other.metadataHeaders.isEmpty()) {
+                return new FetchFormat(format, List.of(), mergedFields);
+            }
+            return new FetchFormat(format, metadataHeaders, mergedFields)
+                    .requiringHeaders(other.metadataHeaders.toArray(String[]::new));
+        }
+        return FULL;
+    }
+}
@@ -1,16 +1,42 @@
 package parser;
 
 import com.google.api.services.gmail.model.Message;
+import utils.MessageView;
 
 import java.util.List;
 
-public interface MessageParser {
+/**
+ * Turns Gmail messages into csv records.
+ * <p>
+ * Concurrency contract: {@link #parse(Message)} is called for many messages at once from the threads of the export
+ * pipeline's parse pool, so implementations must be thread safe. Parsing should be stateless, with any working state
+ * held in locals rather than fields. Anything written outside of the returned records, such as a copy of each
+ * message, must go to a sink that is safe to share between threads and write each message in one call so that
+ * output from different workers is not interleaved. The order in which messages are parsed is not defined, the
+ * pipeline puts the records back into message order itself. {@link #cleanup()} is only called once parsing is over.
+ * <p>
+ * Parsers are made available by a {@link MessageParserProvider} and found through the {@link ParserRegistry}. A
+ * parser says which messages it wants with {@link #searchQuery()} and {@link #handles(MessageView)}, so that a
+ * {@code ParserRouter} can list and fetch messages once for many parsers.
+ * @param <R> the type of record the parser produces
+ */
+public interface MessageParser<R extends CSVRecord> {
     /**
-     * Main method that parses the given Gmail Email message object.
+     * Main method that parses the given Gmail Email message object. May be called concurrently.
      * @param msg
      * @return List of generated output records from the Message
      */
-    List parse(Message msg);
+    List<R> parse(Message msg);
+
+    /**
+     * Parses the message through a view that indexes its MIME parts and fetches held back attachment bodies on
+     * demand. The export pipeline calls this, parsers that read message bodies should override it.
+     * @param view - the message to parse
+     * @return List of generated output records from the Message
+     */
+    default List<R> parse(MessageView view) {
+        return parse(view.message());
+    }
 
     /**
      * Permits the parser to clean up any open resources
@@ -22,4 +48,30 @@ public interface MessageParser {
      * @return
      */
     String getCSVOutputFilename();
+
+    /**
+     * The format the messages given to this parser should be fetched in. Parsers that only look at headers should
+     * ask for metadata with just those headers so that message bodies are not downloaded.
+     * @return the full format unless overridden
+     */
+    default FetchFormat fetchFormat() {
+        return FetchFormat.FULL;
+    }
+
+    /**
+     * Gmail search terms matching the messages this parser handles, such as {@code from:someone@example.com}.
+     * @return the search terms, null when the parser handles every message
+     */
+    default String searchQuery() {
+        return null;
+    }
+
+    /**
+     * Whether the parser wants the given message, checked against the headers of its {@link #fetchFormat()}.
+     * Called concurrently and before {@link #parse(MessageView)}, so it should be cheap.
+     * @return true unless overridden
+     */
+    default boolean handles(MessageView view) {
+        return true;
+    }
 }
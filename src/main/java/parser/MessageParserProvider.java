@@ -0,0 +1,20 @@
+package parser;
+
+/**
+ * Service provider interface through which parsers are found by the {@link ParserRegistry}. Implementations are
+ * listed in {@code META-INF/services/parser.MessageParserProvider} and need a public no argument constructor.
+ * Parsers are created through their provider, rather than loaded directly, as a parser may open output files
+ * when it is constructed.
+ */
+public interface MessageParserProvider {
+    /**
+     * @return the name the parser is configured by, such as linkedin
+     */
+    String name();
+
+    /**
+     * Creates a parser, each export gets its own.
+     * @param csvOutputFilename - csv file the records are written to, null for the parser's default
+     */
+    MessageParser<?> create(String csvOutputFilename);
+}
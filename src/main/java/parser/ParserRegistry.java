@@ -0,0 +1,66 @@
+package parser;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+/**
+ * The parsers available to the exporter, found on the classpath through {@link ServiceLoader}. A new parser is made
+ * available by adding its {@link MessageParserProvider} to {@code META-INF/services/parser.MessageParserProvider},
+ * no change to the exporter is needed. Names are matched ignoring case.
+ */
+public class ParserRegistry {
+    private static ParserRegistry instance;
+
+    private final Map<String, MessageParserProvider> providers;
+
+    ParserRegistry(Iterable<MessageParserProvider> providers) {
+        Map<String, MessageParserProvider> byName = new LinkedHashMap<>();
+        for (MessageParserProvider provider : providers) {
+            MessageParserProvider clash = byName.putIfAbsent(key(provider.name()), provider);
+            if (clash != null) {
+                throw new IllegalStateException("Parsers " + clash.getClass().getName() + " and " +
+                        provider.getClass().getName() + " are both named " + provider.name());
+            }
+        }
+        this.providers = Collections.unmodifiableMap(byName);
+    }
+
+    public static synchronized ParserRegistry getInstance() {
+        if (instance == null) {
+            instance = new ParserRegistry(ServiceLoader.load(MessageParserProvider.class));
+        }
+        return instance;
+    }
+
+    /**
+     * @return names of the registered parsers, in classpath order
+     */
+    public Set<String> names() {
+        return providers.keySet();
+    }
+
+    public MessageParser<?> create(String name) {
+        return create(name, null);
+    }
+
+    /**
+     * Creates the named parser.
+     * @param csvOutputFilename - csv file the records are written to, null for the parser's default
+     * @throws IllegalArgumentException if no parser has the name
+     */
+    public MessageParser<?> create(String name, String csvOutputFilename) {
+        MessageParserProvider provider = providers.get(key(name));
+        if (provider == null) {
+            throw new IllegalArgumentException("Unknown parser: " + name + ", available parsers are " + names());
+        }
+        return provider.create(csvOutputFilename);
+    }
+
+    private static String key(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,25 @@
+package parser;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Decides which parsed records an export writes out, for instance leaving out records exported by an earlier run.
+ * Records are offered in the order they would be written, and a filter may be shared by pipelines running
+ * concurrently.
+ */
+public interface RecordFilter {
+
+    /**
+     * @return whether the record should be written
+     */
+    boolean accept(CSVRecord record);
+
+    /**
+     * Called once the accepted records have been safely written, so that a filter remembering what it accepted
+     * does not remember records lost to a crash.
+     * @param records - the records written, all of them accepted by this filter
+     */
+    default void written(List<? extends CSVRecord> records) throws IOException {
+    }
+}
@@ -1,18 +1,20 @@
 package parser.basic;
 
 import parser.CSVRecord;
+import utils.CsvRow;
 
 public record BasicEmail(long emailDate, String from, String to, String subject) implements CSVRecord {
 
     public String toCsv() {
-        StringBuilder sb = new StringBuilder(formatDate());
-        sb.append(CSVRecord.DELIMITER);
-        sb.append(from);
-        sb.append(CSVRecord.DELIMITER);
-        sb.append(to);
-        sb.append(CSVRecord.DELIMITER);
-        sb.append(subject);
-        return sb.toString();
+        return CsvRow.format(this);
+    }
+
+    @Override
+    public void writeFields(CsvRow row) {
+        row.field(formatDate())
+                .field(from)
+                .field(to)
+                .field(subject);
     }
 
     @Override
@@ -1,21 +1,51 @@
 package parser.basic;
 
 import com.google.api.services.gmail.model.Message;
-import com.google.api.services.gmail.model.MessagePartHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parser.FetchFormat;
 import parser.MessageParser;
+import utils.MessageHeaders;
+import utils.MessageView;
 
 import java.util.List;
 
-public class BasicEmailParser implements MessageParser {
+public class BasicEmailParser implements MessageParser<BasicEmail> {
+    private static final Logger logger = LoggerFactory.getLogger(BasicEmailParser.class.getName());
+
+    private static final FetchFormat HEADERS_ONLY = FetchFormat.metadata("Subject", "From", "To", "Date")
+            .withFields("id,internalDate,payload/headers");
+    private static final String DEFAULT_CSV_OUTPUT_FILENAME = "email-listing.csv";
+
+    private final String csvOutputFilename;
+
+    public BasicEmailParser() {
+        this(null);
+    }
+
+    /**
+     * @param csvOutputFilename - csv file the records are written to, null for the default
+     */
+    public BasicEmailParser(String csvOutputFilename) {
+        this.csvOutputFilename = csvOutputFilename == null || csvOutputFilename.isBlank()
+                ? DEFAULT_CSV_OUTPUT_FILENAME
+                : csvOutputFilename;
+    }
+
     @Override
     public List<BasicEmail> parse(Message msg) {
-        Long internalDate = msg.getInternalDate();
-        List<MessagePartHeader> headers = msg.getPayload().getHeaders();
-        String messageSubject = headers.stream().filter(s -> s.getName().equalsIgnoreCase("SUBJECT")).map(MessagePartHeader::getValue).findFirst().orElse("Not Found");
-        String messageSender  = headers.stream().filter(s -> s.getName().equalsIgnoreCase("FROM")).map(MessagePartHeader::getValue).findFirst().orElse("Not Found");
-        String messageFrom    = headers.stream().filter(s -> s.getName().equalsIgnoreCase("TO")).map(MessagePartHeader::getValue).findFirst().orElse("Not Found");
-        String messageSentDate = headers.stream().filter(s -> s.getName().equalsIgnoreCase("DATE")).map(MessagePartHeader::getValue).findFirst().orElse("Not Found");
-        System.out.println("Message sent date is: " + messageSentDate);
+        return parse(MessageView.of(msg));
+    }
+
+    @Override
+    public List<BasicEmail> parse(MessageView view) {
+        Long internalDate = view.message().getInternalDate();
+        MessageHeaders headers = view.headers();
+        String messageSubject = headers.value("Subject", "Not Found");
+        String messageSender  = headers.value("From", "Not Found");
+        String messageFrom    = headers.value("To", "Not Found");
+        String messageSentDate = headers.value("Date", "Not Found");
+        logger.debug("Message sent date is: {}", messageSentDate);
         return List.of(new BasicEmail(internalDate, messageFrom, messageSender, messageSubject));
     }
 
@@ -25,6 +55,11 @@ public class BasicEmailParser implements MessageParser {
 
     @Override
     public String getCSVOutputFilename() {
-        return "email-listing.csv";
+        return csvOutputFilename;
+    }
+
+    @Override
+    public FetchFormat fetchFormat() {
+        return HEADERS_ONLY;
     }
 }
@@ -0,0 +1,16 @@
+package parser.basic;
+
+import parser.MessageParser;
+import parser.MessageParserProvider;
+
+public class BasicEmailParserProvider implements MessageParserProvider {
+    @Override
+    public String name() {
+        return "basic";
+    }
+
+    @Override
+    public MessageParser<?> create(String csvOutputFilename) {
+        return new BasicEmailParser(csvOutputFilename);
+    }
+}
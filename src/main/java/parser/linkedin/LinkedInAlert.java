@@ -1,22 +1,22 @@
 package parser.linkedin;
 
 import parser.CSVRecord;
+import utils.CsvRow;
 
 public record LinkedInAlert(long emailDate, String title, String company, String location, String additional, String link) implements CSVRecord {
 
     public String toCsv() {
-        StringBuilder sb = new StringBuilder(formatDate());
-        sb.append(CSVRecord.DELIMITER);
-        sb.append(title);
-        sb.append(CSVRecord.DELIMITER);
-        sb.append(company);
-        sb.append(CSVRecord.DELIMITER);
-        sb.append(location);
-        sb.append(CSVRecord.DELIMITER);
-        sb.append(additional != null? additional: "");
-        sb.append(CSVRecord.DELIMITER);
-        sb.append(link);
-        return sb.toString();
+        return CsvRow.format(this);
+    }
+
+    @Override
+    public void writeFields(CsvRow row) {
+        row.field(formatDate())
+                .field(title)
+                .field(company)
+                .field(location)
+                .field(additional)
+                .field(link);
     }
 
     @Override
@@ -5,31 +5,44 @@ import utils.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import parser.MessageParser;
+import utils.MessageView;
 import utils.Util;
 
 import java.io.*;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-public class LinkedInJobAlertEmailParser implements MessageParser {
+public class LinkedInJobAlertEmailParser implements MessageParser<LinkedInAlert> {
     private static final Logger logger = LoggerFactory.getLogger(LinkedInJobAlertEmailParser.class.getName());
 
     enum messageParsingStates {SUMMARY, RECORDS, COMPLETED}
 
-    private static final String INITIAL_ALERT_LINE = "^Your job alert for .*";
-    private static final String INITIAL_SUMMARY_LINE = "^[0-9]+[+]* new jobs match your preferences.*";
-    private static final String FINAL_SUMMARY_LINE = "^See all jobs on LinkedIn: .*";
-    private static final String RECORD_LINK_LINE = "^View job:\\s+(.*)";
-    private static final Pattern RECORD_LINK_LINE_PATTERN = Pattern.compile(RECORD_LINK_LINE);
+    private enum LineType {EMPTY, INITIAL_SUMMARY, FINAL_SUMMARY, TEXT}
 
+    // Lines are matched by hand rather than by regex, each prefix notes the expression it stands in for
+    private static final String INITIAL_SUMMARY_SUFFIX = " new jobs match your preferences";     // ^[0-9]+[+]* new jobs match your preferences.*
+    private static final String FINAL_SUMMARY_PREFIX = "See all jobs on LinkedIn: ";             // ^See all jobs on LinkedIn: .*
+    private static final String RECORD_LINK_PREFIX = "View job:";                               // ^View job:\\s+(.*)
+
+    private static final String ALERT_SENDER = "jobalerts-noreply@linkedin.com";
+
+    private final String csvOutputFilename;
     private String messageOutputFileName;
     private PrintWriter messageOutputHandle;
 
     public LinkedInJobAlertEmailParser() {
+        this(null);
+    }
+
+    /**
+     * @param csvOutputFilename - csv file the records are written to, null for the dated default. The messages file
+     *                          is then named after it, so that several parsers can run at once.
+     */
+    public LinkedInJobAlertEmailParser(String csvOutputFilename) {
+        this.csvOutputFilename = csvOutputFilename == null || csvOutputFilename.isBlank() ? null : csvOutputFilename;
         Configuration parserConfiguration = Configuration.getInstance();
         if (parserConfiguration.outputMessagesToFile()) {
             openOpenFile();
@@ -42,7 +55,9 @@ public class LinkedInJobAlertEmailParser implements MessageParser {
     private void openOpenFile() {
         LocalDate localDate = LocalDate.now();
         String dateSuffix = localDate.format(DateTimeFormatter.ofPattern("ddMMyy"));
-        this.messageOutputFileName = "messages-" + dateSuffix + ".txt";
+        this.messageOutputFileName = csvOutputFilename != null
+                ? Util.addFileSuffix(csvOutputFilename, "messages", "txt")
+                : "messages-" + dateSuffix + ".txt";
         try {
             messageOutputHandle = new PrintWriter(messageOutputFileName);
         } catch (FileNotFoundException e) {
@@ -50,10 +65,13 @@ public class LinkedInJobAlertEmailParser implements MessageParser {
         }
     }
 
-    private void writeoutMessageToFile(String msgTxt) {
+    private void writeoutMessageToFile(CharSequence msgTxt) {
         if (this.messageOutputHandle != null) {
-            this.messageOutputHandle.println(msgTxt);
-            this.messageOutputHandle.println("----------------------------------------\n");
+            // Messages are parsed concurrently, keep each message and its separator together
+            synchronized (this.messageOutputHandle) {
+                this.messageOutputHandle.println(msgTxt);
+                this.messageOutputHandle.println("----------------------------------------\n");
+            }
         }
     }
 
@@ -61,89 +79,191 @@ public class LinkedInJobAlertEmailParser implements MessageParser {
     // Parsing methods
     // --------------------------------------------------------------
     boolean isEmptyLine(String line) {
-        return line.matches("^\\s*$");
+        return isEmptyLine(line, 0, line.length());
     }
 
     boolean isHyphenSeparatorLine(String line) {
-        return line.matches("^\\s*\\-+");
+        return isHyphenSeparatorLine(line, 0, line.length());
+    }
+
+    /**
+     * Same as {@code ^\\s*$}, every character is whitespace.
+     */
+    private static boolean isEmptyLine(CharSequence text, int start, int end) {
+        return skipWhitespace(text, start, end) == end;
+    }
+
+    /**
+     * Same as {@code ^\\s*\\-+}, optional whitespace followed by nothing but hyphens.
+     */
+    private static boolean isHyphenSeparatorLine(CharSequence text, int start, int end) {
+        int pos = skipWhitespace(text, start, end);
+        if (pos == end) {
+            return false;
+        }
+        for (; pos < end; pos++) {
+            if (text.charAt(pos) != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Classifies the line, the prefixed lines match their regex equivalents {@code ^prefix.*}.
+     */
+    private static LineType classify(CharSequence text, int start, int end) {
+        if (isEmptyLine(text, start, end)) {
+            return LineType.EMPTY;
+        }
+        if (isPrefixedLine(text, start, end, FINAL_SUMMARY_PREFIX)) {
+            return LineType.FINAL_SUMMARY;
+        }
+        if (isInitialSummaryLine(text, start, end)) {
+            return LineType.INITIAL_SUMMARY;
+        }
+        return LineType.TEXT;
+    }
+
+    /**
+     * Same as {@code ^[0-9]+[+]* new jobs match your preferences.*}
+     */
+    private static boolean isInitialSummaryLine(CharSequence text, int start, int end) {
+        int pos = start;
+        while (pos < end && text.charAt(pos) >= '0' && text.charAt(pos) <= '9') {
+            pos++;
+        }
+        if (pos == start) {
+            return false;
+        }
+        while (pos < end && text.charAt(pos) == '+') {
+            pos++;
+        }
+        return isPrefixedLine(text, pos, end, INITIAL_SUMMARY_SUFFIX);
+    }
+
+    private static boolean isPrefixedLine(CharSequence text, int start, int end, String prefix) {
+        return startsWith(text, start, end, prefix) && endOfLineContent(text, start + prefix.length(), end) == end;
     }
 
-    private void parseRecord(Long internalDate, String title, BufferedReader br, List<LinkedInAlert> parsedAlerts) throws IOException {
+    /**
+     * Same as {@code ^View job:\\s+(.*)}
+     * @return the start of the link, or -1 when this is not the link line
+     */
+    private static int linkStart(CharSequence text, int start, int end) {
+        int pos = start + RECORD_LINK_PREFIX.length();
+        if (!startsWith(text, start, end, RECORD_LINK_PREFIX) || pos == end || !isWhitespace(text.charAt(pos))) {
+            return -1;
+        }
+        return skipWhitespace(text, pos, end);
+    }
+
+    private static boolean startsWith(CharSequence text, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(CharSequence text, int pos, int end) {
+        while (pos < end && isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Regex {@code \\s}, which unlike {@link Character#isWhitespace(char)} is ascii only.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Regex {@code .} stops at the unicode line terminators as well as the ones the lines are split on.
+     * @return the position of the first line terminator from pos, or end
+     */
+    private static int endOfLineContent(CharSequence text, int pos, int end) {
+        while (pos < end) {
+            char c = text.charAt(pos);
+            if (c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return pos;
+            }
+            pos++;
+        }
+        return end;
+    }
+
+    private void parseRecord(Long internalDate, LineCursor lines, RecordLines recordLines, List<LinkedInAlert> parsedAlerts) {
         logger.debug("--- Parsing email alert record start");
-        List<String> jobLines = new ArrayList<>();
-        title = title.replace(',', '-');
-        jobLines.add(title);
-        boolean linkParsed = false;
+        CharSequence text = lines.text;
+        recordLines.clear();
+        recordLines.add(lines.start, lines.end);
         String link = null;
-        do {
-            String additional = br.readLine();
-            if (additional != null) {
-                // Avoid any comma related issues for when we export to csv
-                jobLines.add(additional.replace(',', '-'));
-                Matcher matcher = RECORD_LINK_LINE_PATTERN.matcher(additional);
-                if (matcher.find()) {
-                    link = matcher.group(1);
-                    linkParsed = true;
-                }
-            }
-            else {
-                break;
+        boolean linkParsed = false;
+        while (!linkParsed && lines.next()) {
+            recordLines.add(lines.start, lines.end);
+            int linkStart = linkStart(text, lines.start, lines.end);
+            if (linkStart != -1) {
+                link = text.subSequence(linkStart, endOfLineContent(text, linkStart, lines.end)).toString();
+                linkParsed = true;
             }
-        } while (!linkParsed);
+        }
 
+        String title = recordLines.line(text, 0);
         if (!linkParsed) {
             logger.error("Failed to parse link line for job: {}", title);
         }
 
         // Empty line
-        try {
-            String emptyLine = br.readLine();
-            if (!isEmptyLine(emptyLine)) {
-                logger.error("--- Failed to find empty line!");
-            }
-        } catch (IOException io) {
-            io.printStackTrace();
+        if (!lines.next() || !isEmptyLine(text, lines.start, lines.end)) {
+            logger.error("--- Failed to find empty line!");
         }
 
         // hyphen line
-        try {
-            String hyphenLine = br.readLine();
-            if (!isHyphenSeparatorLine(hyphenLine)) {
-                logger.error("--- Failed to find hyphen line!");
-            }
-        } catch (IOException io) {
-            io.printStackTrace();
+        if (!lines.next() || !isHyphenSeparatorLine(text, lines.start, lines.end)) {
+            logger.error("--- Failed to find hyphen line!");
         }
 
-        LinkedInAlert linkedInAlert = null;
+        int lineCount = recordLines.size();
+        int locationOffset = lineCount == 7 ? 1 : 0;
+        if (lineCount < 3 + locationOffset) {
+            logger.error("--- Too few lines for job: {}", title);
+            return;
+        }
         // get company, but may be job line continuation
-        String company = jobLines.get(1);
-
-        int locationOffset = 0;
-        if (jobLines.size() == 7) {
+        String company = recordLines.line(text, 1);
+        if (locationOffset == 1) {
             title = title + " - " + company;
-            locationOffset += 1;
-            company = jobLines.get(1 + locationOffset);
+            company = recordLines.line(text, 2);
         }
         // get location
         if (company.startsWith("£")) {
             title = title + company;
             locationOffset += 1;
-            company = jobLines.get(1 + locationOffset);
+            if (lineCount < 3 + locationOffset) {
+                logger.error("--- Too few lines for job: {}", title);
+                return;
+            }
+            company = recordLines.line(text, 1 + locationOffset);
         }
-        String location = jobLines.get(2 + locationOffset);
+        String location = recordLines.line(text, 2 + locationOffset);
 
         // Parse comments
         StringBuilder additionalComments = new StringBuilder();
-        for (int i = 3 + locationOffset; i < jobLines.size() -1; i++) {
+        for (int i = 3 + locationOffset; i < lineCount - 1; i++) {
             if (!additionalComments.isEmpty()) {
                 additionalComments.append(". ");
             }
-            additionalComments.append(jobLines.get(i));
+            recordLines.appendLine(text, i, additionalComments);
         }
 
-        linkedInAlert = new LinkedInAlert(internalDate, title, company, location, additionalComments.toString(), chompLink(link));
-        parsedAlerts.add(linkedInAlert);
+        parsedAlerts.add(new LinkedInAlert(internalDate, title, company, location, additionalComments.toString(), chompLink(link)));
 
         logger.debug("--- Parsing email record end");
     }
@@ -158,12 +278,32 @@ public class LinkedInJobAlertEmailParser implements MessageParser {
     }
 
     public List<LinkedInAlert> parse(Message msg) {
-        String msgTxt = Util.decodeMessageContent(msg, Util.EMAIL_MIME_TYPE.TEXT);
+        return parse(MessageView.of(msg));
+    }
+
+    @Override
+    public List<LinkedInAlert> parse(MessageView view) {
+        // Decoded once, straight into the buffer the line scanner reads
+        CharSequence msgTxt = view.content(Util.EMAIL_MIME_TYPE.TEXT);
+        if (msgTxt == null) {
+            logger.warn("No text body found in message {}", view.message().getId());
+            return List.of();
+        }
         writeoutMessageToFile(msgTxt);
-        Long internalDate = msg.getInternalDate();
+        Long internalDate = view.message().getInternalDate();
         return this.parse(internalDate, msgTxt);
     }
 
+    @Override
+    public String searchQuery() {
+        return "from:" + ALERT_SENDER;
+    }
+
+    @Override
+    public boolean handles(MessageView view) {
+        return view.headers().value("From", "").contains(ALERT_SENDER);
+    }
+
     @Override
     public void cleanup() {
         if (this.messageOutputHandle != null)
@@ -172,53 +312,115 @@ public class LinkedInJobAlertEmailParser implements MessageParser {
 
     @Override
     public String getCSVOutputFilename() {
+        if (csvOutputFilename != null) {
+            return csvOutputFilename;
+        }
         LocalDate localDate = LocalDate.now();
         String dateSuffix = localDate.format(DateTimeFormatter.ofPattern("ddMMyy"));
         return String.format("linkedInAlerts-%s.csv", dateSuffix);
     }
 
-    public List<LinkedInAlert> parse(Long internalDate, String msgTxt) {
-        Reader stringReader = new StringReader(msgTxt);
-        return this.parse(internalDate, new BufferedReader(stringReader));
-    }
-
-    public List<LinkedInAlert> parse(Long internalDate, BufferedReader br) {
+    /**
+     * Single pass over the message text, each line is classified once as it is reached.
+     */
+    public List<LinkedInAlert> parse(Long internalDate, CharSequence msgTxt) {
         logger.debug("Parsing email message start");
         messageParsingStates state = messageParsingStates.SUMMARY;
         List<LinkedInAlert> parsedAlerts = new ArrayList<>();
-        String sCurrentLine;
-        try {
-            while ((sCurrentLine = br.readLine()) != null) {
-            logger.debug("Parsing [{}]", sCurrentLine);
-                if (isEmptyLine(sCurrentLine)) {
+        LineCursor lines = new LineCursor(msgTxt);
+        RecordLines recordLines = new RecordLines();
+        while (lines.next()) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Parsing [{}]", msgTxt.subSequence(lines.start, lines.end));
+            }
+            LineType lineType = classify(msgTxt, lines.start, lines.end);
+            if (lineType == LineType.EMPTY) {
+                continue;
+            }
+            if (lineType == LineType.FINAL_SUMMARY) {
+                logger.debug("--- All email alerts in message parsed.");
+                state = messageParsingStates.COMPLETED;
+                break;
+            }
+            switch (state) {
+                case SUMMARY:
+                    // Skip the alert title until the summary line is reached
+                    if (lineType == LineType.INITIAL_SUMMARY)
+                        state = messageParsingStates.RECORDS;
                     continue;
-                }
 
-                if (sCurrentLine.startsWith("See all jobs")) {
-                    logger.debug("--- All email alerts in message parsed.");
-                }
-                if (sCurrentLine.matches(FINAL_SUMMARY_LINE)) {
-                    state = messageParsingStates.COMPLETED;
+                case RECORDS:
+                    parseRecord(internalDate, lines, recordLines, parsedAlerts);
                     break;
-                }
-                switch (state) {
-                    case SUMMARY:
-                        if (sCurrentLine.matches(INITIAL_ALERT_LINE))
-                            continue;
-                        else if (sCurrentLine.matches(INITIAL_SUMMARY_LINE))
-                            state = messageParsingStates.RECORDS;
-                        continue;
-
-                    case RECORDS:
-                        parseRecord(internalDate, sCurrentLine, br, parsedAlerts);
-                        break;
-                }
             }
         }
-        catch(IOException e) {
-            e.printStackTrace();
-        }
         logger.debug("Parsing email message completed, parsed {} alerts\n", parsedAlerts.size());
         return parsedAlerts;
     }
+
+    /**
+     * Walks the lines of the text in place, splitting on the same line endings as {@link java.io.BufferedReader}.
+     * The current line runs from {@code start} up to, but not including, {@code end}.
+     */
+    private static final class LineCursor {
+        private final CharSequence text;
+        private int next = 0;
+        private int start;
+        private int end;
+
+        LineCursor(CharSequence text) {
+            this.text = text;
+        }
+
+        boolean next() {
+            int length = text.length();
+            if (next >= length) {
+                return false;
+            }
+            start = next;
+            int pos = start;
+            while (pos < length && text.charAt(pos) != '\n' && text.charAt(pos) != '\r') {
+                pos++;
+            }
+            end = pos;
+            if (pos < length && text.charAt(pos) == '\r' && pos + 1 < length && text.charAt(pos + 1) == '\n') {
+                pos++;
+            }
+            next = pos + 1;
+            return true;
+        }
+    }
+
+    /**
+     * Offsets of the lines of the record being parsed, reused for each record of a message.
+     */
+    private static final class RecordLines {
+        private int[] bounds = new int[16];
+        private int size = 0;
+
+        void clear() {
+            size = 0;
+        }
+
+        void add(int start, int end) {
+            if (2 * size + 2 > bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            bounds[2 * size] = start;
+            bounds[2 * size + 1] = end;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        String line(CharSequence text, int index) {
+            return text.subSequence(bounds[2 * index], bounds[2 * index + 1]).toString();
+        }
+
+        void appendLine(CharSequence text, int index, StringBuilder sb) {
+            sb.append(text, bounds[2 * index], bounds[2 * index + 1]);
+        }
+    }
 }
@@ -0,0 +1,16 @@
+package parser.linkedin;
+
+import parser.MessageParser;
+import parser.MessageParserProvider;
+
+public class LinkedInJobAlertParserProvider implements MessageParserProvider {
+    @Override
+    public String name() {
+        return "linkedin";
+    }
+
+    @Override
+    public MessageParser<?> create(String csvOutputFilename) {
+        return new LinkedInJobAlertEmailParser(csvOutputFilename);
+    }
+}
@@ -0,0 +1,128 @@
+package parser.linkedin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import parser.CSVRecord;
+import parser.RecordFilter;
+import utils.SeenIndex;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Leaves out {@link LinkedInAlert}s for jobs exported by an earlier run, or earlier in this one, so that each job is
+ * only written once however many alerts it appears in. Other records are passed through.
+ * <p>
+ * Jobs are keyed by the numeric id in their link, {@code /jobs/view/<id>}, falling back to a hash of the whole link,
+ * and kept in a {@link SeenIndex} along with the day each job was first and last seen and the number of alerts it
+ * has been in. A job only joins the index once its record has been written, so a record lost to a crash is written
+ * again by the resumed run. Thread safe.
+ */
+public class SeenJobFilter implements RecordFilter, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SeenJobFilter.class.getName());
+
+    private static final Pattern JOB_ID = Pattern.compile("/jobs/view/(\\d{1,18})(?:\\D|$)");
+
+    private final SeenIndex index;
+    private final Clock clock;
+    // Jobs accepted but not yet written, which stops a job being accepted twice before it is in the index
+    private final Set<Long> acceptedKeys = new HashSet<>();
+    // Alerts left out for each job since the last write, counted into the index on the next write
+    private final Map<Long, Integer> repeatedKeys = new HashMap<>();
+    private long newJobs = 0;
+    private long repeatedJobs = 0;
+
+    public SeenJobFilter(SeenIndex index, Clock clock) {
+        this.index = index;
+        this.clock = clock;
+    }
+
+    /**
+     * Opens the filter over the index file, creating the index if missing.
+     * @param zoneId - time zone of the days the jobs are recorded as seen on
+     */
+    public static SeenJobFilter open(Path indexFile, ZoneId zoneId) throws IOException {
+        return new SeenJobFilter(SeenIndex.open(indexFile), Clock.system(zoneId));
+    }
+
+    /**
+     * @return the key a job is indexed under, the job id in the link or a hash of the link
+     */
+    public static long jobKey(String link) {
+        Matcher matcher = JOB_ID.matcher(link);
+        if (matcher.find()) {
+            return Long.parseLong(matcher.group(1));
+        }
+        // FNV-1a, with the top bit set so that it cannot collide with a job id
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : link.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash | Long.MIN_VALUE;
+    }
+
+    @Override
+    public synchronized boolean accept(CSVRecord record) {
+        if (!(record instanceof LinkedInAlert alert) || alert.link() == null || alert.link().isEmpty()) {
+            return true;
+        }
+        long key = jobKey(alert.link());
+        if (acceptedKeys.contains(key) || index.contains(key)) {
+            repeatedKeys.merge(key, 1, Integer::sum);
+            repeatedJobs++;
+            return false;
+        }
+        acceptedKeys.add(key);
+        newJobs++;
+        return true;
+    }
+
+    @Override
+    public synchronized void written(List<? extends CSVRecord> records) throws IOException {
+        LocalDate today = LocalDate.now(clock);
+        for (CSVRecord record : records) {
+            if (record instanceof LinkedInAlert alert && alert.link() != null && !alert.link().isEmpty()) {
+                long key = jobKey(alert.link());
+                if (acceptedKeys.remove(key)) {
+                    index.see(key, today, 1);
+                }
+            }
+        }
+        // Repeats of a job still waiting to be written are kept until it is
+        for (Iterator<Map.Entry<Long, Integer>> repeated = repeatedKeys.entrySet().iterator(); repeated.hasNext(); ) {
+            Map.Entry<Long, Integer> entry = repeated.next();
+            if (index.contains(entry.getKey())) {
+                index.see(entry.getKey(), today, entry.getValue());
+                repeated.remove();
+            }
+        }
+        index.force();
+    }
+
+    /**
+     * @return what the index holds for the job with this link, null if it has not been written
+     */
+    public synchronized SeenIndex.Entry seen(String link) {
+        return index.get(jobKey(link));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        logger.info("{} new jobs exported, {} repeated jobs left out, {} jobs seen in all", newJobs, repeatedJobs, index.size());
+        index.close();
+    }
+}
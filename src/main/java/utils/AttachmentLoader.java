@@ -0,0 +1,14 @@
+package utils;
+
+import com.google.api.services.gmail.model.MessagePartBody;
+
+import java.io.IOException;
+
+/**
+ * Fetches the body of a message part that Gmail did not include in the message, as happens for large attachments
+ * where the part only carries an attachment id.
+ */
+@FunctionalInterface
+public interface AttachmentLoader {
+    MessagePartBody load(String messageId, String attachmentId) throws IOException;
+}
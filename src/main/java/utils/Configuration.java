@@ -1,6 +1,13 @@
 package utils;
 
 import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -9,13 +16,77 @@ import java.util.Properties;
  */
 public class Configuration {
     private static final String CONFIGURATION_FILE = "configuration.properties";
+    private static final String DEFAULT_CSV_ZONE = "Europe/London";
+    // Gmail's launch, before which there is no mail to list
+    private static final LocalDate DEFAULT_LIST_SHARDS_SINCE = LocalDate.of(2004, 4, 1);
 
     private record MailParserConfiguration(String emailSenderFilter, String emailSubjectFilter, String emailSearchQuery, long maxSearchResultsLimit, boolean outputMessagesToFile, boolean deleteEmailMessages) {}
 
+    private record FetchConfiguration(int maxBatchesInFlight, int quotaUnitsPerSecond, int maxRetries) {}
+
+    private record StreamConfiguration(boolean streamMessages, int streamBatchSize) {}
+
+    private record SyncConfiguration(String checkpointFile, String progressJournalFile) {}
+
+    private record CacheConfiguration(String directory, int maxAgeDays, int maxMegabytes) {}
+
+    private record ParseConfiguration(int parseThreads) {}
+
+    private record DeleteConfiguration(String processedMessageLabel) {}
+
+    private record ParserSelectionConfiguration(String searchParser, String listParser, List<String> routeParsers, String routeSearchQuery) {}
+
+    /**
+     * An export job run by the jobs command, configured as {@code job.<name>.query}, {@code .parser}, {@code .output}
+     * and {@code .limit} properties.
+     * @param name - job name, as listed in exportJobs
+     * @param query - gmail search query, null to list every message
+     * @param parser - name of the registered parser the messages are run through
+     * @param outputFile - csv output file, null for the parser's default
+     * @param limit - max messages to list
+     */
+    public record JobSpec(String name, String query, String parser, String outputFile, long limit) {}
+
+    private record OutputConfiguration(boolean gzipCsvOutput, ZoneId csvZoneId, String seenJobsIndexFile) {}
+
+    private record MetricsConfiguration(String reportFile, String prometheusFile) {}
+
+    private record ListingConfiguration(int listShards, Instant listShardsSince) {}
+
+    private record WatchConfiguration(String watchCommand, int watchIntervalSeconds) {}
+
+    private record PushConfiguration(String topic, List<String> labelIds, int port, String path, String verificationToken, int fallbackMinutes) {}
+
     private static Configuration instance;
 
     private static MailParserConfiguration parserConfiguration;
 
+    private static FetchConfiguration fetchConfiguration;
+
+    private static StreamConfiguration streamConfiguration;
+
+    private static SyncConfiguration syncConfiguration;
+
+    private static CacheConfiguration cacheConfiguration;
+
+    private static ParseConfiguration parseConfiguration;
+
+    private static DeleteConfiguration deleteConfiguration;
+
+    private static List<JobSpec> jobSpecs;
+
+    private static ParserSelectionConfiguration parserSelectionConfiguration;
+
+    private static OutputConfiguration outputConfiguration;
+
+    private static MetricsConfiguration metricsConfiguration;
+
+    private static ListingConfiguration listingConfiguration;
+
+    private static WatchConfiguration watchConfiguration;
+
+    private static PushConfiguration pushConfiguration;
+
 
     private Configuration() {
     }
@@ -41,6 +112,50 @@ public class Configuration {
                     maxSearchResults,
                     outputMessagesFlag,
                     deleteProcessedEmailMessagesFlag);
+            Configuration.fetchConfiguration = new FetchConfiguration(
+                    parseIntProperty(props, "batchFetchConcurrency", 4),
+                    parseIntProperty(props, "quotaUnitsPerSecond", 250),
+                    parseIntProperty(props, "fetchMaxRetries", 5));
+            Configuration.streamConfiguration = new StreamConfiguration(
+                    Boolean.parseBoolean(props.getProperty("streamMessages", "false")),
+                    parseIntProperty(props, "streamBatchSize", 100));
+            Configuration.syncConfiguration = new SyncConfiguration(
+                    props.getProperty("syncCheckpointFile", "sync-checkpoint.txt"),
+                    props.getProperty("progressJournalFile", "export-journal.log"));
+            Configuration.cacheConfiguration = new CacheConfiguration(
+                    props.getProperty("messageCacheDirectory", ""),
+                    parseIntProperty(props, "messageCacheMaxAgeDays", 30),
+                    parseIntProperty(props, "messageCacheMaxMegabytes", 512));
+            Configuration.parseConfiguration = new ParseConfiguration(
+                    parseIntProperty(props, "parseThreads", 0));
+            Configuration.deleteConfiguration = new DeleteConfiguration(
+                    props.getProperty("processedMessageLabel", "TRASH"));
+            Configuration.jobSpecs = parseJobSpecs(props, maxSearchResults);
+            Configuration.parserSelectionConfiguration = new ParserSelectionConfiguration(
+                    props.getProperty("searchParser", "linkedin").trim(),
+                    props.getProperty("listParser", "basic").trim(),
+                    parseListProperty(props, "routeParsers"),
+                    props.getProperty("routeSearchQuery"));
+            Configuration.outputConfiguration = new OutputConfiguration(
+                    Boolean.parseBoolean(props.getProperty("gzipCsvOutput", "false")),
+                    parseZoneProperty(props, "csvTimeZone", DEFAULT_CSV_ZONE),
+                    props.getProperty("seenJobsIndexFile", ""));
+            Configuration.metricsConfiguration = new MetricsConfiguration(
+                    props.getProperty("metricsReportFile", ""),
+                    props.getProperty("metricsPrometheusFile", ""));
+            Configuration.listingConfiguration = new ListingConfiguration(
+                    parseIntProperty(props, "listShards", 1),
+                    parseDateProperty(props, "listShardsSince", DEFAULT_LIST_SHARDS_SINCE));
+            Configuration.watchConfiguration = new WatchConfiguration(
+                    props.getProperty("watchCommand", "sync").trim(),
+                    parseIntProperty(props, "watchIntervalSeconds", 60));
+            Configuration.pushConfiguration = new PushConfiguration(
+                    props.getProperty("pushTopic", "").trim(),
+                    props.containsKey("pushLabelIds") ? parseListProperty(props, "pushLabelIds") : List.of("INBOX"),
+                    parseIntProperty(props, "pushPort", 8080),
+                    props.getProperty("pushPath", "/gmail/push").trim(),
+                    props.getProperty("pushVerificationToken", "").trim(),
+                    parseIntProperty(props, "pushFallbackMinutes", 60));
             props = null;
         } catch (IOException e) {
             System.err.println("Failed to load configuration file: " + CONFIGURATION_FILE);
@@ -49,6 +164,57 @@ public class Configuration {
         instance = new Configuration();
     }
 
+    private static int parseIntProperty(Properties props, String name, int defaultValue) {
+        try {
+            return Integer.parseInt(props.getProperty(name, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException nfe) {
+            System.err.println("Failed to parse " + name + " value from config file, using default value");
+            return defaultValue;
+        }
+    }
+
+    private static List<String> parseListProperty(Properties props, String name) {
+        List<String> values = new ArrayList<>();
+        for (String value : props.getProperty(name, "").split(",")) {
+            if (!value.isBlank()) {
+                values.add(value.trim());
+            }
+        }
+        return List.copyOf(values);
+    }
+
+    private static List<JobSpec> parseJobSpecs(Properties props, long defaultLimit) {
+        List<JobSpec> specs = new ArrayList<>();
+        for (String jobName : parseListProperty(props, "exportJobs")) {
+            String prefix = "job." + jobName + ".";
+            String query = props.getProperty(prefix + "query");
+            specs.add(new JobSpec(jobName,
+                    query == null || query.isBlank() ? null : query.trim(),
+                    props.getProperty(prefix + "parser", "linkedin").trim(),
+                    props.getProperty(prefix + "output"),
+                    parseIntProperty(props, prefix + "limit", (int) Math.min(Integer.MAX_VALUE, defaultLimit))));
+        }
+        return List.copyOf(specs);
+    }
+
+    private static ZoneId parseZoneProperty(Properties props, String name, String defaultValue) {
+        try {
+            return ZoneId.of(props.getProperty(name, defaultValue).trim());
+        } catch (DateTimeException dte) {
+            System.err.println("Failed to parse " + name + " value from config file, using default value");
+            return ZoneId.of(defaultValue);
+        }
+    }
+
+    private static Instant parseDateProperty(Properties props, String name, LocalDate defaultValue) {
+        try {
+            return LocalDate.parse(props.getProperty(name, defaultValue.toString()).trim()).atStartOfDay(ZoneOffset.UTC).toInstant();
+        } catch (DateTimeException dte) {
+            System.err.println("Failed to parse " + name + " value from config file, using default value");
+            return defaultValue.atStartOfDay(ZoneOffset.UTC).toInstant();
+        }
+    }
+
     public static synchronized Configuration getInstance() {
         if (instance == null) {
             createInstance();
@@ -94,4 +260,207 @@ public class Configuration {
     public boolean deleteEmailMessages() {
         return parserConfiguration.deleteEmailMessages();
     }
+
+    /**
+     * @return name of the label applied to processed messages when they are deleted, TRASH moves them to the trash
+     */
+    public String processedMessageLabel() {
+        return deleteConfiguration.processedMessageLabel();
+    }
+
+    /**
+     * @return name of the parser used by the search and sync commands
+     */
+    public String searchParser() {
+        return parserSelectionConfiguration.searchParser();
+    }
+
+    /**
+     * @return name of the parser used by the list command
+     */
+    public String listParser() {
+        return parserSelectionConfiguration.listParser();
+    }
+
+    /**
+     * @return names of the parsers the route command runs, empty for every registered parser
+     */
+    public List<String> routeParsers() {
+        return parserSelectionConfiguration.routeParsers();
+    }
+
+    /**
+     * @return search terms restricting the messages listed by the route command, null for none
+     */
+    public String routeSearchQuery() {
+        return parserSelectionConfiguration.routeSearchQuery();
+    }
+
+    /**
+     * @return the jobs run by the jobs command, in the order listed in exportJobs
+     */
+    public List<JobSpec> jobSpecs() {
+        return jobSpecs;
+    }
+
+    public int maxBatchesInFlight() {
+        return Math.max(1, fetchConfiguration.maxBatchesInFlight());
+    }
+
+    public int quotaUnitsPerSecond() {
+        return Math.max(1, fetchConfiguration.quotaUnitsPerSecond());
+    }
+
+    public int fetchMaxRetries() {
+        return Math.max(0, fetchConfiguration.maxRetries());
+    }
+
+    public boolean streamMessages() {
+        return streamConfiguration.streamMessages();
+    }
+
+    public int streamBatchSize() {
+        return Math.max(1, streamConfiguration.streamBatchSize());
+    }
+
+    public String syncCheckpointFile() {
+        return syncConfiguration.checkpointFile();
+    }
+
+    public boolean hasProgressJournal() {
+        return syncConfiguration.progressJournalFile() != null &&
+                !syncConfiguration.progressJournalFile().isBlank();
+    }
+
+    public String progressJournalFile() {
+        return syncConfiguration.progressJournalFile();
+    }
+
+    public boolean hasMessageCache() {
+        return cacheConfiguration.directory() != null &&
+                !cacheConfiguration.directory().isBlank();
+    }
+
+    public String messageCacheDirectory() {
+        return cacheConfiguration.directory();
+    }
+
+    public int messageCacheMaxAgeDays() {
+        return cacheConfiguration.maxAgeDays();
+    }
+
+    public long messageCacheMaxBytes() {
+        return cacheConfiguration.maxMegabytes() * 1024L * 1024L;
+    }
+
+    /**
+     * @return number of threads messages are parsed on, all available cores when not configured
+     */
+    public int parseThreads() {
+        int parseThreads = parseConfiguration.parseThreads();
+        return parseThreads > 0 ? parseThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public boolean gzipCsvOutput() {
+        return outputConfiguration.gzipCsvOutput();
+    }
+
+    /**
+     * @return time zone the dates in the csv output are given in
+     */
+    public ZoneId csvZoneId() {
+        return outputConfiguration.csvZoneId();
+    }
+
+    public boolean hasSeenJobsIndex() {
+        return outputConfiguration.seenJobsIndexFile() != null &&
+                !outputConfiguration.seenJobsIndexFile().isBlank();
+    }
+
+    public String seenJobsIndexFile() {
+        return outputConfiguration.seenJobsIndexFile().trim();
+    }
+
+    public boolean hasMetricsReport() {
+        return metricsConfiguration.reportFile() != null &&
+                !metricsConfiguration.reportFile().isBlank();
+    }
+
+    public String metricsReportFile() {
+        return metricsConfiguration.reportFile().trim();
+    }
+
+    public boolean hasMetricsPrometheusFile() {
+        return metricsConfiguration.prometheusFile() != null &&
+                !metricsConfiguration.prometheusFile().isBlank();
+    }
+
+    public String metricsPrometheusFile() {
+        return metricsConfiguration.prometheusFile().trim();
+    }
+
+    /**
+     * @return number of date windows a listing is cut into and listed at once, 1 or less to list page by page
+     */
+    public int listShards() {
+        return listingConfiguration.listShards();
+    }
+
+    /**
+     * @return start of the oldest date window of a sharded listing
+     */
+    public Instant listShardsSince() {
+        return listingConfiguration.listShardsSince();
+    }
+
+    /**
+     * @return command repeated by the watch command when none is given on the command line
+     */
+    public String watchCommand() {
+        return watchConfiguration.watchCommand().isEmpty() ? "sync" : watchConfiguration.watchCommand();
+    }
+
+    public int watchIntervalSeconds() {
+        return Math.max(1, watchConfiguration.watchIntervalSeconds());
+    }
+
+    public boolean hasPushTopic() {
+        return !pushConfiguration.topic().isEmpty();
+    }
+
+    /**
+     * @return Pub/Sub topic Gmail publishes mailbox changes to, such as projects/my-project/topics/gmail
+     */
+    public String pushTopic() {
+        return pushConfiguration.topic();
+    }
+
+    /**
+     * @return labels whose changes are published, empty for every change to the mailbox
+     */
+    public List<String> pushLabelIds() {
+        return pushConfiguration.labelIds();
+    }
+
+    public int pushPort() {
+        return pushConfiguration.port();
+    }
+
+    public String pushPath() {
+        return pushConfiguration.path().startsWith("/") ? pushConfiguration.path() : "/" + pushConfiguration.path();
+    }
+
+    /**
+     * @return token a push request must carry as its token query parameter, empty to accept any request
+     */
+    public String pushVerificationToken() {
+        return pushConfiguration.verificationToken();
+    }
+
+    /**
+     * @return minutes after which the push command syncs even though no notification has arrived
+     */
+    public int pushFallbackMinutes() {
+        return Math.max(1, pushConfiguration.fallbackMinutes());
+    }
 }
@@ -0,0 +1,128 @@
+package utils;
+
+import parser.CSVRecord;
+
+import java.nio.CharBuffer;
+
+/**
+ * A single csv row being built up field by field. Fields are separated by commas and quoted as described in
+ * <a href="https://www.rfc-editor.org/rfc/rfc4180">RFC 4180</a>, so a value may hold commas, quotes or line breaks.
+ * The row's buffer is reused from one record to the next.
+ */
+public final class CsvRow {
+    private static final char SEPARATOR = ',';
+    private static final char QUOTE = '"';
+
+    private CharBuffer buffer;
+    private boolean firstField = true;
+
+    public CsvRow() {
+        this(256);
+    }
+
+    CsvRow(int capacity) {
+        this.buffer = CharBuffer.allocate(capacity);
+    }
+
+    /**
+     * Adds the next field, a null value is written as an empty field.
+     */
+    public CsvRow field(CharSequence value) {
+        startField();
+        if (value == null) {
+            return this;
+        }
+        int length = value.length();
+        if (!needsQuoting(value)) {
+            ensureCapacity(length);
+            if (value instanceof String string) {
+                buffer.put(string);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    buffer.put(value.charAt(i));
+                }
+            }
+            return this;
+        }
+        // Worst case every character is a quote
+        ensureCapacity(2 * length + 2);
+        buffer.put(QUOTE);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == QUOTE) {
+                buffer.put(QUOTE);
+            }
+            buffer.put(c);
+        }
+        buffer.put(QUOTE);
+        return this;
+    }
+
+    /**
+     * Adds text that is already formatted as csv, it is written as is.
+     */
+    public CsvRow raw(CharSequence csv) {
+        startField();
+        ensureCapacity(csv.length());
+        buffer.put(csv.toString());
+        return this;
+    }
+
+    private void startField() {
+        if (!firstField) {
+            ensureCapacity(1);
+            buffer.put(SEPARATOR);
+        }
+        firstField = false;
+    }
+
+    private static boolean needsQuoting(CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == SEPARATOR || c == QUOTE || c == '\r' || c == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (buffer.remaining() < additional) {
+            CharBuffer grown = CharBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + additional));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    void endRow() {
+        ensureCapacity(2);
+        buffer.put('\r').put('\n');
+    }
+
+    void clear() {
+        buffer.clear();
+        firstField = true;
+    }
+
+    /**
+     * The characters written so far, ready to be read.
+     */
+    CharBuffer chars() {
+        return buffer.flip();
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer.array(), 0, buffer.position());
+    }
+
+    /**
+     * Formats a single record as a csv line, without the line ending.
+     */
+    public static String format(CSVRecord record) {
+        CsvRow row = new CsvRow();
+        record.writeFields(row);
+        return row.toString();
+    }
+}
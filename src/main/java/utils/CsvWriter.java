@@ -0,0 +1,165 @@
+package utils;
+
+import parser.CSVRecord;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes records to a UTF-8 csv file, one RFC 4180 row per record with CRLF line endings.
+ * Each record's fields are written into a reused {@link CsvRow}, encoded into a byte buffer and only handed to the
+ * file channel once a whole block is ready. The output can optionally be gzip compressed.
+ * <p>
+ * {@link #commit()} makes everything written so far durable and returns the length of the file at that point, an
+ * interrupted export can then carry on from that length with {@link #resume(Path, boolean, long)}. Gzip output ends
+ * a gzip member at each commit, concatenated members read back as one stream.
+ * Not thread safe.
+ */
+public class CsvWriter implements Closeable {
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final FileChannel file;
+    private final boolean gzip;
+    private WritableByteChannel channel;
+    private GZIPOutputStream gzipMember;
+    private final CsvRow row = new CsvRow();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer bytes;
+    private long rowCount = 0;
+
+    CsvWriter(FileChannel file, boolean gzip) {
+        this.file = file;
+        this.gzip = gzip;
+        this.channel = gzip ? null : file;
+        this.bytes = gzip ? ByteBuffer.allocate(BLOCK_SIZE) : ByteBuffer.allocateDirect(BLOCK_SIZE);
+    }
+
+    /**
+     * Creates, or truncates, the csv file.
+     * @param path - file to write
+     * @param gzip - whether to gzip compress the output, the caller chooses the file name
+     */
+    public static CsvWriter open(Path path, boolean gzip) throws IOException {
+        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        return new CsvWriter(fileChannel, gzip);
+    }
+
+    /**
+     * Opens the csv file to add rows to the end of it, creating it if missing. A gzip file is carried on with a new
+     * gzip member, which readers see as one stream.
+     */
+    public static CsvWriter append(Path path, boolean gzip) throws IOException {
+        return resume(path, gzip, Files.exists(path) ? Files.size(path) : 0);
+    }
+
+    /**
+     * Opens an existing csv file to carry on writing from a length returned by an earlier {@link #commit()},
+     * anything written after that commit is discarded.
+     * @param path - file to write
+     * @param gzip - whether the output is gzip compressed
+     * @param committedLength - length of the file at the commit to carry on from
+     * @throws IOException if the file is shorter than the committed length
+     */
+    public static CsvWriter resume(Path path, boolean gzip, long committedLength) throws IOException {
+        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            if (fileChannel.size() < committedLength) {
+                throw new IOException(path + " is shorter than the " + committedLength + " bytes previously written to it");
+            }
+            fileChannel.truncate(committedLength);
+            fileChannel.position(committedLength);
+        } catch (IOException e) {
+            fileChannel.close();
+            throw e;
+        }
+        return new CsvWriter(fileChannel, gzip);
+    }
+
+    public void write(CSVRecord record) throws IOException {
+        row.clear();
+        record.writeFields(row);
+        row.endRow();
+        encode(row.chars(), false);
+        rowCount++;
+    }
+
+    private void encode(CharBuffer chars, boolean endOfInput) throws IOException {
+        CoderResult result;
+        while ((result = encoder.encode(chars, bytes, endOfInput)).isOverflow()) {
+            writeBytes();
+        }
+        if (result.isError()) {
+            result.throwException();
+        }
+    }
+
+    private void writeBytes() throws IOException {
+        if (bytes.position() == 0) {
+            return;
+        }
+        if (channel == null) {
+            // Gzip members are started lazily so that a commit with nothing written adds nothing to the file
+            gzipMember = new GZIPOutputStream(Channels.newOutputStream(file), BLOCK_SIZE);
+            channel = Channels.newChannel(gzipMember);
+        }
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    private void finishGzipMember() throws IOException {
+        if (gzipMember != null) {
+            // Finishing writes the member's trailer without closing the file underneath it
+            gzipMember.finish();
+            gzipMember = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * Writes out every complete row and forces it to disk.
+     * @return length of the file, which can later be passed to {@link #resume(Path, boolean, long)}
+     */
+    public long commit() throws IOException {
+        writeBytes();
+        finishGzipMember();
+        file.force(false);
+        return file.position();
+    }
+
+    public long rowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            encode(CharBuffer.allocate(0), true);
+            while (encoder.flush(bytes).isOverflow()) {
+                writeBytes();
+            }
+            writeBytes();
+            finishGzipMember();
+        } finally {
+            file.close();
+        }
+    }
+}
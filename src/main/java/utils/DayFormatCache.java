@@ -0,0 +1,94 @@
+package utils;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * Formats epoch milli timestamps as dates, remembering the formatted text for each day.
+ * A day is held as the range of timestamps that fall on that local date in the zone, so a lookup is a range check
+ * against the last day used, then a binary search of the days seen so far, with no allocation either way.
+ * Only a timestamp on a new day is converted and formatted. Safe to share between threads.
+ */
+public final class DayFormatCache {
+    private static final int MAX_DAYS = 4096;
+
+    private record Day(long startMillis, long endMillis, String formatted) {
+        boolean contains(long epochMillis) {
+            return startMillis <= epochMillis && epochMillis < endMillis;
+        }
+    }
+
+    private final DateTimeFormatter formatter;
+    private final ZoneId zone;
+    private volatile Day lastDay;
+    // Sorted by start, replaced rather than modified
+    private volatile Day[] days = new Day[0];
+
+    public DayFormatCache(DateTimeFormatter formatter, ZoneId zone) {
+        this.formatter = formatter;
+        this.zone = zone;
+    }
+
+    public String format(long epochMillis) {
+        Day day = lastDay;
+        if (day == null || !day.contains(epochMillis)) {
+            day = find(days, epochMillis);
+            if (day == null) {
+                day = add(epochMillis);
+            }
+            lastDay = day;
+        }
+        return day.formatted();
+    }
+
+    public ZoneId zone() {
+        return zone;
+    }
+
+    private static Day find(Day[] days, long epochMillis) {
+        int low = 0;
+        int high = days.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Day day = days[mid];
+            if (epochMillis < day.startMillis()) {
+                high = mid - 1;
+            } else if (epochMillis >= day.endMillis()) {
+                low = mid + 1;
+            } else {
+                return day;
+            }
+        }
+        return null;
+    }
+
+    private synchronized Day add(long epochMillis) {
+        Day[] current = days;
+        Day existing = find(current, epochMillis);
+        if (existing != null) {
+            return existing;
+        }
+        LocalDate date = Instant.ofEpochMilli(epochMillis).atZone(zone).toLocalDate();
+        Day day = new Day(date.atStartOfDay(zone).toInstant().toEpochMilli(),
+                date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli(),
+                date.format(formatter));
+
+        if (current.length >= MAX_DAYS) {
+            // A run over this many days is unusual, start again rather than grow without bound
+            days = new Day[] {day};
+            return day;
+        }
+        int insertAt = 0;
+        while (insertAt < current.length && current[insertAt].startMillis() < day.startMillis()) {
+            insertAt++;
+        }
+        Day[] next = Arrays.copyOf(current, current.length + 1);
+        System.arraycopy(current, insertAt, next, insertAt + 1, current.length - insertAt);
+        next[insertAt] = day;
+        days = next;
+        return day;
+    }
+}
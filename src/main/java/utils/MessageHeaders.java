@@ -0,0 +1,68 @@
+package utils;
+
+import com.google.api.services.gmail.model.MessagePartHeader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Case insensitive index of a message's top level headers, built with one pass over the header list.
+ */
+public final class MessageHeaders {
+    private static final MessageHeaders NONE = new MessageHeaders(List.of());
+
+    // The first value of each header, and every value of headers that appear more than once such as Received
+    private final Map<String, String> firstValues = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final Map<String, List<String>> repeatedValues = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    private MessageHeaders(List<MessagePartHeader> headers) {
+        for (MessagePartHeader header : headers) {
+            if (header.getName() == null) {
+                continue;
+            }
+            if (!firstValues.containsKey(header.getName())) {
+                firstValues.put(header.getName(), header.getValue());
+            } else {
+                repeatedValues.computeIfAbsent(header.getName(), it -> {
+                    List<String> values = new ArrayList<>();
+                    values.add(firstValues.get(it));
+                    return values;
+                }).add(header.getValue());
+            }
+        }
+    }
+
+    public static MessageHeaders index(List<MessagePartHeader> headers) {
+        return headers == null || headers.isEmpty() ? NONE : new MessageHeaders(headers);
+    }
+
+    /**
+     * @return the first value of the header, or null if the message does not have it
+     */
+    public String value(String name) {
+        return firstValues.get(name);
+    }
+
+    public String value(String name, String defaultValue) {
+        String value = firstValues.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * @return every value of the header in the order they appear
+     */
+    public List<String> values(String name) {
+        List<String> values = repeatedValues.get(name);
+        if (values != null) {
+            return values;
+        }
+        String value = firstValues.get(name);
+        return value != null ? List.of(value) : List.of();
+    }
+
+    public boolean contains(String name) {
+        return firstValues.containsKey(name);
+    }
+}
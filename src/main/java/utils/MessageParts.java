@@ -0,0 +1,126 @@
+package utils;
+
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartHeader;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Index of every part in a message's MIME tree, built with a single walk of the tree. Parts can then be looked up
+ * by mime type or Content-ID however deeply they are nested, for instance the text part of a multipart/alternative
+ * held within a multipart/mixed message.
+ */
+public final class MessageParts {
+    private static final String CONTENT_ID = "Content-ID";
+
+    private final MessagePart root;
+    private final List<MessagePart> parts = new ArrayList<>();
+    private final Map<String, List<MessagePart>> partsByMimeType = new HashMap<>();
+    private final Map<String, MessagePart> partsByContentId = new HashMap<>();
+
+    private MessageParts(MessagePart root) {
+        this.root = root;
+    }
+
+    public static MessageParts index(MessagePart payload) {
+        MessageParts index = new MessageParts(payload);
+        if (payload == null) {
+            return index;
+        }
+        // Depth first, in document order
+        Deque<MessagePart> pending = new ArrayDeque<>();
+        pending.push(payload);
+        while (!pending.isEmpty()) {
+            MessagePart part = pending.pop();
+            index.add(part);
+            List<MessagePart> children = part.getParts();
+            if (children != null) {
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    pending.push(children.get(i));
+                }
+            }
+        }
+        return index;
+    }
+
+    private void add(MessagePart part) {
+        parts.add(part);
+        if (part.getMimeType() != null) {
+            partsByMimeType.computeIfAbsent(part.getMimeType().toLowerCase(Locale.ROOT), it -> new ArrayList<>(1)).add(part);
+        }
+        String contentId = headerValue(part, CONTENT_ID);
+        if (contentId != null) {
+            partsByContentId.putIfAbsent(stripAngleBrackets(contentId), part);
+        }
+    }
+
+    private static String headerValue(MessagePart part, String name) {
+        if (part.getHeaders() == null) {
+            return null;
+        }
+        for (MessagePartHeader header : part.getHeaders()) {
+            if (name.equalsIgnoreCase(header.getName())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String stripAngleBrackets(String contentId) {
+        String id = contentId.trim();
+        return id.length() > 1 && id.charAt(0) == '<' && id.charAt(id.length() - 1) == '>' ? id.substring(1, id.length() - 1) : id;
+    }
+
+    public MessagePart root() {
+        return root;
+    }
+
+    /**
+     * @return every part, the root first, in document order
+     */
+    public List<MessagePart> all() {
+        return parts;
+    }
+
+    /**
+     * @param contentId - with or without its surrounding angle brackets
+     */
+    public Optional<MessagePart> byContentId(String contentId) {
+        return Optional.ofNullable(partsByContentId.get(stripAngleBrackets(contentId)));
+    }
+
+    /**
+     * @return the parts of the mime type in document order, such as text/plain
+     */
+    public List<MessagePart> byMimeType(String mimeType) {
+        return partsByMimeType.getOrDefault(mimeType.toLowerCase(Locale.ROOT), List.of());
+    }
+
+    /**
+     * Finds the part holding the requested body. A single part message is its own body, otherwise the part with
+     * the requested Content-ID is used, falling back to the first part of the matching mime type that is not an
+     * attached file.
+     */
+    public Optional<MessagePart> content(Util.EMAIL_MIME_TYPE messagePartType) {
+        if (root == null) {
+            return Optional.empty();
+        }
+        if (root.getBody() != null && root.getBody().getSize() != null && root.getBody().getSize() != 0) {
+            return Optional.of(root);
+        }
+        Optional<MessagePart> byContentId = byContentId(messagePartType.contentValue);
+        if (byContentId.isPresent()) {
+            return byContentId;
+        }
+        return byMimeType(messagePartType.mimeType).stream()
+                .filter(it -> it.getFilename() == null || it.getFilename().isEmpty())
+                .findFirst();
+    }
+}
@@ -0,0 +1,112 @@
+package utils;
+
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartBody;
+import metrics.ExportMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A message as seen by a parser, with its headers and MIME parts indexed on first use and bodies held back by Gmail,
+ * such as large attachments, fetched only when a parser asks for them.
+ * A view belongs to the thread parsing the message and is not thread safe.
+ */
+public final class MessageView {
+    private static final Logger logger = LoggerFactory.getLogger(MessageView.class.getName());
+
+    private final Message message;
+    private final AttachmentLoader attachmentLoader;
+    private MessageParts parts;
+    private MessageHeaders headers;
+    private Map<String, MessagePartBody> loadedAttachments;
+
+    /**
+     * @param attachmentLoader - fetches attachment bodies, null when they cannot be fetched such as offline
+     */
+    public MessageView(Message message, AttachmentLoader attachmentLoader) {
+        this.message = message;
+        this.attachmentLoader = attachmentLoader;
+    }
+
+    public static MessageView of(Message message) {
+        return new MessageView(message, null);
+    }
+
+    public Message message() {
+        return message;
+    }
+
+    /**
+     * The message's top level headers, indexed on first use and shared by the filters and the parser.
+     */
+    public MessageHeaders headers() {
+        if (headers == null) {
+            headers = MessageHeaders.index(message.getPayload() != null ? message.getPayload().getHeaders() : null);
+        }
+        return headers;
+    }
+
+    public MessageParts parts() {
+        if (parts == null) {
+            parts = MessageParts.index(message.getPayload());
+        }
+        return parts;
+    }
+
+    /**
+     * The decoded text or html body of the message.
+     * @return the body, or null if the message has none or it could not be fetched
+     */
+    public CharBuffer content(Util.EMAIL_MIME_TYPE messagePartType) {
+        return parts().content(messagePartType).map(this::decode).orElse(null);
+    }
+
+    /**
+     * Decodes the part's body, fetching it first if Gmail left it out of the message.
+     * @return the decoded body, or null if it could not be fetched
+     */
+    public CharBuffer decode(MessagePart part) {
+        MessagePartBody body = part.getBody();
+        if (body == null) {
+            return null;
+        }
+        if (body.getData() == null && body.getAttachmentId() != null) {
+            body = loadAttachment(body.getAttachmentId());
+            if (body == null || body.getData() == null) {
+                return null;
+            }
+        }
+        if (body.getData() == null) {
+            return null;
+        }
+        // Every 4 base64 characters hold 3 bytes
+        ExportMetrics.getInstance().bytesDecoded(body.getData().length() * 3L / 4);
+        return Util.base64UrlDecodeToChars(body.getData());
+    }
+
+    private MessagePartBody loadAttachment(String attachmentId) {
+        if (attachmentLoader == null) {
+            logger.warn("Attachment {} of message {} is not available offline", attachmentId, message.getId());
+            return null;
+        }
+        if (loadedAttachments == null) {
+            loadedAttachments = new HashMap<>();
+        }
+        MessagePartBody body = loadedAttachments.get(attachmentId);
+        if (body == null) {
+            try {
+                body = attachmentLoader.load(message.getId(), attachmentId);
+                loadedAttachments.put(attachmentId, body);
+            } catch (IOException e) {
+                logger.error("Failed to fetch attachment {} of message {}, {}", attachmentId, message.getId(), e.getMessage());
+            }
+        }
+        return body;
+    }
+}
@@ -0,0 +1,251 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+
+/**
+ * Persistent set of 64 bit keys, recording the day each was first and last seen and how many times it has been seen.
+ * <p>
+ * The keys are held in an open addressing hash table with linear probing, in a memory mapped file of 24 bytes a
+ * slot, so opening the index reads nothing up front and a lookup touches a page or two. The table doubles, into a new
+ * file that then atomically replaces the old one, once it is 70% full. Key 0 marks an empty slot and is stored as 1.
+ * <p>
+ * Changes reach the file as the operating system writes back the mapped pages, {@link #force()} them to disk once
+ * whatever they record is safely written. Not thread safe.
+ */
+public class SeenIndex implements Closeable {
+    private static final int MAGIC = 0x5345454e;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int SLOT_BYTES = 24;
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final double MAX_LOAD = 0.7;
+
+    // header offsets
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+
+    // slot offsets
+    private static final int FIRST_SEEN_OFFSET = 8;
+    private static final int LAST_SEEN_OFFSET = 12;
+    private static final int COUNT_OFFSET = 16;
+
+    /**
+     * @param firstSeen - day the key was first seen
+     * @param lastSeen - day the key was last seen
+     * @param seenCount - number of times the key has been seen
+     */
+    public record Entry(LocalDate firstSeen, LocalDate lastSeen, int seenCount) {}
+
+    private final Path file;
+    private FileChannel channel;
+    private MappedByteBuffer table;
+    private int capacity;
+    private long size;
+
+    private SeenIndex(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the index, creating an empty one if the file does not exist.
+     * @throws IOException if the file is not an index
+     */
+    public static SeenIndex open(Path file) throws IOException {
+        SeenIndex index = new SeenIndex(file);
+        if (Files.exists(file) && Files.size(file) > 0) {
+            index.map();
+        } else {
+            create(file, INITIAL_CAPACITY);
+            index.map();
+        }
+        return index;
+    }
+
+    private static void create(Path path, int capacity) throws IOException {
+        try (FileChannel newChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(capacity).putLong(0).flip();
+            newChannel.write(header, 0);
+            // Extending the file leaves every slot zeroed, which is empty
+            newChannel.write(ByteBuffer.allocate(1), HEADER_BYTES + (long) capacity * SLOT_BYTES - 1);
+        }
+    }
+
+    private void map() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_BYTES) {
+                throw new IOException(file + " is not a seen index");
+            }
+            table = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            if (table.getInt(0) != MAGIC || table.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a seen index");
+            }
+            long storedCapacity = table.getLong(CAPACITY_OFFSET);
+            if (Long.bitCount(storedCapacity) != 1 || storedCapacity > MAX_CAPACITY
+                    || HEADER_BYTES + storedCapacity * SLOT_BYTES != fileSize) {
+                throw new IOException(file + " is a damaged seen index");
+            }
+            capacity = (int) storedCapacity;
+            size = table.getLong(SIZE_OFFSET);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return whether the key has been seen
+     */
+    public boolean contains(long key) {
+        return findSlot(table, capacity, storedKey(key)) >= 0;
+    }
+
+    /**
+     * @return what is stored for the key, null if it has not been seen
+     */
+    public Entry get(long key) {
+        int slot = findSlot(table, capacity, storedKey(key));
+        if (slot < 0) {
+            return null;
+        }
+        int offset = slotOffset(slot);
+        return new Entry(LocalDate.ofEpochDay(table.getInt(offset + FIRST_SEEN_OFFSET)),
+                LocalDate.ofEpochDay(table.getInt(offset + LAST_SEEN_OFFSET)),
+                table.getInt(offset + COUNT_OFFSET));
+    }
+
+    /**
+     * Records the key as seen, adding it if it is new.
+     * @param day - day the key was seen on
+     * @param times - number of times it was seen that day
+     * @return true if the key was new
+     * @throws IOException should the table fail to grow, or be full
+     */
+    public boolean see(long key, LocalDate day, int times) throws IOException {
+        long storedKey = storedKey(key);
+        int epochDay = (int) day.toEpochDay();
+        int slot = findSlot(table, capacity, storedKey);
+        if (slot >= 0) {
+            int offset = slotOffset(slot);
+            table.putInt(offset + LAST_SEEN_OFFSET, Math.max(epochDay, table.getInt(offset + LAST_SEEN_OFFSET)));
+            table.putInt(offset + COUNT_OFFSET, table.getInt(offset + COUNT_OFFSET) + times);
+            return false;
+        }
+        if (size + 1 > capacity * MAX_LOAD) {
+            if (capacity >= MAX_CAPACITY) {
+                throw new IOException(file + " is full");
+            }
+            grow();
+            slot = findSlot(table, capacity, storedKey);
+        }
+        putSlot(table, -slot - 1, storedKey, epochDay, epochDay, times);
+        size++;
+        table.putLong(SIZE_OFFSET, size);
+        return true;
+    }
+
+    /**
+     * Forces every change made so far to disk.
+     */
+    public void force() {
+        table.force();
+    }
+
+    /**
+     * @return number of keys seen
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Rebuilds the table at twice the capacity in a new file, which then replaces the current one.
+     */
+    private void grow() throws IOException {
+        int newCapacity = capacity * 2;
+        Path grownFile = file.resolveSibling(file.getFileName() + ".tmp");
+        create(grownFile, newCapacity);
+        try (FileChannel grownChannel = FileChannel.open(grownFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer grown = grownChannel.map(FileChannel.MapMode.READ_WRITE, 0, grownChannel.size());
+            for (int slot = 0; slot < capacity; slot++) {
+                int offset = slotOffset(slot);
+                long key = table.getLong(offset);
+                if (key != 0) {
+                    putSlot(grown, -findSlot(grown, newCapacity, key) - 1, key, table.getInt(offset + FIRST_SEEN_OFFSET),
+                            table.getInt(offset + LAST_SEEN_OFFSET), table.getInt(offset + COUNT_OFFSET));
+                }
+            }
+            grown.putLong(SIZE_OFFSET, size);
+            grown.force();
+        }
+        channel.close();
+        Files.move(grownFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map();
+    }
+
+    /**
+     * @return the slot holding the key, or -(slot + 1) of the empty slot where it would go
+     */
+    private static int findSlot(ByteBuffer table, int capacity, long storedKey) {
+        int mask = capacity - 1;
+        int slot = (int) (mix(storedKey) & mask);
+        while (true) {
+            long key = table.getLong(slotOffset(slot));
+            if (key == storedKey) {
+                return slot;
+            }
+            if (key == 0) {
+                return -slot - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static void putSlot(ByteBuffer table, int slot, long storedKey, int firstSeenDay, int lastSeenDay, int count) {
+        int offset = slotOffset(slot);
+        table.putInt(offset + FIRST_SEEN_OFFSET, firstSeenDay);
+        table.putInt(offset + LAST_SEEN_OFFSET, lastSeenDay);
+        table.putInt(offset + COUNT_OFFSET, count);
+        // The key goes in last, a slot cut short by a crash still reads as empty
+        table.putLong(offset, storedKey);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private static long storedKey(long key) {
+        return key == 0 ? 1 : key;
+    }
+
+    /**
+     * Spreads the key bits so that sequential ids do not cluster, the murmur3 finalizer.
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    @Override
+    public void close() throws IOException {
+        table.force();
+        channel.close();
+    }
+}
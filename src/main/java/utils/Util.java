@@ -2,11 +2,21 @@ package utils;
 
 import com.google.api.services.gmail.model.Message;
 import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartBody;
 import com.google.api.services.gmail.model.MessagePartHeader;
 import parser.CSVRecord;
 
 import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.List;
 import java.util.Optional;
@@ -14,38 +24,114 @@ import java.util.Optional;
 
 public class Util {
     public enum EMAIL_MIME_TYPE {
-        HTML("html-body"), TEXT("text-body");
+        HTML("html-body", "text/html"), TEXT("text-body", "text/plain");
 
         String contentValue;
-        EMAIL_MIME_TYPE(String contentString) {
+        String mimeType;
+        EMAIL_MIME_TYPE(String contentString, String mimeType) {
             this.contentValue = contentString;
+            this.mimeType = mimeType;
         }
     }
 
     public static String base64UrlDecode(String msgString) {
-        return new String(Base64.getUrlDecoder().decode(msgString));
+        return new String(Base64.getUrlDecoder().decode(msgString), StandardCharsets.UTF_8);
     }
 
+    /**
+     * Decodes base64url encoded UTF-8 text in a single pass. The encoded characters are read in place, decoded a
+     * block at a time and written straight into the returned buffer, no byte array or string copy of the whole body
+     * is made along the way.
+     * @param msgString - base64url encoded text, padding is optional
+     * @return the decoded text, ready to be read
+     * @throws IllegalArgumentException if the text is not valid base64url
+     */
+    public static CharBuffer base64UrlDecodeToChars(CharSequence msgString) {
+        // UTF-8 never decodes to more chars than bytes, and every 4 base64 characters hold at most 3 bytes
+        CharBuffer chars = CharBuffer.allocate((msgString.length() + 3) / 4 * 3);
+        try (Reader reader = base64UrlDecodingReader(msgString)) {
+            while (reader.read(chars) > 0) {
+                // keep reading until the input is used up
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid base64url encoded message content", e);
+        }
+        return chars.flip();
+    }
+
+    /**
+     * A reader of the decoded UTF-8 text, decoding the base64url characters as they are read.
+     */
+    public static Reader base64UrlDecodingReader(CharSequence msgString) {
+        CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        return new InputStreamReader(Base64.getUrlDecoder().wrap(new AsciiInputStream(msgString)), utf8);
+    }
+
+    /**
+     * Decodes the text or html body of the message, searching the whole MIME tree, see
+     * {@link MessageParts#content(EMAIL_MIME_TYPE)}. Bodies Gmail left out of the message are not fetched, use a
+     * {@link MessageView} for that.
+     */
     public static String decodeMessageContent(Message message, EMAIL_MIME_TYPE messagePartType) {
-        // 1 try the main body
-        if (message.getPayload().getBody().getSize() != 0) {
-            return base64UrlDecode(message.getPayload().getBody().getData());
+        String msgString = encodedMessageContent(message, messagePartType);
+        return msgString != null ? base64UrlDecode(msgString) : null;
+    }
+
+    /**
+     * Same as {@link #decodeMessageContent(Message, EMAIL_MIME_TYPE)} but decoded in a single pass into a buffer,
+     * see {@link #base64UrlDecodeToChars(CharSequence)}.
+     */
+    public static CharBuffer decodeMessageContentToChars(Message message, EMAIL_MIME_TYPE messagePartType) {
+        String msgString = encodedMessageContent(message, messagePartType);
+        return msgString != null ? base64UrlDecodeToChars(msgString) : null;
+    }
+
+    private static String encodedMessageContent(Message message, EMAIL_MIME_TYPE messagePartType) {
+        return MessageParts.index(message.getPayload())
+                .content(messagePartType)
+                .map(MessagePart::getBody)
+                .map(MessagePartBody::getData)
+                .orElse(null);
+    }
+
+    /**
+     * Presents the characters of base64 text as the bytes the decoder reads, without copying them.
+     */
+    private static final class AsciiInputStream extends InputStream {
+        private final CharSequence chars;
+        private int position = 0;
+
+        AsciiInputStream(CharSequence chars) {
+            this.chars = chars;
+        }
+
+        @Override
+        public int read() {
+            return position < chars.length() ? chars.charAt(position++) & 0xFF : -1;
         }
-        // 2 try the message parts list
-        else {
-            for (MessagePart msgPart : message.getPayload().getParts()) {
-                // filter by Content Type
-                if (isRequestedMessagePart(msgPart.getHeaders(), messagePartType))
-                    return base64UrlDecode(msgPart.getBody().getData());
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            int count = Math.min(length, chars.length() - position);
+            if (count <= 0) {
+                return -1;
+            }
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = (byte) chars.charAt(position++);
             }
+            return count;
         }
-        return null;
     }
 
     public static boolean isRequestedMessagePart(List<MessagePartHeader> headers,
                                                   EMAIL_MIME_TYPE messagePartType) {
 
-        Optional<String> messageContentType = headers.stream().filter(s -> s.getName().toUpperCase().equals("CONTENT-ID")).map(it -> it.getValue()).findFirst();
+        Optional<String> messageContentType = headers.stream().filter(s -> s.getName().equalsIgnoreCase("CONTENT-ID")).map(it -> it.getValue()).findFirst();
         String messagePartConentValue = messageContentType.orElseGet(() -> "None");
         boolean isRequestedMessagePart = messagePartType.contentValue.equals(messagePartConentValue);
         //boolean isRequestedMessagePart = messageContentType.ifPresent(it -> it.equals(messagePartType.contentValue));
@@ -67,4 +153,19 @@ public class Util {
             e.printStackTrace();
         }
     }
+
+    /**
+     * @param append - add the lines to the end of the file rather than replacing it
+     */
+    public static void outputListToFile(List<String> data, String filename, boolean append) {
+        if (!append) {
+            outputListToFile(data, filename);
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(filename, StandardCharsets.UTF_8, true))) {
+            data.forEach(it -> out.println(it));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 }
@@ -0,0 +1,74 @@
+package gmail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.api.services.gmail.model.Message;
+import org.junit.jupiter.api.Test;
+import parser.FetchFormat;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+class BatchFetcherTest {
+
+    private static List<Message> partialMessages(int count) {
+        return IntStream.range(0, count).mapToObj(i -> new Message().setId("msg" + i)).toList();
+    }
+
+    private static Set<String> ids(List<Message> messages) {
+        return messages.stream().map(Message::getId).collect(Collectors.toSet());
+    }
+
+    @Test
+    void fetchResolvesEveryMessage() throws IOException {
+        FakeGmailTransport transport = new FakeGmailTransport(0);
+        BatchFetcher sut = new BatchFetcher(transport.gmail(), 4);
+        List<Message> partialMessages = partialMessages(120);
+
+        List<Message> fullMessages = sut.fetch(partialMessages, FetchFormat.FULL);
+
+        assertEquals(120, fullMessages.size());
+        assertEquals(ids(partialMessages), ids(fullMessages));
+        assertEquals(3, transport.requestCount());
+    }
+
+    @Test
+    void fetchKeepsBatchesInFlightUpToTheLimit() throws IOException {
+        FakeGmailTransport transport = new FakeGmailTransport(100);
+        BatchFetcher sut = new BatchFetcher(transport.gmail(), 3);
+
+        List<Message> fullMessages = sut.fetch(partialMessages(500), FetchFormat.FULL);
+
+        assertEquals(500, fullMessages.size());
+        assertEquals(10, transport.requestCount());
+        assertTrue(transport.peakRequestsInFlight() > 1, "batches should overlap");
+        assertTrue(transport.peakRequestsInFlight() <= 3, "no more than 3 batches in flight");
+    }
+
+    @Test
+    void fetchRetriesRateLimitedMessages() throws IOException {
+        FakeGmailTransport transport = new FakeGmailTransport(0).rateLimitOnce("msg3", "msg7");
+        QuotaRateLimiter rateLimiter = new QuotaRateLimiter(QuotaRateLimiter.DEFAULT_UNITS_PER_SECOND, 4, Duration.ofMillis(10));
+        BatchFetcher sut = new BatchFetcher(transport.gmail(), rateLimiter, 3, null);
+        List<Message> partialMessages = partialMessages(20);
+
+        List<Message> fullMessages = sut.fetch(partialMessages, FetchFormat.FULL);
+
+        assertEquals(ids(partialMessages), ids(fullMessages));
+        assertEquals(2, transport.requestCount());
+        assertEquals(2, rateLimiter.concurrencyLimit());
+    }
+
+    @Test
+    void fetchOfNothingMakesNoRequests() throws IOException {
+        FakeGmailTransport transport = new FakeGmailTransport(0);
+        BatchFetcher sut = new BatchFetcher(transport.gmail(), 2);
+
+        assertTrue(sut.fetch(List.of(), FetchFormat.FULL).isEmpty());
+        assertEquals(0, transport.requestCount());
+    }
+}
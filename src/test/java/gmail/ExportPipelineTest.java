@@ -0,0 +1,125 @@
+package gmail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.api.services.gmail.model.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import parser.CSVRecord;
+import parser.MessageParser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+class ExportPipelineTest {
+
+    @TempDir
+    Path tempDir;
+
+    private record IdRecord(long date, String id) implements CSVRecord {
+        public String toCsv() {
+            return date + CSVRecord.DELIMITER + id;
+        }
+
+        public long getLongDate() {
+            return date;
+        }
+    }
+
+    /**
+     * Takes a random time over each message and notes which threads did the parsing.
+     */
+    private static class SlowParser implements MessageParser<IdRecord> {
+        private final Path output;
+        private final Set<String> parsingThreads = ConcurrentHashMap.newKeySet();
+
+        SlowParser(Path output) {
+            this.output = output;
+        }
+
+        public List<IdRecord> parse(Message msg) {
+            parsingThreads.add(Thread.currentThread().getName());
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextInt(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return List.of(new IdRecord(msg.getInternalDate(), msg.getId()));
+        }
+
+        public void cleanup() {
+        }
+
+        public String getCSVOutputFilename() {
+            return output.toString();
+        }
+    }
+
+    @Test
+    void recordsAreWrittenInMessageOrderWhenParsedInParallel() throws IOException {
+        List<Message> messages = new ArrayList<>(IntStream.range(0, 200)
+                .mapToObj(i -> new Message().setId(String.format("m%03d", i)).setInternalDate(1_000L * (i / 2)))
+                .toList());
+        Collections.shuffle(messages);
+        SlowParser parser = new SlowParser(tempDir.resolve("out.csv"));
+
+        try (ExportPipeline sut = new ExportPipeline((partialMessages, format) -> partialMessages, parser,
+                new ExportPipeline.Options(null, null, 100, 4, false))) {
+            List<? extends CSVRecord> records = sut.process(messages);
+            assertEquals(200, records.size());
+        }
+
+        List<String> expected = IntStream.range(0, 200)
+                .mapToObj(i -> 1_000L * (i / 2) + CSVRecord.DELIMITER + String.format("m%03d", i))
+                .toList();
+        assertEquals(expected, Files.readAllLines(tempDir.resolve("out.csv")));
+        assertTrue(parser.parsingThreads.size() > 1);
+    }
+
+    private static List<Message> messages(int count) {
+        return IntStream.range(0, count).mapToObj(i -> new Message().setId("m" + i).setInternalDate(1_000L * i)).toList();
+    }
+
+    private void exportWithJournal(Path journalFile, Path output, List<Message> messages) throws IOException {
+        try (ProgressJournal journal = ProgressJournal.open(journalFile, "search q");
+             ExportPipeline sut = new ExportPipeline((partialMessages, format) -> partialMessages, null,
+                     new SlowParser(output), new ExportPipeline.Options(null, null, 100, 1, false), journal)) {
+            sut.process(messages);
+        }
+    }
+
+    @Test
+    void resumedExportCarriesOnWithTheJournaledCsvFile() throws IOException {
+        Path journalFile = tempDir.resolve("journal.log");
+        exportWithJournal(journalFile, tempDir.resolve("out-day1.csv"), messages(4));
+        // Resumed the next day, when the parser names a new dated file
+        exportWithJournal(journalFile, tempDir.resolve("out-day2.csv"), messages(6));
+
+        assertEquals(6, Files.readAllLines(tempDir.resolve("out-day1.csv")).size());
+        assertFalse(Files.exists(tempDir.resolve("out-day2.csv")));
+    }
+
+    @Test
+    void lostCsvFileStartsTheOutputAfresh() throws IOException {
+        Path journalFile = tempDir.resolve("journal.log");
+        exportWithJournal(journalFile, tempDir.resolve("out-day1.csv"), messages(4));
+        Files.delete(tempDir.resolve("out-day1.csv"));
+
+        exportWithJournal(journalFile, tempDir.resolve("out-day2.csv"), messages(6));
+
+        assertEquals(6, Files.readAllLines(tempDir.resolve("out-day2.csv")).size());
+        try (ProgressJournal journal = ProgressJournal.open(journalFile, "search q")) {
+            assertTrue(journal.isResuming());
+            assertEquals(tempDir.resolve("out-day2.csv").toAbsolutePath(), journal.csvPath());
+            assertEquals(Files.size(tempDir.resolve("out-day2.csv")), journal.csvLength());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package gmail;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.gmail.Gmail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for the Gmail HTTP endpoint. Each message get queued in a batch request is answered with a
+ * minimal message body after a fixed latency, and the number of concurrently executing requests is tracked.
+ * Messages can be marked as rate limited, they are then answered with a 429 error the first time they are requested.
+ * Requests outside a batch, such as a history list, are answered by the {@link #answer(Function) responder}.
+ */
+class FakeGmailTransport extends MockHttpTransport {
+    private static final Pattern MESSAGE_GET_LINE = Pattern.compile("GET \\S*/users/me/messages/([^/?\\s]+)");
+    private static final String BOUNDARY = "batch_fake_gmail";
+
+    private final long latencyMillis;
+    private final AtomicInteger requestsInFlight = new AtomicInteger();
+    private final AtomicInteger peakRequestsInFlight = new AtomicInteger();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final Set<String> rateLimitedOnce = ConcurrentHashMap.newKeySet();
+    private Function<String, MockLowLevelHttpResponse> responder = url -> new MockLowLevelHttpResponse().setStatusCode(404);
+
+    FakeGmailTransport(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    Gmail gmail() {
+        return new Gmail.Builder(this, GsonFactory.getDefaultInstance(), null)
+                .setApplicationName("fake-gmail-test")
+                .build();
+    }
+
+    FakeGmailTransport rateLimitOnce(String... messageIds) {
+        rateLimitedOnce.addAll(Arrays.asList(messageIds));
+        return this;
+    }
+
+    /**
+     * Answers each request made outside a batch with the responder's response for its url.
+     */
+    FakeGmailTransport answer(Function<String, MockLowLevelHttpResponse> responder) {
+        this.responder = responder;
+        return this;
+    }
+
+    static MockLowLevelHttpResponse json(int statusCode, String content) {
+        return new MockLowLevelHttpResponse()
+                .setStatusCode(statusCode)
+                .setContentType("application/json; charset=UTF-8")
+                .setContent(content);
+    }
+
+    int peakRequestsInFlight() {
+        return peakRequestsInFlight.get();
+    }
+
+    int requestCount() {
+        return requestCount.get();
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+                requestCount.incrementAndGet();
+                peakRequestsInFlight.accumulateAndGet(requestsInFlight.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(latencyMillis);
+                    if (!url.contains("/batch")) {
+                        return responder.apply(url);
+                    }
+                    return batchResponse(getContentAsString());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } finally {
+                    requestsInFlight.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    private MockLowLevelHttpResponse batchResponse(String requestContent) {
+        StringBuilder content = new StringBuilder();
+        Matcher matcher = MESSAGE_GET_LINE.matcher(requestContent);
+        while (matcher.find()) {
+            String messageId = matcher.group(1);
+            content.append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n\r\n");
+            if (rateLimitedOnce.remove(messageId)) {
+                content.append("HTTP/1.1 429 Too Many Requests\r\n")
+                        .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                        .append("{\"error\":{\"code\":429,\"message\":\"Rate Limit Exceeded\",")
+                        .append("\"errors\":[{\"reason\":\"rateLimitExceeded\",\"domain\":\"usageLimits\"}]}}\r\n");
+            } else {
+                content.append("HTTP/1.1 200 OK\r\n")
+                        .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                        .append("{\"id\":\"").append(messageId).append("\",\"internalDate\":\"1720812522000\"}\r\n");
+            }
+        }
+        content.append("--").append(BOUNDARY).append("--\r\n");
+        return new MockLowLevelHttpResponse()
+                .setStatusCode(200)
+                .setContentType("multipart/mixed; boundary=" + BOUNDARY)
+                .setContent(content.toString());
+    }
+}
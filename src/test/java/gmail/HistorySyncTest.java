@@ -0,0 +1,73 @@
+package gmail;
+
+import static gmail.FakeGmailTransport.json;
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.api.services.gmail.model.Message;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class HistorySyncTest {
+    private final QuotaRateLimiter rateLimiter = new QuotaRateLimiter(100_000, 4, Duration.ofMillis(10));
+
+    private static String added(String messageId, String... labelIds) {
+        return "{\"message\":{\"id\":\"" + messageId + "\",\"labelIds\":[\"" + String.join("\",\"", labelIds) + "\"]}}";
+    }
+
+    @Test
+    void expiredHistoryIdNeedsAFullSync() throws IOException {
+        FakeGmailTransport transport = new FakeGmailTransport(0).answer(url -> json(404,
+                "{\"error\":{\"code\":404,\"message\":\"Requested entity was not found.\",\"errors\":[{\"reason\":\"notFound\"}]}}"));
+        HistorySync sut = new HistorySync(transport.gmail(), rateLimiter, 2);
+        assertEquals(Optional.empty(), sut.changesSince(BigInteger.valueOf(100)));
+    }
+
+    @Test
+    void pagesAreMergedWithoutDuplicatesOrExcludedMessages() throws IOException {
+        FakeGmailTransport transport = new FakeGmailTransport(0).answer(url -> url.contains("pageToken=page2")
+                ? json(200, "{\"history\":[{\"id\":\"104\",\"messagesAdded\":["
+                        + added("m2", "INBOX") + "," + added("m3", "SPAM") + "," + added("m4", "INBOX", "UNREAD") + "]}],"
+                        + "\"historyId\":\"110\"}")
+                : json(200, "{\"history\":[{\"id\":\"101\",\"messagesAdded\":["
+                        + added("m1", "INBOX") + "," + added("m2", "INBOX") + "," + added("d1", "DRAFT") + "]},"
+                        + "{\"id\":\"102\",\"messagesAdded\":[" + added("s1", "SENT") + "," + added("t1", "TRASH") + "]}],"
+                        + "\"nextPageToken\":\"page2\",\"historyId\":\"105\"}"));
+        HistorySync sut = new HistorySync(transport.gmail(), rateLimiter, 2);
+
+        HistorySync.Changes changes = sut.changesSince(BigInteger.valueOf(100)).orElseThrow();
+
+        assertEquals(List.of("m1", "m2", "m4"), changes.addedMessages().stream().map(Message::getId).toList());
+        assertEquals(BigInteger.valueOf(110), changes.historyId());
+        assertEquals(2, transport.requestCount());
+    }
+
+    @Test
+    void noChangesKeepTheStartHistoryId() throws IOException {
+        FakeGmailTransport transport = new FakeGmailTransport(0).answer(url -> json(200, "{}"));
+        HistorySync sut = new HistorySync(transport.gmail(), rateLimiter, 2);
+
+        HistorySync.Changes changes = sut.changesSince(BigInteger.valueOf(100)).orElseThrow();
+
+        assertTrue(changes.addedMessages().isEmpty());
+        assertEquals(BigInteger.valueOf(100), changes.historyId());
+    }
+
+    @Test
+    void rateLimitedCallIsRetried() throws IOException {
+        AtomicInteger calls = new AtomicInteger();
+        FakeGmailTransport transport = new FakeGmailTransport(0).answer(url -> calls.incrementAndGet() == 1
+                ? json(429, "{\"error\":{\"code\":429,\"message\":\"Rate Limit Exceeded\","
+                        + "\"errors\":[{\"reason\":\"rateLimitExceeded\",\"domain\":\"usageLimits\"}]}}")
+                : json(200, "{\"historyId\":\"42\"}"));
+        HistorySync sut = new HistorySync(transport.gmail(), rateLimiter, 2);
+
+        assertEquals(BigInteger.valueOf(42), sut.currentHistoryId());
+        assertEquals(2, calls.get());
+    }
+}
@@ -0,0 +1,87 @@
+package gmail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Posts Pub/Sub push requests to the receiver the way a push subscription would.
+ */
+class HttpPushReceiverTest {
+    private final HttpClient client = HttpClient.newHttpClient();
+    private HttpPushReceiver sut;
+
+    @AfterEach
+    void stop() {
+        sut.close();
+    }
+
+    private static String envelope(String mailboxChange) {
+        String data = Base64.getEncoder().encodeToString(mailboxChange.getBytes(StandardCharsets.UTF_8));
+        return "{\"message\":{\"data\":\"" + data + "\",\"messageId\":\"2070443601311540\"},"
+                + "\"subscription\":\"projects/myproject/subscriptions/gmail-push\"}";
+    }
+
+    private int post(String pathAndQuery, String body) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + sut.port() + pathAndQuery))
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private List<PushReceiver.Notification> start(String verificationToken) throws Exception {
+        List<PushReceiver.Notification> received = new CopyOnWriteArrayList<>();
+        sut = new HttpPushReceiver(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), "/gmail/push", verificationToken);
+        sut.start(received::add);
+        return received;
+    }
+
+    @Test
+    void notificationIsHandedToTheListener() throws Exception {
+        List<PushReceiver.Notification> received = start(null);
+        int status = post("/gmail/push", envelope("{\"emailAddress\":\"user@example.com\",\"historyId\":9876543210}"));
+        assertEquals(204, status);
+        assertEquals(List.of(new PushReceiver.Notification("user@example.com", new BigInteger("9876543210"))), received);
+    }
+
+    @Test
+    void requestWithoutTheVerificationTokenIsRefused() throws Exception {
+        List<PushReceiver.Notification> received = start("s3cret");
+        String body = envelope("{\"emailAddress\":\"user@example.com\",\"historyId\":1}");
+        assertEquals(403, post("/gmail/push", body));
+        assertEquals(403, post("/gmail/push?token=guess", body));
+        assertTrue(received.isEmpty());
+        assertEquals(204, post("/gmail/push?token=s3cret", body));
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    void unreadableNotificationIsAcknowledgedButNotDelivered() throws Exception {
+        List<PushReceiver.Notification> received = start(null);
+        assertEquals(204, post("/gmail/push", "{\"message\":{}}"));
+        assertEquals(204, post("/gmail/push", envelope("{\"emailAddress\":\"user@example.com\"}")));
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    void failedListenerAsksForTheNotificationAgain() throws Exception {
+        sut = new HttpPushReceiver(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), "/gmail/push", null);
+        sut.start(notification -> {
+            throw new IllegalStateException("busy");
+        });
+        assertEquals(500, post("/gmail/push", envelope("{\"emailAddress\":\"user@example.com\",\"historyId\":5}")));
+    }
+}
@@ -0,0 +1,110 @@
+package gmail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.api.services.gmail.model.Message;
+import org.junit.jupiter.api.Test;
+import parser.FetchFormat;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+
+class MessageCacheTest {
+
+    private static final long MAX_BYTES = 1024 * 1024;
+
+    @TempDir
+    Path cacheDirectory;
+
+    private static Message message(String id, long internalDate) {
+        return new Message().setId(id).setInternalDate(internalDate);
+    }
+
+    @Test
+    void cachedMessagesSurviveReopening() throws IOException {
+        try (MessageCache cache = MessageCache.open(cacheDirectory, Duration.ofDays(1), MAX_BYTES)) {
+            cache.put(message("a", 1L));
+            cache.put(message("b", 2L));
+            assertEquals(2L, cache.get("b").getInternalDate());
+        }
+
+        try (MessageCache cache = MessageCache.open(cacheDirectory, Duration.ofDays(1), MAX_BYTES)) {
+            assertTrue(cache.contains("a"));
+            assertEquals(1L, cache.get("a").getInternalDate());
+            assertNull(cache.get("c"));
+            assertEquals(2, cache.cachedMessages().size());
+        }
+    }
+
+    @Test
+    void fetchReturnsOnlyCachedMessages() throws IOException {
+        try (MessageCache cache = MessageCache.open(cacheDirectory, Duration.ofDays(1), MAX_BYTES)) {
+            cache.put(message("a", 1L));
+
+            List<Message> fetched = cache.fetch(List.of(new Message().setId("a"), new Message().setId("missing")), FetchFormat.FULL);
+
+            assertEquals(1, fetched.size());
+            assertEquals("a", fetched.getFirst().getId());
+        }
+    }
+
+    @Test
+    void latestRecordForAnIdWins() throws IOException {
+        try (MessageCache cache = MessageCache.open(cacheDirectory, Duration.ofDays(1), MAX_BYTES)) {
+            cache.put(message("a", 1L));
+            cache.put(message("a", 5L));
+        }
+
+        try (MessageCache cache = MessageCache.open(cacheDirectory, Duration.ofDays(1), MAX_BYTES)) {
+            assertEquals(5L, cache.get("a").getInternalDate());
+            assertEquals(1, cache.cachedMessages().size());
+        }
+    }
+
+    @Test
+    void expiredMessagesAreNotServed() throws IOException {
+        try (MessageCache cache = MessageCache.open(cacheDirectory, Duration.ZERO.minusMillis(1), MAX_BYTES)) {
+            cache.put(message("a", 1L));
+            assertNull(cache.get("a"));
+            assertFalse(cache.contains("a"));
+        }
+    }
+
+    @Test
+    void incompleteTrailingRecordIsDiscarded() throws IOException {
+        try (MessageCache cache = MessageCache.open(cacheDirectory, Duration.ofDays(1), MAX_BYTES)) {
+            cache.put(message("a", 1L));
+        }
+        Files.write(cacheDirectory.resolve("messages.seg"), new byte[] {0, 0, 0, 1, 0, 0}, StandardOpenOption.APPEND);
+
+        try (MessageCache cache = MessageCache.open(cacheDirectory, Duration.ofDays(1), MAX_BYTES)) {
+            assertEquals(1L, cache.get("a").getInternalDate());
+            cache.put(message("b", 2L));
+            assertEquals(2L, cache.get("b").getInternalDate());
+        }
+    }
+
+    @Test
+    void puttingPastTheMaximumSizeEvictsTheOldestMessages() throws IOException {
+        long maxBytes = 2048;
+        try (MessageCache cache = MessageCache.open(cacheDirectory, Duration.ofDays(1), maxBytes)) {
+            for (int i = 0; i < 200; i++) {
+                cache.put(message("m" + i, i));
+                assertTrue(cache.sizeBytes() <= maxBytes, "size after put " + i + ": " + cache.sizeBytes());
+            }
+            assertEquals(199L, cache.get("m199").getInternalDate());
+            assertFalse(cache.contains("m0"));
+            assertTrue(cache.cachedMessages().size() < 200);
+        }
+
+        try (MessageCache cache = MessageCache.open(cacheDirectory, Duration.ofDays(1), maxBytes)) {
+            assertTrue(Files.size(cacheDirectory.resolve("messages.seg")) <= maxBytes);
+            assertEquals(199L, cache.get("m199").getInternalDate());
+        }
+    }
+}
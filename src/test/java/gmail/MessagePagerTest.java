@@ -0,0 +1,82 @@
+package gmail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+class MessagePagerTest {
+
+    /**
+     * Serves pages of a fixed list of ids, recording the page size asked for. Like Gmail it will hand back more than
+     * asked for when told to, and an empty page that still carries a token.
+     */
+    private static class FakeMailbox implements PageRequester {
+        final List<String> ids;
+        final List<Long> pageSizes = new ArrayList<>();
+        int overfill = 0;
+        boolean emptyFirstPage = false;
+
+        FakeMailbox(int count) {
+            ids = IntStream.range(0, count).mapToObj(it -> "m" + it).toList();
+        }
+
+        @Override
+        public ListMessagesResponse list(String query, String pageToken, long maxResults) {
+            pageSizes.add(maxResults);
+            if (emptyFirstPage && pageToken == null) {
+                return new ListMessagesResponse().setMessages(null).setNextPageToken("0");
+            }
+            int from = pageToken == null ? 0 : Integer.parseInt(pageToken);
+            int to = (int) Math.min(ids.size(), from + maxResults + overfill);
+            return new ListMessagesResponse()
+                    .setMessages(ids.subList(from, to).stream().map(it -> new Message().setId(it)).toList())
+                    .setNextPageToken(to < ids.size() ? String.valueOf(to) : null);
+        }
+    }
+
+    @Test
+    void pageSizeFollowsTheRemainingBudgetAndTheApiCap() throws IOException {
+        FakeMailbox mailbox = new FakeMailbox(2000);
+        MessagePager sut = new MessagePager(mailbox, "q", 1200);
+        List<String> listed = new ArrayList<>();
+        sut.forEachPage(page -> page.forEach(it -> listed.add(it.getId())));
+        assertEquals(List.of(500L, 500L, 200L), mailbox.pageSizes);
+        assertEquals(1200, listed.size());
+        assertEquals(3, sut.requests());
+    }
+
+    @Test
+    void overlongPagesAreTrimmedToTheLimit() throws IOException {
+        FakeMailbox mailbox = new FakeMailbox(100);
+        mailbox.overfill = 7;
+        MessagePager sut = new MessagePager(mailbox, null, 30);
+        List<Message> page = sut.nextPage();
+        assertEquals(30, page.size());
+        assertNull(sut.nextPage());
+    }
+
+    @Test
+    void emptyPageWithATokenDoesNotEndTheListing() throws IOException {
+        FakeMailbox mailbox = new FakeMailbox(10);
+        mailbox.emptyFirstPage = true;
+        MessagePager sut = new MessagePager(mailbox, null, 50);
+        List<String> listed = new ArrayList<>();
+        sut.forEachPage(page -> page.forEach(it -> listed.add(it.getId())));
+        assertEquals(10, listed.size());
+    }
+
+    @Test
+    void streamOnlyRequestsThePagesItUses() {
+        FakeMailbox mailbox = new FakeMailbox(5000);
+        List<String> firstIds = new MessagePager(mailbox, null, 5000).stream().limit(3).map(Message::getId).toList();
+        assertEquals(List.of("m0", "m1", "m2"), firstIds);
+        assertEquals(1, mailbox.pageSizes.size());
+    }
+}
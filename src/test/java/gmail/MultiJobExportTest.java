@@ -0,0 +1,119 @@
+package gmail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.api.services.gmail.model.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import parser.CSVRecord;
+import parser.FetchFormat;
+import parser.MessageParser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class MultiJobExportTest {
+
+    @TempDir
+    Path tempDir;
+
+    private record IdRecord(long date, String id) implements CSVRecord {
+        public String toCsv() {
+            return id;
+        }
+
+        public long getLongDate() {
+            return date;
+        }
+    }
+
+    private record IdParser(Path output, FetchFormat fetchFormat) implements MessageParser<IdRecord> {
+        public List<IdRecord> parse(Message msg) {
+            return List.of(new IdRecord(msg.getInternalDate(), msg.getId()));
+        }
+
+        public void cleanup() {
+        }
+
+        public String getCSVOutputFilename() {
+            return output.toString();
+        }
+    }
+
+    private static List<Message> messages(String... ids) {
+        return Arrays.stream(ids).map(it -> new Message().setId(it)).toList();
+    }
+
+    @Test
+    void messagesMatchingSeveralJobsAreFetchedOnce() throws IOException {
+        List<String> fetchedIds = Collections.synchronizedList(new ArrayList<>());
+        List<FetchFormat> fetchFormats = Collections.synchronizedList(new ArrayList<>());
+        MessageFetcher fetcher = (partialMessages, format) -> {
+            fetchFormats.add(format);
+            partialMessages.forEach(it -> fetchedIds.add(it.getId()));
+            return partialMessages.stream()
+                    .map(it -> new Message().setId(it.getId()).setInternalDate((long) it.getId().charAt(0)))
+                    .toList();
+        };
+        Path alertsOutput = tempDir.resolve("alerts.csv");
+        Path listingOutput = tempDir.resolve("listing.csv");
+        MultiJobExport.Job alerts = new MultiJobExport.Job("alerts", "from:alerts", 10, new IdParser(alertsOutput, FetchFormat.FULL));
+        MultiJobExport.Job listing = new MultiJobExport.Job("listing", "newer_than:1d", 10,
+                new IdParser(listingOutput, FetchFormat.metadata("From")));
+        MultiJobExport sut = new MultiJobExport(fetcher, null, new ExportPipeline.Options(null, null, 2, 1, false),
+                List.of(alerts, listing));
+
+        Map<String, MultiJobExport.JobResult> results = sut.run(
+                (query, requestedMax, pageConsumer) -> pageConsumer.accept(query.startsWith("from")
+                        ? messages("a", "b", "c")
+                        : messages("b", "c", "d")),
+                (job, records) -> { });
+
+        assertEquals(List.of("a", "b", "c", "d"), fetchedIds);
+        assertTrue(fetchFormats.stream().allMatch(FetchFormat::isFull));
+        assertEquals(3, results.get("alerts").recordCount());
+        assertEquals(3, results.get("listing").recordCount());
+        assertEquals("a\r\nb\r\nc\r\n", Files.readString(alertsOutput));
+        assertEquals("b\r\nc\r\nd\r\n", Files.readString(listingOutput));
+    }
+
+    @Test
+    void messagesThatFailToFetchAreLeftOutOfEveryJob() throws IOException {
+        MessageFetcher fetcher = (partialMessages, format) -> partialMessages.stream()
+                .filter(it -> !it.getId().equals("b"))
+                .map(it -> new Message().setId(it.getId()).setInternalDate(1L))
+                .toList();
+        Path alertsOutput = tempDir.resolve("alerts.csv");
+        Path listingOutput = tempDir.resolve("listing.csv");
+        MultiJobExport.Job alerts = new MultiJobExport.Job("alerts", "from:alerts", 10, new IdParser(alertsOutput, FetchFormat.FULL));
+        MultiJobExport.Job listing = new MultiJobExport.Job("listing", "newer_than:1d", 10, new IdParser(listingOutput, FetchFormat.FULL));
+        MultiJobExport sut = new MultiJobExport(fetcher, null, new ExportPipeline.Options(null, null, 10, 1, false),
+                List.of(alerts, listing));
+
+        Map<String, MultiJobExport.JobResult> results = sut.run(
+                (query, requestedMax, pageConsumer) -> pageConsumer.accept(query.startsWith("from")
+                        ? messages("a", "b")
+                        : messages("b", "c")),
+                (job, records) -> { });
+
+        assertEquals(Set.of("a"), results.get("alerts").processedMessageIds());
+        assertEquals(Set.of("c"), results.get("listing").processedMessageIds());
+        assertEquals("a\r\n", Files.readString(alertsOutput));
+        assertEquals("c\r\n", Files.readString(listingOutput));
+    }
+
+    @Test
+    void formatsAreMergedToCoverEveryJob() {
+        assertEquals(FetchFormat.FULL, FetchFormat.metadata("From").union(FetchFormat.FULL));
+        assertEquals(FetchFormat.metadata("From", "Subject"), FetchFormat.metadata("From").union(FetchFormat.metadata("Subject", "from")));
+        assertEquals(FetchFormat.metadata("To"), FetchFormat.MINIMAL.union(FetchFormat.metadata("To")));
+        assertEquals(FetchFormat.RAW, FetchFormat.RAW.union(FetchFormat.RAW));
+    }
+}
@@ -0,0 +1,108 @@
+package gmail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartHeader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import parser.CSVRecord;
+import parser.FetchFormat;
+import parser.MessageParser;
+import utils.MessageView;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+class ParserRouterTest {
+
+    @TempDir
+    Path tempDir;
+
+    private record IdRecord(long date, String id) implements CSVRecord {
+        public String toCsv() {
+            return id;
+        }
+
+        public long getLongDate() {
+            return date;
+        }
+    }
+
+    /**
+     * Handles the messages sent from the given address, or every message when there is none.
+     */
+    private record SenderParser(Path output, String sender, FetchFormat fetchFormat) implements MessageParser<IdRecord> {
+        public List<IdRecord> parse(Message msg) {
+            return List.of(new IdRecord(msg.getInternalDate(), msg.getId()));
+        }
+
+        public void cleanup() {
+        }
+
+        public String getCSVOutputFilename() {
+            return output.toString();
+        }
+
+        public String searchQuery() {
+            return sender == null ? null : "from:" + sender;
+        }
+
+        public boolean handles(MessageView view) {
+            return sender == null || view.headers().value("From", "").contains(sender);
+        }
+    }
+
+    private static Message message(String id, String from) {
+        return new Message().setId(id).setInternalDate(1720812522000L)
+                .setPayload(new MessagePart().setHeaders(List.of(new MessagePartHeader().setName("From").setValue(from))));
+    }
+
+    @Test
+    void eachMessageIsFetchedOnceAndRoutedToEveryInterestedParser() throws IOException {
+        List<List<String>> fetches = new ArrayList<>();
+        List<FetchFormat> formats = new ArrayList<>();
+        List<Message> mailbox = List.of(message("a", "alerts@example.com"), message("b", "news@example.com"),
+                message("c", "someone@example.com"));
+        MessageFetcher fetcher = (partialMessages, format) -> {
+            formats.add(format);
+            fetches.add(partialMessages.stream().map(Message::getId).toList());
+            return mailbox.stream().filter(it -> partialMessages.stream().anyMatch(p -> p.getId().equals(it.getId()))).toList();
+        };
+        Path alerts = tempDir.resolve("alerts.csv");
+        Path news = tempDir.resolve("news.csv");
+        List<MessageParser<?>> parsers = List.of(
+                new SenderParser(alerts, "alerts@example.com", FetchFormat.FULL),
+                new SenderParser(news, "news@example.com", FetchFormat.metadata("From")));
+
+        try (ParserRouter sut = new ParserRouter(fetcher, null, parsers, new ExportPipeline.Options(null, null, 10, 1, false))) {
+            assertEquals("newer_than:1d (from:alerts@example.com OR from:news@example.com)", sut.searchQuery("newer_than:1d"));
+            sut.route(mailbox.stream().map(it -> new Message().setId(it.getId())).toList(), (parser, records) -> { });
+            assertEquals(List.of("a", "b"), List.copyOf(sut.processedMessageIds()));
+        }
+
+        assertEquals(List.of(List.of("a", "b", "c")), fetches);
+        assertEquals(List.of(FetchFormat.FULL), formats);
+        assertEquals("a\r\n", Files.readString(alerts));
+        assertEquals("b\r\n", Files.readString(news));
+    }
+
+    @Test
+    void messagesOnlyACatchAllParserExportedAreNotDeletable() throws IOException {
+        List<Message> mailbox = List.of(message("a", "alerts@example.com"), message("b", "someone@example.com"));
+        MessageFetcher fetcher = (partialMessages, format) -> mailbox;
+        List<MessageParser<?>> parsers = List.of(
+                new SenderParser(tempDir.resolve("alerts.csv"), "alerts@example.com", FetchFormat.FULL),
+                new SenderParser(tempDir.resolve("everything.csv"), null, FetchFormat.FULL));
+
+        try (ParserRouter sut = new ParserRouter(fetcher, null, parsers, new ExportPipeline.Options(null, null, 10, 1, false))) {
+            sut.route(mailbox.stream().map(it -> new Message().setId(it.getId())).toList(), (parser, records) -> { });
+            assertEquals(List.of("a", "b"), List.copyOf(sut.processedMessageIds()));
+            assertEquals(List.of("a"), List.copyOf(sut.deletableMessageIds()));
+        }
+    }
+}
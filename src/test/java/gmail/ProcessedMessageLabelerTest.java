@@ -0,0 +1,109 @@
+package gmail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.gmail.Gmail;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+class ProcessedMessageLabelerTest {
+
+    /**
+     * Answers batchModify calls, rejecting any call that includes a message id starting with "bad", or every call
+     * when forbidden.
+     */
+    private static class FakeBatchModifyTransport extends MockHttpTransport {
+        private static final Pattern ID = Pattern.compile("\"([^\",\\[\\]]+)\"");
+        private final Queue<Integer> callSizes = new ConcurrentLinkedQueue<>();
+        private final boolean forbidden;
+
+        FakeBatchModifyTransport(boolean forbidden) {
+            this.forbidden = forbidden;
+        }
+
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    String content = getContentAsString();
+                    String idList = content.substring(content.indexOf("\"ids\""));
+                    idList = idList.substring(idList.indexOf('['), idList.indexOf(']'));
+                    int size = 0;
+                    boolean rejected = false;
+                    Matcher matcher = ID.matcher(idList);
+                    while (matcher.find()) {
+                        size++;
+                        rejected |= matcher.group(1).startsWith("bad");
+                    }
+                    callSizes.add(size);
+                    if (forbidden) {
+                        return new MockLowLevelHttpResponse()
+                                .setStatusCode(403)
+                                .setContentType("application/json; charset=UTF-8")
+                                .setContent("{\"error\":{\"code\":403,\"message\":\"Request had insufficient authentication scopes.\",\"errors\":[{\"reason\":\"insufficientPermissions\"}]}}");
+                    }
+                    if (rejected) {
+                        return new MockLowLevelHttpResponse()
+                                .setStatusCode(400)
+                                .setContentType("application/json; charset=UTF-8")
+                                .setContent("{\"error\":{\"code\":400,\"message\":\"Invalid id value\",\"errors\":[{\"reason\":\"invalidArgument\"}]}}");
+                    }
+                    return new MockLowLevelHttpResponse().setStatusCode(204);
+                }
+            };
+        }
+    }
+
+    private static ProcessedMessageLabeler labeler(FakeBatchModifyTransport transport) {
+        Gmail gmail = new Gmail.Builder(transport, GsonFactory.getDefaultInstance(), null)
+                .setApplicationName("fake-gmail-test")
+                .build();
+        QuotaRateLimiter rateLimiter = new QuotaRateLimiter(100_000, 4, Duration.ofMillis(10));
+        return new ProcessedMessageLabeler(gmail, rateLimiter, 2, ProcessedMessageLabeler.TRASH_LABEL);
+    }
+
+    @Test
+    void rejectedIdsAreNarrowedDownAndReported() throws IOException {
+        FakeBatchModifyTransport transport = new FakeBatchModifyTransport(false);
+        ProcessedMessageLabeler sut = labeler(transport);
+        List<String> ids = IntStream.range(0, 2500).mapToObj(i -> i == 1234 ? "bad" + i : "msg" + i).toList();
+
+        ProcessedMessageLabeler.Report report = sut.label(ids);
+
+        assertEquals(List.of("bad1234"), List.copyOf(report.failedIds().keySet()));
+        assertEquals(2499, report.labelledIds().size());
+        assertEquals("msg0", report.labelledIds().get(0));
+        assertTrue(transport.callSizes.stream().allMatch(it -> it <= ProcessedMessageLabeler.MAX_IDS_PER_CALL));
+        // Three chunks, then the rejected chunk is halved down to the bad id
+        assertTrue(transport.callSizes.size() < 3 + 2 * 10 + 1, "calls: " + transport.callSizes.size());
+    }
+
+    @Test
+    void forbiddenChunkFailsWithoutBeingSplit() throws IOException {
+        FakeBatchModifyTransport transport = new FakeBatchModifyTransport(true);
+        ProcessedMessageLabeler sut = labeler(transport);
+        List<String> ids = IntStream.range(0, 1500).mapToObj(i -> "msg" + i).toList();
+
+        ProcessedMessageLabeler.Report report = sut.label(ids);
+
+        assertTrue(report.labelledIds().isEmpty());
+        assertEquals(ids, List.copyOf(report.failedIds().keySet()));
+        assertTrue(report.failedIds().get("msg0").startsWith("403 "), report.failedIds().get("msg0"));
+        assertEquals(2, transport.callSizes.size());
+    }
+}
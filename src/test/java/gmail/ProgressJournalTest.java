@@ -0,0 +1,99 @@
+package gmail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.api.services.gmail.model.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+class ProgressJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static List<Message> page(String... ids) {
+        return Arrays.stream(ids).map(it -> new Message().setId(it)).toList();
+    }
+
+    @Test
+    void unfinishedRunIsReplayed() throws IOException {
+        Path file = tempDir.resolve("journal.log");
+        try (ProgressJournal journal = ProgressJournal.open(file, "search from:a")) {
+            assertFalse(journal.isResuming());
+            journal.historyId(BigInteger.valueOf(42));
+            journal.listed(page("a", "b"));
+            journal.listed(page("b", "c"));
+            journal.listingCompleted();
+            journal.written(100, List.of("a", "b"), List.of("a"));
+            journal.trashed(List.of("a"));
+        }
+        // A line cut short by a crash is dropped
+        Files.writeString(file, "WRITTEN 2", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        try (ProgressJournal journal = ProgressJournal.open(file, "search from:a")) {
+            assertTrue(journal.isResuming());
+            assertEquals(BigInteger.valueOf(42), journal.historyId());
+            assertTrue(journal.isListingComplete());
+            assertEquals(List.of("a", "b", "c"), journal.listedMessages().stream().map(Message::getId).toList());
+            assertTrue(journal.wasWritten("b"));
+            assertFalse(journal.wasWritten("c"));
+            assertEquals(100, journal.csvLength());
+            assertEquals(Set.of("a"), journal.exportedIds());
+            assertTrue(journal.wasTrashed("a"));
+            journal.written(200, List.of("c"), List.of());
+        }
+        assertTrue(Files.readString(file, StandardCharsets.UTF_8).endsWith("TRASHED a\nWRITTEN 200 c -\n"));
+    }
+
+    @Test
+    void completedOrDifferentRunStartsAfresh() throws IOException {
+        Path file = tempDir.resolve("journal.log");
+        try (ProgressJournal journal = ProgressJournal.open(file, "search from:a")) {
+            journal.listed(page("a"));
+        }
+        try (ProgressJournal journal = ProgressJournal.open(file, "list")) {
+            assertFalse(journal.isResuming());
+            assertTrue(journal.listedMessages().isEmpty());
+            journal.listed(page("b"));
+            journal.complete();
+        }
+        try (ProgressJournal journal = ProgressJournal.open(file, "list")) {
+            assertFalse(journal.isResuming());
+            assertEquals(-1, journal.csvLength());
+        }
+        assertEquals("RUN list\n", Files.readString(file, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void discardedWritesAreNotReplayed() throws IOException {
+        Path file = tempDir.resolve("journal.log");
+        Path csv = tempDir.resolve("out 1.csv");
+        try (ProgressJournal journal = ProgressJournal.open(file, "search from:a")) {
+            journal.listed(page("a", "b"));
+            journal.csvPath(csv);
+            journal.written(100, List.of("a"), List.of("a"));
+        }
+        try (ProgressJournal journal = ProgressJournal.open(file, "search from:a")) {
+            assertEquals(csv.toAbsolutePath(), journal.csvPath());
+            journal.discardWritten();
+        }
+        try (ProgressJournal journal = ProgressJournal.open(file, "search from:a")) {
+            assertTrue(journal.isResuming());
+            assertNull(journal.csvPath());
+            assertEquals(-1, journal.csvLength());
+            assertFalse(journal.wasWritten("a"));
+            assertTrue(journal.exportedIds().isEmpty());
+            assertEquals(2, journal.listedMessages().size());
+        }
+    }
+}
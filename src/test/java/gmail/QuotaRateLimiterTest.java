@@ -0,0 +1,74 @@
+package gmail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+class QuotaRateLimiterTest {
+
+    @Test
+    void rateLimitingHalvesConcurrencyAndSuccessRaisesItAgain() throws InterruptedException {
+        QuotaRateLimiter sut = new QuotaRateLimiter(1000, 8, Duration.ofMillis(10));
+        assertEquals(8, sut.concurrencyLimit());
+
+        sut.acquireSlot();
+        sut.releaseSlot(true);
+        assertEquals(4, sut.concurrencyLimit());
+        sut.acquireSlot();
+        sut.releaseSlot(true);
+        assertEquals(2, sut.concurrencyLimit());
+
+        for (int i = 0; i < 2; i++) {
+            sut.acquireSlot();
+            sut.releaseSlot(false);
+        }
+        assertEquals(3, sut.concurrencyLimit());
+    }
+
+    @Test
+    void concurrencyNeverDropsBelowOne() throws InterruptedException {
+        QuotaRateLimiter sut = new QuotaRateLimiter(1000, 1, Duration.ofMillis(10));
+        sut.acquireSlot();
+        sut.releaseSlot(true);
+        assertEquals(1, sut.concurrencyLimit());
+    }
+
+    @Test
+    void acquireWaitsOnceTheBurstIsUsed() throws InterruptedException {
+        QuotaRateLimiter sut = new QuotaRateLimiter(100, 1, Duration.ofMillis(10));
+        sut.acquire(100);
+
+        long start = System.nanoTime();
+        sut.acquire(20);
+        long waitedMillis = Duration.ofNanos(System.nanoTime() - start).toMillis();
+
+        assertTrue(waitedMillis >= 150, "expected to wait for 20 units at 100 units a second, waited " + waitedMillis);
+    }
+
+    @Test
+    void backoffGrowsWithEachAttempt() {
+        QuotaRateLimiter sut = new QuotaRateLimiter(1000, 1, Duration.ofMillis(100));
+        for (int i = 0; i < 20; i++) {
+            long first = sut.backoffDelayMillis(1);
+            long third = sut.backoffDelayMillis(3);
+            assertTrue(first >= 50 && first <= 100, "first retry delay " + first);
+            assertTrue(third >= 200 && third <= 400, "third retry delay " + third);
+        }
+        assertTrue(sut.backoffDelayMillis(30) <= Duration.ofSeconds(32).toMillis());
+    }
+
+    @Test
+    void unlimitedLimiterNeverWaitsForQuota() throws InterruptedException {
+        QuotaRateLimiter sut = new QuotaRateLimiter(QuotaRateLimiter.UNLIMITED, 2, Duration.ofMillis(10));
+        sut.acquireSlot();
+        sut.releaseSlot(true);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            sut.acquire(10_000);
+        }
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 100);
+    }
+}
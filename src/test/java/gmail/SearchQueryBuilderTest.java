@@ -0,0 +1,42 @@
+package gmail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class SearchQueryBuilderTest {
+
+    @Test
+    void filtersAreAddedAsSearchOperators() {
+        String query = new SearchQueryBuilder()
+                .query("newer_than:1d")
+                .from("LinkedIn Job Alerts <jobalerts@linkedin.com>")
+                .subject("Java developer")
+                .build();
+        assertEquals("newer_than:1d from:jobalerts@linkedin.com subject:\"Java developer\"", query);
+    }
+
+    @Test
+    void termsAlreadyInTheQueryAreNotRepeated() {
+        String query = new SearchQueryBuilder()
+                .query("from:jobalerts-noreply@linkedin.com newer_than:1d")
+                .from("LinkedIn Job Alerts <jobalerts-noreply@linkedin.com>")
+                .build();
+        assertEquals("from:jobalerts-noreply@linkedin.com newer_than:1d", query);
+    }
+
+    @Test
+    void queryWithSeveralTermsIsGrouped() {
+        String query = new SearchQueryBuilder()
+                .query("label:jobs OR label:alerts")
+                .subject("Engineer")
+                .build();
+        assertEquals("(label:jobs OR label:alerts) subject:Engineer", query);
+    }
+
+    @Test
+    void filtersAloneOrNothingAtAll() {
+        assertEquals("from:someone@example.com", new SearchQueryBuilder().from("someone@example.com").subject("").build());
+        assertNull(new SearchQueryBuilder().query(" ").build());
+    }
+}
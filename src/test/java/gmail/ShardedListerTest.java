@@ -0,0 +1,89 @@
+package gmail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+class ShardedListerTest {
+    private static final Pattern WINDOW = Pattern.compile("after:(\\d+) before:(\\d+)");
+    private static final Instant SINCE = Instant.now().minus(30, ChronoUnit.DAYS);
+
+    /**
+     * A mailbox answering date windowed queries the way Gmail does, with exclusive bounds and newest first pages.
+     */
+    private static class FakeMailbox implements PageRequester {
+        final TreeMap<Long, String> idsBySecond = new TreeMap<>();
+        final AtomicInteger requests = new AtomicInteger();
+        final List<String> queries = new ArrayList<>();
+
+        @Override
+        public synchronized ListMessagesResponse list(String query, String pageToken, long maxResults) {
+            requests.incrementAndGet();
+            queries.add(query);
+            Matcher matcher = WINDOW.matcher(query);
+            assertTrue(matcher.find(), query);
+            List<String> ids = new ArrayList<>(idsBySecond
+                    .subMap(Long.parseLong(matcher.group(1)), false, Long.parseLong(matcher.group(2)), false)
+                    .descendingMap().values());
+            int from = pageToken == null ? 0 : Integer.parseInt(pageToken);
+            int to = (int) Math.min(ids.size(), from + maxResults);
+            return new ListMessagesResponse()
+                    .setMessages(ids.subList(from, to).stream().map(it -> new Message().setId(it)).toList())
+                    .setNextPageToken(to < ids.size() ? String.valueOf(to) : null);
+        }
+    }
+
+    @Test
+    void everyMessageIsListedOnceAndBusyWindowsAreSplit() throws Exception {
+        FakeMailbox mailbox = new FakeMailbox();
+        long start = SINCE.getEpochSecond();
+        // a busy day, then a message on every shard edge
+        for (int i = 0; i < 1200; i++) {
+            mailbox.idsBySecond.put(start + 86_400 + i * 60L, "busy" + i);
+        }
+        ShardedLister sut = new ShardedLister(mailbox, 4, SINCE);
+        for (ShardedLister.Window window : sut.initialWindows(Instant.now())) {
+            mailbox.idsBySecond.put(window.after(), "edge" + window.after());
+        }
+
+        List<String> listed = new ArrayList<>();
+        sut.list("from:alerts@example.com", Long.MAX_VALUE, page -> page.forEach(it -> listed.add(it.getId())));
+
+        assertEquals(mailbox.idsBySecond.size(), listed.size());
+        assertEquals(mailbox.idsBySecond.size(), listed.stream().distinct().count());
+        assertTrue(mailbox.queries.stream().allMatch(it -> it.startsWith("from:alerts@example.com after:")));
+        // 1200 messages in 500 message pages needs more windows than the 4 it started with
+        assertTrue(mailbox.requests.get() > 4);
+    }
+
+    @Test
+    void listingStopsAtTheRequestedMax() throws Exception {
+        FakeMailbox mailbox = new FakeMailbox();
+        long start = SINCE.getEpochSecond();
+        for (int i = 0; i < 300; i++) {
+            mailbox.idsBySecond.put(start + i * 3600L, "message" + i);
+        }
+        List<String> listed = new ArrayList<>();
+        new ShardedLister(mailbox, 8, SINCE).list(null, 120, page -> page.forEach(it -> listed.add(it.getId())));
+        assertEquals(120, listed.size());
+        assertEquals(120, listed.stream().distinct().count());
+    }
+
+    @Test
+    void windowQueryGroupsTheBaseQuery() {
+        ShardedLister.Window window = new ShardedLister.Window(100, 200);
+        assertEquals("after:99 before:201", window.query(null));
+        assertEquals("(a OR b) after:99 before:201", window.query("a OR b"));
+    }
+}
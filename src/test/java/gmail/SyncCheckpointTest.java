@@ -0,0 +1,54 @@
+package gmail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+class SyncCheckpointTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void missingFileGivesAnEmptyCheckpoint() throws IOException {
+        SyncCheckpoint sut = SyncCheckpoint.load(tempDir.resolve("sync-checkpoint.txt"));
+        assertTrue(sut.isEmpty());
+        assertNull(sut.historyId());
+    }
+
+    @Test
+    void savedCheckpointIsLoadedBack() throws IOException {
+        Path file = tempDir.resolve("sync-checkpoint.txt");
+        SyncCheckpoint checkpoint = SyncCheckpoint.load(file);
+        checkpoint.update(BigInteger.valueOf(12345), List.of("m1", "m2"), Instant.ofEpochSecond(1_760_000_000));
+        checkpoint.save();
+
+        SyncCheckpoint sut = SyncCheckpoint.load(file);
+
+        assertFalse(sut.isEmpty());
+        assertEquals(BigInteger.valueOf(12345), sut.historyId());
+        assertEquals(Instant.ofEpochSecond(1_760_000_000), sut.syncedAt());
+        assertTrue(sut.wasExported("m1"));
+        assertTrue(sut.wasExported("m2"));
+        assertFalse(sut.wasExported("m3"));
+        assertFalse(Files.exists(tempDir.resolve("sync-checkpoint.txt.tmp")));
+    }
+
+    @Test
+    void historyIdOnlyMovesForward() throws IOException {
+        SyncCheckpoint sut = SyncCheckpoint.load(tempDir.resolve("sync-checkpoint.txt"));
+        sut.update(BigInteger.valueOf(200), List.of("m1"), null);
+        sut.update(BigInteger.valueOf(150), List.of("m2"), null);
+        sut.update(null, List.of(), null);
+        assertEquals(BigInteger.valueOf(200), sut.historyId());
+        assertTrue(sut.wasExported("m2"));
+    }
+}
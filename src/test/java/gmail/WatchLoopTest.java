@@ -0,0 +1,59 @@
+package gmail;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class WatchLoopTest {
+
+    @Test
+    void failedCycleDoesNotEndTheLoop() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        WatchLoop[] sut = new WatchLoop[1];
+        sut[0] = new WatchLoop(Duration.ZERO, () -> {
+            if (runs.incrementAndGet() == 3) {
+                sut[0].stop();
+            }
+            throw new IllegalStateException("cycle " + runs.get() + " failed");
+        });
+        sut[0].run();
+        assertEquals(3, runs.get());
+        assertEquals(3, sut[0].cycles());
+    }
+
+    @Test
+    void wakeStartsTheNextCycleWithoutWaitingForTheInterval() throws Exception {
+        CountDownLatch firstCycle = new CountDownLatch(1);
+        CountDownLatch secondCycle = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        WatchLoop sut = new WatchLoop(Duration.ofHours(1), () -> {
+            if (runs.incrementAndGet() == 1) {
+                firstCycle.countDown();
+            } else {
+                secondCycle.countDown();
+            }
+        });
+        Thread watcher = Thread.ofVirtual().start(() -> {
+            try {
+                sut.run();
+            } catch (InterruptedIOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        assertTrue(firstCycle.await(5, TimeUnit.SECONDS));
+        sut.wake();
+        assertTrue(secondCycle.await(5, TimeUnit.SECONDS));
+        sut.stop();
+        watcher.join(5000);
+        assertFalse(watcher.isAlive());
+        assertEquals(2, runs.get());
+    }
+}
@@ -0,0 +1,69 @@
+package metrics;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+class MetricsReportTest {
+
+    @Test
+    void histogramBucketsValuesByUpperBound() {
+        Histogram sut = new Histogram(1, 10, 100);
+        sut.record(1);
+        sut.record(5);
+        sut.record(10);
+        sut.record(500);
+        assertEquals(List.of(1L, 2L, 0L, 1L), Arrays.stream(sut.bucketCounts()).boxed().toList());
+        assertEquals(4, sut.count());
+        assertEquals(516, sut.sum());
+        assertEquals(10, sut.quantile(0.5));
+        assertEquals(500, sut.quantile(0.99));
+    }
+
+    @Test
+    void prometheusHistogramsAreCumulative() {
+        ExportMetrics metrics = new ExportMetrics();
+        metrics.record(Stage.FETCH, System.nanoTime(), 50);
+        metrics.record(Stage.FETCH, System.nanoTime(), 20);
+        metrics.retried(Stage.FETCH);
+        metrics.quotaUnitsUsed(350);
+
+        String text = MetricsReport.prometheus(metrics);
+        assertTrue(text.contains("# TYPE gmail_export_stage_batch_size histogram\n"));
+        assertTrue(text.contains("gmail_export_stage_batch_size_bucket{stage=\"fetch\",le=\"25\"} 1\n"));
+        assertTrue(text.contains("gmail_export_stage_batch_size_bucket{stage=\"fetch\",le=\"50\"} 2\n"));
+        assertTrue(text.contains("gmail_export_stage_batch_size_bucket{stage=\"fetch\",le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("gmail_export_stage_batch_size_sum{stage=\"fetch\"} 70\n"));
+        assertTrue(text.contains("gmail_export_stage_latency_seconds_bucket{stage=\"fetch\",le=\"0.0001\"}"));
+        assertTrue(text.contains("gmail_export_stage_retries_total{stage=\"fetch\"} 1\n"));
+        assertTrue(text.contains("gmail_export_quota_units_total 350\n"));
+    }
+
+    @Test
+    void jsonReportCoversEveryStage() {
+        ExportMetrics metrics = new ExportMetrics();
+        metrics.record(Stage.PARSE, System.nanoTime(), 10);
+        metrics.recordsWritten(30);
+
+        String json = MetricsReport.json(metrics);
+        for (Stage stage : Stage.values()) {
+            assertTrue(json.contains("\"" + stage.label() + "\": {"), stage.label());
+        }
+        assertTrue(json.contains("\"recordsWritten\": 30,"));
+        assertTrue(json.contains("\"items\": 10,"));
+    }
+
+    @Test
+    void numbersKeepSixSignificantDigitsAndTheirIntegerZeros() {
+        assertEquals("123450", MetricsReport.number(123450.4));
+        assertEquals("120000", MetricsReport.number(119999.95));
+        assertEquals("1000.5", MetricsReport.number(1000.5));
+        assertEquals("2.5", MetricsReport.number(2.5));
+        assertEquals("0.000123457", MetricsReport.number(0.0001234567));
+        assertEquals("350", MetricsReport.number(350));
+        assertEquals("+Inf", MetricsReport.number(Double.POSITIVE_INFINITY));
+    }
+}
@@ -0,0 +1,31 @@
+package parser;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import parser.basic.BasicEmailParser;
+import parser.basic.BasicEmailParserProvider;
+
+import java.util.List;
+import java.util.Set;
+
+class ParserRegistryTest {
+
+    @Test
+    void bundledParsersAreFoundOnTheClasspath() {
+        ParserRegistry sut = ParserRegistry.getInstance();
+
+        assertEquals(Set.of("linkedin", "basic"), sut.names());
+        MessageParser<?> parser = sut.create("Basic", "listing.csv");
+        assertTrue(parser instanceof BasicEmailParser);
+        assertEquals("listing.csv", parser.getCSVOutputFilename());
+        assertThrows(IllegalArgumentException.class, () -> sut.create("unknown"));
+    }
+
+    @Test
+    void parsersSharingANameAreRejected() {
+        MessageParserProvider first = new BasicEmailParserProvider();
+        MessageParserProvider second = new BasicEmailParserProvider();
+        assertThrows(IllegalStateException.class, () -> new ParserRegistry(List.of(first, second)));
+    }
+}
@@ -0,0 +1,62 @@
+package parser.linkedin;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import utils.SeenIndex;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
+
+class SeenJobFilterTest {
+    private static final Clock CLOCK = Clock.fixed(LocalDate.of(2024, 7, 15).atStartOfDay(ZoneOffset.UTC).toInstant(), ZoneOffset.UTC);
+
+    @TempDir
+    Path tempDir;
+
+    private static LinkedInAlert alert(String link) {
+        return new LinkedInAlert(1720812522000L, "Engineer", "Acme", "London", "", link);
+    }
+
+    @Test
+    void jobsAreKeyedByTheIdInTheirLink() {
+        assertEquals(3960311234L, SeenJobFilter.jobKey("https://www.linkedin.com/comm/jobs/view/3960311234"));
+        assertEquals(3960311234L, SeenJobFilter.jobKey("https://www.linkedin.com/jobs/view/3960311234/?trackingId=abc"));
+        assertTrue(SeenJobFilter.jobKey("https://example.com/careers/1") < 0);
+    }
+
+    @Test
+    void jobIsOnlyAcceptedUntilItHasBeenWritten() throws IOException {
+        Path indexFile = tempDir.resolve("seen.idx");
+        LinkedInAlert first = alert("https://www.linkedin.com/comm/jobs/view/1");
+        LinkedInAlert repeat = alert("https://www.linkedin.com/jobs/view/1/?trackingId=x");
+        try (SeenJobFilter sut = new SeenJobFilter(SeenIndex.open(indexFile), CLOCK)) {
+            assertTrue(sut.accept(first));
+            assertFalse(sut.accept(repeat));
+            assertNull(sut.seen(first.link()));
+            sut.written(List.of(first));
+            assertEquals(new SeenIndex.Entry(LocalDate.of(2024, 7, 15), LocalDate.of(2024, 7, 15), 2), sut.seen(first.link()));
+        }
+        try (SeenJobFilter sut = new SeenJobFilter(SeenIndex.open(indexFile), CLOCK)) {
+            assertFalse(sut.accept(first));
+            assertTrue(sut.accept(alert("https://www.linkedin.com/comm/jobs/view/2")));
+        }
+    }
+
+    @Test
+    void jobNeverWrittenIsAcceptedAgainByTheNextRun() throws IOException {
+        Path indexFile = tempDir.resolve("seen.idx");
+        LinkedInAlert lost = alert("https://www.linkedin.com/comm/jobs/view/3");
+        try (SeenJobFilter sut = new SeenJobFilter(SeenIndex.open(indexFile), CLOCK)) {
+            assertTrue(sut.accept(lost));
+        }
+        try (SeenJobFilter sut = new SeenJobFilter(SeenIndex.open(indexFile), CLOCK)) {
+            assertTrue(sut.accept(lost));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import parser.CSVRecord;
+import parser.linkedin.LinkedInAlert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+class CsvWriterTest {
+    private static final long SAMPLE_EPOCH_MS_1 = 1720812522000L;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void fieldsAreQuotedOnlyWhenNeeded() {
+        LinkedInAlert alert = new LinkedInAlert(SAMPLE_EPOCH_MS_1, "Engineer, Payments", "Acme \"Trading\"", "London",
+                null, "https://example.com/1");
+        assertEquals("12/Jul/2024,\"Engineer, Payments\",\"Acme \"\"Trading\"\"\",London,,https://example.com/1", alert.toCsv());
+    }
+
+    @Test
+    void rowsAreWrittenWithCrlfLineEndings() throws IOException {
+        Path output = tempDir.resolve("out.csv");
+        try (CsvWriter sut = CsvWriter.open(output, false)) {
+            sut.write(new LinkedInAlert(SAMPLE_EPOCH_MS_1, "Title", "Company", "Slough, England", "Line one\nline two", "link"));
+            sut.write(new LinkedInAlert(SAMPLE_EPOCH_MS_1, "£130,000", "Company", "London", "", "link"));
+        }
+        assertEquals("12/Jul/2024,Title,Company,\"Slough, England\",\"Line one\nline two\",link\r\n" +
+                "12/Jul/2024,\"£130,000\",Company,London,,link\r\n", Files.readString(output, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void largeGzipOutputRoundTrips() throws IOException {
+        Path output = tempDir.resolve("out.csv.gz");
+        StringBuilder expected = new StringBuilder();
+        try (CsvWriter sut = CsvWriter.open(output, true)) {
+            for (int i = 0; i < 20_000; i++) {
+                CSVRecord record = new LinkedInAlert(SAMPLE_EPOCH_MS_1, "Job £" + i, "Company " + i, "Location", "", "link/" + i);
+                sut.write(record);
+                expected.append(record.toCsv()).append("\r\n");
+            }
+            assertEquals(20_000, sut.rowCount());
+        }
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(output))) {
+            assertEquals(expected.toString(), new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void resumingDiscardsRowsWrittenAfterTheLastCommit() throws IOException {
+        Path output = tempDir.resolve("out.csv.gz");
+        long committedLength;
+        try (CsvWriter sut = CsvWriter.open(output, true)) {
+            sut.write(new LinkedInAlert(SAMPLE_EPOCH_MS_1, "First", "Company", "London", "", "link/1"));
+            committedLength = sut.commit();
+            sut.write(new LinkedInAlert(SAMPLE_EPOCH_MS_1, "Lost", "Company", "London", "", "link/2"));
+        }
+        try (CsvWriter sut = CsvWriter.resume(output, true, committedLength)) {
+            sut.write(new LinkedInAlert(SAMPLE_EPOCH_MS_1, "Second", "Company", "London", "", "link/3"));
+        }
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(output))) {
+            assertEquals("12/Jul/2024,First,Company,London,,link/1\r\n12/Jul/2024,Second,Company,London,,link/3\r\n",
+                    new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+class DayFormatCacheTest {
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("dd/MMM/yyyy");
+
+    @Test
+    void matchesDirectFormattingAcrossDaylightSavingChanges() {
+        for (String zoneName : new String[] {"Europe/London", "America/Sao_Paulo", "Asia/Kathmandu", "UTC"}) {
+            ZoneId zone = ZoneId.of(zoneName);
+            DayFormatCache sut = new DayFormatCache(FORMATTER, zone);
+            Random random = new Random(7);
+            long from = Instant.parse("2023-01-01T00:00:00Z").toEpochMilli();
+            long range = 2L * 365 * 24 * 60 * 60 * 1000;
+            for (int i = 0; i < 50_000; i++) {
+                long epochMillis = from + (long) (random.nextDouble() * range);
+                assertEquals(Instant.ofEpochMilli(epochMillis).atZone(zone).toLocalDate().format(FORMATTER), sut.format(epochMillis), zoneName);
+            }
+        }
+    }
+
+    @Test
+    void midnightBelongsToTheNewDay() {
+        DayFormatCache sut = new DayFormatCache(FORMATTER, ZoneId.of("Europe/London"));
+        long midnight = Instant.parse("2024-07-12T23:00:00Z").toEpochMilli(); // BST
+        assertEquals(Instant.ofEpochMilli(midnight - 1).atZone(ZoneId.of("Europe/London")).toLocalDate().format(FORMATTER), sut.format(midnight - 1));
+        assertEquals(Instant.ofEpochMilli(midnight).atZone(ZoneId.of("Europe/London")).toLocalDate().format(FORMATTER), sut.format(midnight));
+        assertNotEquals(sut.format(midnight - 1), sut.format(midnight));
+    }
+}
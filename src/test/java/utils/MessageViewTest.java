@@ -0,0 +1,106 @@
+package utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartBody;
+import com.google.api.services.gmail.model.MessagePartHeader;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+class MessageViewTest {
+
+    private static String encode(String text) {
+        return Base64.getUrlEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static MessagePart part(String mimeType, String data, MessagePartHeader... headers) {
+        return new MessagePart()
+                .setMimeType(mimeType)
+                .setHeaders(List.of(headers))
+                .setBody(new MessagePartBody().setSize(data.length()).setData(encode(data)));
+    }
+
+    private static MessagePart multipart(String mimeType, MessagePart... parts) {
+        return new MessagePart()
+                .setMimeType(mimeType)
+                .setHeaders(List.of())
+                .setBody(new MessagePartBody().setSize(0))
+                .setParts(List.of(parts));
+    }
+
+    /**
+     * multipart/mixed holding a multipart/alternative, the usual layout of a mail with an attachment.
+     */
+    private static Message nestedMessage(MessagePart attachment) {
+        return new Message().setId("m1").setPayload(multipart("multipart/mixed",
+                multipart("multipart/alternative",
+                        part("text/plain", "plain body"),
+                        part("text/html", "<p>html body</p>")),
+                attachment));
+    }
+
+    @Test
+    void nestedPartsAreFoundByMimeType() {
+        Message message = nestedMessage(part("image/png", "png", new MessagePartHeader().setName("content-id").setValue("<logo@example>")));
+
+        MessageView sut = MessageView.of(message);
+        assertEquals("plain body", sut.content(Util.EMAIL_MIME_TYPE.TEXT).toString());
+        assertEquals("<p>html body</p>", sut.content(Util.EMAIL_MIME_TYPE.HTML).toString());
+        assertEquals("plain body", Util.decodeMessageContent(message, Util.EMAIL_MIME_TYPE.TEXT));
+        assertEquals(5, sut.parts().all().size());
+        assertEquals("image/png", sut.parts().byContentId("logo@example").orElseThrow().getMimeType());
+    }
+
+    @Test
+    void contentIdIsPreferredOverMimeType() {
+        Message message = new Message().setPayload(multipart("multipart/alternative",
+                part("text/plain", "first"),
+                part("text/plain", "alert text", new MessagePartHeader().setName("Content-ID").setValue("text-body"))));
+        assertEquals("alert text", MessageView.of(message).content(Util.EMAIL_MIME_TYPE.TEXT).toString());
+    }
+
+    @Test
+    void attachmentBodiesAreOnlyFetchedWhenAskedFor() {
+        MessagePart attachment = new MessagePart()
+                .setMimeType("text/csv")
+                .setFilename("jobs.csv")
+                .setHeaders(List.of())
+                .setBody(new MessagePartBody().setSize(10_000_000).setAttachmentId("a1"));
+        List<String> loaded = new ArrayList<>();
+        MessageView sut = new MessageView(nestedMessage(attachment), (messageId, attachmentId) -> {
+            loaded.add(messageId + "/" + attachmentId);
+            return new MessagePartBody().setData(encode("a,b"));
+        });
+
+        assertEquals("plain body", sut.content(Util.EMAIL_MIME_TYPE.TEXT).toString());
+        assertTrue(loaded.isEmpty());
+        MessagePart csv = sut.parts().byMimeType("TEXT/CSV").getFirst();
+        assertEquals("a,b", sut.decode(csv).toString());
+        assertEquals("a,b", sut.decode(csv).toString());
+        assertEquals(List.of("m1/a1"), loaded);
+        assertNull(MessageView.of(nestedMessage(attachment)).decode(csv));
+    }
+
+    @Test
+    void headersAreLookedUpIgnoringCase() {
+        MessagePart payload = part("text/plain", "body",
+                new MessagePartHeader().setName("Received").setValue("first hop"),
+                new MessagePartHeader().setName("SUBJECT").setValue("Jobs for you"),
+                new MessagePartHeader().setName("received").setValue("second hop"));
+        MessageHeaders sut = MessageView.of(new Message().setPayload(payload)).headers();
+
+        assertEquals("Jobs for you", sut.value("Subject"));
+        assertEquals("first hop", sut.value("RECEIVED"));
+        assertEquals(List.of("first hop", "second hop"), sut.values("Received"));
+        assertEquals(List.of("Jobs for you"), sut.values("subject"));
+        assertNull(sut.value("From"));
+        assertEquals("Not Found", sut.value("From", "Not Found"));
+        assertFalse(MessageView.of(new Message()).headers().contains("From"));
+    }
+}
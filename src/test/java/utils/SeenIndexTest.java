@@ -0,0 +1,65 @@
+package utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+
+class SeenIndexTest {
+    private static final LocalDate MONDAY = LocalDate.of(2024, 7, 15);
+    private static final LocalDate FRIDAY = LocalDate.of(2024, 7, 19);
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void seenKeysAreCountedAndKeptAcrossReopening() throws IOException {
+        Path file = tempDir.resolve("seen.idx");
+        try (SeenIndex sut = SeenIndex.open(file)) {
+            assertTrue(sut.see(3960311234L, MONDAY, 1));
+            assertFalse(sut.see(3960311234L, FRIDAY, 2));
+            assertTrue(sut.see(0, MONDAY, 1));
+            assertFalse(sut.contains(42));
+            sut.force();
+        }
+        try (SeenIndex sut = SeenIndex.open(file)) {
+            assertEquals(2, sut.size());
+            assertEquals(new SeenIndex.Entry(MONDAY, FRIDAY, 3), sut.get(3960311234L));
+            assertTrue(sut.contains(0));
+            assertNull(sut.get(42));
+        }
+    }
+
+    @Test
+    void tableGrowsWithoutLosingKeys() throws IOException {
+        Path file = tempDir.resolve("seen.idx");
+        long initialSize;
+        try (SeenIndex sut = SeenIndex.open(file)) {
+            initialSize = Files.size(file);
+            for (long key = 1; key <= 10_000; key++) {
+                assertTrue(sut.see(key * 7919, MONDAY, 1));
+            }
+        }
+        assertTrue(Files.size(file) > initialSize);
+        try (SeenIndex sut = SeenIndex.open(file)) {
+            assertEquals(10_000, sut.size());
+            for (long key = 1; key <= 10_000; key++) {
+                assertTrue(sut.contains(key * 7919));
+            }
+            assertFalse(sut.contains(7918));
+        }
+    }
+
+    @Test
+    void fileThatIsNotAnIndexIsRejected() throws IOException {
+        Path file = tempDir.resolve("seen.idx");
+        Files.writeString(file, "not an index, just some text that is long enough", StandardCharsets.UTF_8);
+        assertThrows(IOException.class, () -> SeenIndex.open(file));
+    }
+}
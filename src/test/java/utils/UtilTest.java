@@ -0,0 +1,38 @@
+package utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+class UtilTest {
+
+    @Test
+    void base64UrlDecodeToCharsMatchesWholeBodyDecode() {
+        // Long enough to span several decoder blocks, with multi byte characters falling across block boundaries
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 100_000; i++) {
+            text.append("Up to £").append(i).append(" – café ✓ 🚀\n");
+        }
+        String encoded = Base64.getUrlEncoder().encodeToString(text.toString().getBytes(StandardCharsets.UTF_8));
+
+        CharBuffer decoded = Util.base64UrlDecodeToChars(encoded);
+        assertEquals(text.toString(), decoded.toString());
+        assertEquals(Util.base64UrlDecode(encoded), decoded.toString());
+        assertEquals("", Util.base64UrlDecodeToChars("").toString());
+    }
+
+    @Test
+    void unpaddedInputIsAccepted() {
+        assertEquals("ab", Util.base64UrlDecodeToChars("YWI").toString());
+        assertEquals("ab", Util.base64UrlDecodeToChars("YWI=").toString());
+    }
+
+    @Test
+    void invalidInputIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> Util.base64UrlDecodeToChars("a+b/"));
+    }
+}